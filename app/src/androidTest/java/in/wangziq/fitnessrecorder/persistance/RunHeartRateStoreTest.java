@@ -0,0 +1,74 @@
+package in.wangziq.fitnessrecorder.persistance;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class RunHeartRateStoreTest {
+
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void createDb() {
+        mDb = SQLiteDatabase.create(null);
+        new FitnessDbHelper(InstrumentationRegistry.getTargetContext()).onCreate(mDb);
+    }
+
+    @After
+    public void closeDb() {
+        mDb.close();
+    }
+
+    @Test
+    public void readsBackIrregularTimestampsExactly() {
+        long[] times = {1000, 1990, 3012, 3013, 4800, 19000, 19001, 25000, 25001};
+        int[] rates = {70, 70, 70, 70, 71, 71, 71, 71, 70};
+        RunHeartRateStore store = new RunHeartRateStore(mDb, mDb);
+        for (int i = 0; i < times.length; ++i) assertTrue(store.insert(times[i], rates[i]));
+        store.flush();
+
+        assertRows(store, times, rates);
+        // a new store continues the last run where the previous one left it
+        RunHeartRateStore reopened = new RunHeartRateStore(mDb, mDb);
+        assertTrue(reopened.insert(25777, 70));
+        reopened.flush();
+        assertRows(reopened, new long[] {1000, 1990, 3012, 3013, 4800, 19000, 19001, 25000, 25001, 25777},
+                new int[] {70, 70, 70, 70, 71, 71, 71, 71, 70, 70});
+    }
+
+    @Test
+    public void keepsSamplesInsideARun() {
+        RunHeartRateStore store = new RunHeartRateStore(mDb, mDb);
+        assertTrue(store.insert(1000, 70));
+        assertTrue(store.insert(2000, 70));
+        assertTrue(store.insert(3000, 70));
+        assertTrue(store.insert(1500, 80)); // splits the run
+        assertTrue(store.insert(2500, 70)); // joins the rest of it
+        assertFalse(store.insert(2000, 70));
+        store.flush();
+
+        assertRows(store, new long[] {1000, 1500, 2000, 2500, 3000}, new int[] {70, 80, 70, 70, 70});
+    }
+
+    private static void assertRows(HeartRateStore store, long[] times, int[] rates) {
+        try (Cursor cursor = store.queryAll()) {
+            assertEquals(times.length, cursor.getCount());
+            for (int i = 0; cursor.moveToNext(); ++i) {
+                assertEquals(times[i], cursor.getLong(0));
+                assertEquals(rates[i], cursor.getInt(1));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,115 @@
+package in.wangziq.fitnessrecorder.persistance;
+
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class SegmentAccelerationStoreTest {
+
+    private File mDir;
+
+    @Before
+    public void createDir() {
+        mDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "segment_test");
+        deleteDir();
+    }
+
+    @After
+    public void deleteDir() {
+        File[] files = mDir.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        mDir.delete();
+    }
+
+    private static void append(SegmentAccelerationStore store, long... timestamps) {
+        final float[] values = new float[timestamps.length];
+        store.append(timestamps, values, values, values, 0, timestamps.length);
+    }
+
+    // every row, read page by page as exports do; {timestamp, id} each
+    private static List<long[]> readPages(SegmentAccelerationStore store, int limit) {
+        List<long[]> rows = new ArrayList<>();
+        long lastTime = Long.MIN_VALUE, lastId = Long.MIN_VALUE;
+        int read;
+        do {
+            read = 0;
+            try (Cursor cursor = store.query(lastTime, lastId, Long.MAX_VALUE, limit)) {
+                final int time = cursor.getColumnIndexOrThrow(FitnessDbSchema.AccelerationTable.Cols.timestamp);
+                final int id = cursor.getColumnIndexOrThrow(FitnessDbSchema.AccelerationTable.Cols.id);
+                while (cursor.moveToNext()) {
+                    lastTime = cursor.getLong(time);
+                    lastId = cursor.getLong(id);
+                    rows.add(new long[] {lastTime, lastId});
+                    ++read;
+                }
+            }
+        } while (read == limit);
+        return rows;
+    }
+
+    private static void assertOrdered(List<long[]> rows, int count) {
+        assertEquals(count, rows.size());
+        for (int i = 1; i < rows.size(); ++i) {
+            final long[] a = rows.get(i - 1), b = rows.get(i);
+            assertTrue(a[0] < b[0] || a[0] == b[0] && a[1] < b[1]);
+        }
+    }
+
+    @Test
+    public void pagesOverlappingSegmentsInOrder() {
+        SegmentAccelerationStore store = new SegmentAccelerationStore(mDir, 1);
+        append(store, 1000, 1010, 1020, 1030, 1040, 1050, 1060, 1070, 1080, 1090);
+        // the clock was set back: a new segment, named before the first one, overlapping it
+        append(store, 995, 1005, 1010, 1015, 1025, 1035, 1045, 1055, 1065, 1075, 1095);
+        store.flush();
+        assertEquals(2, store.listSegmentFiles().length);
+
+        for (int limit : new int[] {1, 3, 7, 100}) assertOrdered(readPages(store, limit), 21);
+        store.close();
+    }
+
+    @Test
+    public void continuesIdsOfTheLastAppendedSegment() {
+        SegmentAccelerationStore store = new SegmentAccelerationStore(mDir, 1);
+        append(store, 1000, 1010, 1020);
+        append(store, 500, 510);
+        store.close();
+
+        // the segment appended to last is named first
+        SegmentAccelerationStore reopened = new SegmentAccelerationStore(mDir, 1);
+        append(reopened, 520);
+        reopened.flush();
+        List<long[]> rows = readPages(reopened, 100);
+        assertOrdered(rows, 6);
+        assertEquals(520, rows.get(2)[0]);
+        assertEquals(6, rows.get(2)[1]);
+        assertEquals(2, reopened.listSegmentFiles().length);
+
+        // the first named expires, the last appended to stays as it holds the next ids
+        reopened.close();
+        SegmentAccelerationStore expiring = new SegmentAccelerationStore(mDir, 1);
+        expiring.deleteBefore(2000);
+        File[] left = expiring.listSegmentFiles();
+        assertEquals(1, left.length);
+        append(expiring, 530);
+        expiring.flush();
+        rows = readPages(expiring, 100);
+        assertEquals(4, rows.size());
+        assertEquals(7, rows.get(3)[1]);
+        expiring.close();
+    }
+
+}
@@ -0,0 +1,140 @@
+package in.wangziq.fitnessrecorder.persistance;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class SnapshotTest {
+
+    // enough for the copy to take a while
+    private static final int ROWS = 200000;
+
+    private File mLiveFile, mCopyFile;
+    private SQLiteDatabase mLive;
+
+    @Before
+    public void createLiveDb() {
+        File dir = InstrumentationRegistry.getTargetContext().getCacheDir();
+        mLiveFile = new File(dir, "snapshot_live.db");
+        mCopyFile = new File(dir, "snapshot_copy.db");
+        SQLiteDatabase.deleteDatabase(mLiveFile);
+        SQLiteDatabase.deleteDatabase(mCopyFile);
+        mLive = SQLiteDatabase.openOrCreateDatabase(mLiveFile, null);
+        mLive.enableWriteAheadLogging();
+        new FitnessDbHelper(InstrumentationRegistry.getTargetContext()).onCreate(mLive);
+
+        mLive.beginTransaction();
+        try (SQLiteStatement insert = mLive.compileStatement(String.format("insert into %s (%s, %s) values (?, ?)",
+                FitnessDbSchema.HeartRateTable.NAME,
+                FitnessDbSchema.HeartRateTable.Cols.timestamp,
+                FitnessDbSchema.HeartRateTable.Cols.heartRate))) {
+            for (int i = 0; i < ROWS; ++i) {
+                insert.bindLong(1, 1000L * i);
+                insert.bindLong(2, 60 + i % 40);
+                insert.executeInsert();
+            }
+            mLive.setTransactionSuccessful();
+        } finally {
+            mLive.endTransaction();
+        }
+    }
+
+    @After
+    public void deleteDbs() {
+        mLive.close();
+        SQLiteDatabase.deleteDatabase(mLiveFile);
+        SQLiteDatabase.deleteDatabase(mCopyFile);
+    }
+
+    @Test
+    public void writerCommitsDuringSnapshot() throws InterruptedException {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread snapshot = new Thread(() -> {
+            try {
+                Snapshot.write(mLiveFile, null, mCopyFile, 0, Long.MAX_VALUE);
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        snapshot.start();
+        int writes = 0;
+        while (snapshot.isAlive()) {
+            // each its own transaction, as the writer commits; throws if the live database is locked
+            ContentValues values = new ContentValues();
+            values.put(FitnessDbSchema.HeartRateTable.Cols.timestamp, 1000L * (ROWS + writes));
+            values.put(FitnessDbSchema.HeartRateTable.Cols.heartRate, 70);
+            mLive.insertOrThrow(FitnessDbSchema.HeartRateTable.NAME, null, values);
+            ++writes;
+        }
+        snapshot.join();
+        assertNull(failure.get());
+        assertTrue(writes > 0);
+
+        SQLiteDatabase copy = SQLiteDatabase.openDatabase(mCopyFile.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+        try {
+            final long copied = copy.compileStatement("select count(*) from " + FitnessDbSchema.HeartRateTable.NAME)
+                    .simpleQueryForLong();
+            // from one snapshot, taken while the writer went on
+            assertTrue(copied >= ROWS && copied <= ROWS + writes);
+            assertEquals(copied - 1, copy.compileStatement("select max(" + FitnessDbSchema.HeartRateTable.Cols.timestamp
+                    + ") from " + FitnessDbSchema.HeartRateTable.NAME).simpleQueryForLong() / 1000);
+        } finally {
+            copy.close();
+        }
+    }
+
+    @Test
+    public void windowKeepsTheSamplesOfRunsInItAndTheVersion() {
+        mLive.setVersion(FitnessDbHelper.VERSION);
+        // samples every second from 10 s to 19 s, and from 30 s to 39 s
+        final long[] times = new long[10];
+        for (int i = 0; i < times.length; ++i) times[i] = 10000 + 1000 * i;
+        ContentValues values = new ContentValues();
+        for (long offset : new long[] {0, 20000}) {
+            values.put(FitnessDbSchema.HeartRateRunTable.Cols.start, times[0] + offset);
+            values.put(FitnessDbSchema.HeartRateRunTable.Cols.end, times[9] + offset);
+            values.put(FitnessDbSchema.HeartRateRunTable.Cols.heartRate, 80);
+            values.put(FitnessDbSchema.HeartRateRunTable.Cols.count, 10);
+            values.put(FitnessDbSchema.HeartRateRunTable.Cols.deltas, HeartRateRunCursor.encodeGaps(times, 0, 10));
+            mLive.insertOrThrow(FitnessDbSchema.HeartRateRunTable.NAME, null, values);
+        }
+
+        Snapshot.write(mLiveFile, null, mCopyFile, 15000, 35000);
+        SQLiteDatabase copy = SQLiteDatabase.openDatabase(mCopyFile.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+        try (Cursor runs = copy.rawQuery(String.format("select %s, %s, %s from %s order by %1$s",
+                FitnessDbSchema.HeartRateRunTable.Cols.start,
+                FitnessDbSchema.HeartRateRunTable.Cols.end,
+                FitnessDbSchema.HeartRateRunTable.Cols.count,
+                FitnessDbSchema.HeartRateRunTable.NAME), null)) {
+            assertEquals(FitnessDbHelper.VERSION, copy.getVersion());
+            assertEquals(2, runs.getCount());
+            runs.moveToNext();
+            assertEquals(15000, runs.getLong(0));
+            assertEquals(19000, runs.getLong(1));
+            assertEquals(5, runs.getInt(2));
+            runs.moveToNext();
+            assertEquals(30000, runs.getLong(0));
+            assertEquals(34000, runs.getLong(1));
+            assertEquals(5, runs.getInt(2));
+        } finally {
+            copy.close();
+        }
+    }
+
+}
@@ -2,10 +2,9 @@ package in.wangziq.fitnessrecorder.activities;
 
 import android.Manifest;
 
+import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.database.Cursor;
 import android.databinding.DataBindingUtil;
-import android.os.Environment;
 import android.support.design.widget.Snackbar;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
@@ -13,27 +12,11 @@ import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
-import android.widget.Toast;
-
-import com.annimon.stream.function.Function;
-import com.opencsv.CSVWriter;
-
-import org.apache.commons.io.FileUtils;
-
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.time.format.DateTimeFormatter;
-import java.util.Arrays;
-import java.util.Date;
 
 import in.wangziq.fitnessrecorder.R;
-import in.wangziq.fitnessrecorder.persistance.DbTool;
-import in.wangziq.fitnessrecorder.persistance.FitnessDbHelper;
+import in.wangziq.fitnessrecorder.config.Constants;
 import in.wangziq.fitnessrecorder.databinding.ActivityExportDataBinding;
+import in.wangziq.fitnessrecorder.services.ExportService;
 
 public final class ExportDataActivity extends AppCompatActivity {
 
@@ -41,87 +24,97 @@ public final class ExportDataActivity extends AppCompatActivity {
     private static final int WRITE_EXTERNAL_REQUEST = 1;
 
     private ActivityExportDataBinding mBinding;
-    private File mAppDir;
-    private DbTool mDatabase;
+    private Messenger mMessenger;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         mBinding = DataBindingUtil.setContentView(this, R.layout.activity_export_data);
+        mBinding.exportTip.setText(getString(R.string.export_tip, ExportService.getExportDir(this).toString()));
 
-        File downloadDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
-        mAppDir = new File(downloadDir, getString(R.string.app_name));
-        mBinding.exportTip.setText(getString(R.string.export_tip, mAppDir.toString()));
-
-        mDatabase = new DbTool(this);
+        mMessenger = new Messenger(this);
+        mMessenger.addHandler(mExportProgress);
+        mMessenger.addHandler(mExportResult);
 
         mBinding.btnExport.setOnClickListener(view -> requestWriteExternalPermissionAndExport());
+        mBinding.btnCancelExport.setOnClickListener(view -> startService(
+                new Intent(this, ExportService.class).setAction(Constants.Action.CANCEL_EXPORT)));
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // the export goes on in the service
+        mMessenger.unregister();
+    }
 
-    // FIXME: sync -> async
     private void export() {
-        String filenamePrefix = "exported_" + new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date());
-        if (mBinding.radioButtonCsv.isChecked()) {
-            DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd_HH:mm:ss.SSS");
-            if (mBinding.checkboxHeartRate.isChecked()) {
-                String filename = filenamePrefix + "_heartRate.csv";
-                saveCsvFile(mDatabase.queryAllHeartRate(), new File(mAppDir, filename), cursor -> new String[] {
-                        cursor.getString(0),
-                        Integer.toString(cursor.getInt(1))
-                });
-                Log.i(TAG, "exported: " + filename);
-            }
-            if (mBinding.checkboxAcceleration.isChecked()) {
-                String filename = filenamePrefix + "_acceleration.csv";
-                saveCsvFile(mDatabase.queryAllAcceleration(), new File(mAppDir, filename), cursor -> new String[] {
-                        Long.toString(cursor.getLong(0)),
-                        cursor.getString(1),
-                        Float.toString(cursor.getFloat(2)),
-                        Float.toString(cursor.getFloat(3)),
-                        Float.toString(cursor.getFloat(4))
-                });
-                Log.i(TAG, "exported: " + filename);
-            }
-            Snackbar.make(getRootView(), R.string.toast_export_succeed, Snackbar.LENGTH_SHORT).show();
-        } else if (mBinding.radioButtonSqlite.isChecked()) {
-            saveDbFile(new File(mAppDir, filenamePrefix + "_all.db"));
-        }
+        Intent i = new Intent(this, ExportService.class)
+                .setAction(Constants.Action.EXPORT)
+                .putExtra(Constants.Extra.EXPORT_HEART_RATE, mBinding.checkboxHeartRate.isChecked())
+                .putExtra(Constants.Extra.EXPORT_ACCELERATION, mBinding.checkboxAcceleration.isChecked())
+                .putExtra(Constants.Extra.EXPORT_FORMAT, mBinding.radioButtonSqlite.isChecked()
+                        ? Constants.ExportFormat.SQLITE
+                        : mBinding.radioButtonColumnar.isChecked()
+                        ? Constants.ExportFormat.COLUMNAR
+                        : mBinding.radioButtonAligned.isChecked()
+                        ? Constants.ExportFormat.ALIGNED : Constants.ExportFormat.CSV)
+                .putExtra(Constants.Extra.EXPORT_INTERVAL, getResampleInterval())
+                .putExtra(Constants.Extra.EXPORT_COMPRESSION, mBinding.radioButtonGzip.isChecked()
+                        ? Constants.ExportCompression.GZIP
+                        : mBinding.radioButtonZip.isChecked()
+                        ? Constants.ExportCompression.ZIP : Constants.ExportCompression.NONE)
+                .putExtra(Constants.Extra.EXPORT_INCREMENTAL, mBinding.checkboxIncremental.isChecked());
+        startService(i);
+        mBinding.setExporting(true);
+        Log.i(TAG, "export: started");
     }
 
-    private void saveCsvFile(Cursor cursor, File path, Function<Cursor, String[]> getRow) {
+    /**
+     * @return ms between rows of an aligned export, or 0 for a row at every sample
+     */
+    private long getResampleInterval() {
+        final String seconds = mBinding.editResampleInterval.getText().toString().trim();
         try {
-            path.createNewFile();
-            CSVWriter csvWriter = new CSVWriter(new BufferedWriter(new FileWriter(path)));
-            csvWriter.writeNext(cursor.getColumnNames());
-            while (cursor.moveToNext())
-                csvWriter.writeNext(getRow.apply(cursor));
-            csvWriter.close();
-            cursor.close();
-            Log.i(TAG, "saveCsvFile: succeeded");
-        } catch (IOException e) {
-            Log.e(TAG, "saveCsvFile: failed", e);
-        } catch (Exception e) {
-            Log.e(TAG, "saveCsvFile: unknown exception", e);
+            return seconds.isEmpty() ? 0 : Math.max(0, Long.parseLong(seconds) * 1000);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "getResampleInterval: invalid interval " + seconds);
+            return 0;
         }
     }
 
-    // TODO: use an intentService to copy files
-    private void saveDbFile(File destinationPath) {
-        if (Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
-            File srcPath = getDatabasePath(FitnessDbHelper.DB_NAME);
-            try {
-                FileUtils.copyFile(srcPath, destinationPath, true);
-                Snackbar.make(getRootView(), R.string.toast_export_succeed, Snackbar.LENGTH_SHORT).show();
-            } catch (IOException e) {
-                Log.e(TAG, "saveDbFile: failed to copy " + srcPath + " to " + destinationPath, e);
-                Snackbar.make(getRootView(), R.string.toast_export_copy_fail, Toast.LENGTH_LONG).show();
-            }
-        } else {
-            Log.i(TAG, "saveDbFile: external storage unavailable");
-            Toast.makeText(this, R.string.toast_export_state_fail, Toast.LENGTH_LONG).show();
+    private final Messenger.MessageHandler mExportProgress = new Messenger.MessageHandler() {
+        @Override
+        public String[] getActions() {
+            return new String[] {Constants.Action.BROADCAST_EXPORT_PROGRESS};
         }
-    }
+
+        @Override
+        public void handleResponse(Intent response) {
+            mBinding.setExporting(true);
+            mBinding.exportProgress.setText(ExportService.formatProgress(ExportDataActivity.this,
+                    response.getStringExtra(Constants.Extra.EXPORT_FORMAT),
+                    response.getLongExtra(Constants.Extra.EXPORT_DONE, 0),
+                    response.getDoubleExtra(Constants.Extra.EXPORT_RATE, 0)));
+        }
+    };
+
+    private final Messenger.MessageHandler mExportResult = new Messenger.MessageHandler() {
+        @Override
+        public String[] getActions() {
+            return new String[] {Constants.Action.EXPORT};
+        }
+
+        @Override
+        public void handleResponse(Intent response) {
+            mBinding.setExporting(false);
+            final int status = response.getIntExtra(Constants.Extra.STATUS, Constants.Status.UNKNOWN);
+            final int message = status == Constants.Status.OK ? R.string.toast_export_succeed
+                    : status == Constants.Status.CANCELLED ? R.string.toast_export_cancelled
+                    : R.string.toast_export_fail;
+            Snackbar.make(getRootView(), message, Snackbar.LENGTH_SHORT).show();
+        }
+    };
 
 
     /**
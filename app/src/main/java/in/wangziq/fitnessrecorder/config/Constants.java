@@ -12,9 +12,13 @@ public final class Constants {
         public static final String START_HEART_RATE = BASE + "services.action.START_HEART_RATE";
         public static final String STOP_HEART_RATE = BASE + "services.action.STOP_HEART_RATE";
         public static final String BROADCAST_HEART_RATE = BASE + "services.action.BROADCAST_HEART_RATE";
+        public static final String BROADCAST_HRV = BASE + "services.action.BROADCAST_HRV";
         public static final String START_ACCELERATION = BASE + "services.action.START_ACCELERATION";
         public static final String STOP_ACCELERATION = BASE + "services.action.STOP_ACCELERATION";
         public static final String BROADCAST_ACCELERATION = BASE + "services.action.BROADCAST_ACCELERATION";
+        public static final String EXPORT = BASE + "services.action.EXPORT";
+        public static final String CANCEL_EXPORT = BASE + "services.action.CANCEL_EXPORT";
+        public static final String BROADCAST_EXPORT_PROGRESS = BASE + "services.action.BROADCAST_EXPORT_PROGRESS";
     }
 
     public static final class Extra {
@@ -22,24 +26,59 @@ public final class Constants {
         public static final String KEY = "extra.data.KEY";
         public static final String STATE = "extra.data.STATE";
         public static final String HEART_RATE = "extra.data.HEART_RATE";
+        public static final String HRV_RMSSD = "extra.data.HRV_RMSSD"; // ms
+        public static final String HRV_SDNN = "extra.data.HRV_SDNN"; // ms
         public static final String WITH_RESPONSE = "extra.data.WITH_RESPONSE";
         public static final String STATUS = "extra.response.STATUS";
         public static final String ACCELERATION_X = "extra.data.acceleration_x";
         public static final String ACCELERATION_Y = "extra.data.acceleration_y";
         public static final String ACCELERATION_Z = "extra.data.acceleration_z";
+        public static final String EXPORT_HEART_RATE = "extra.data.EXPORT_HEART_RATE";
+        public static final String EXPORT_ACCELERATION = "extra.data.EXPORT_ACCELERATION";
+        public static final String EXPORT_FORMAT = "extra.data.EXPORT_FORMAT";
+        public static final String EXPORT_COMPRESSION = "extra.data.EXPORT_COMPRESSION";
+        public static final String EXPORT_FROM = "extra.data.EXPORT_FROM";
+        public static final String EXPORT_TO = "extra.data.EXPORT_TO";
+        public static final String EXPORT_SESSION = "extra.data.EXPORT_SESSION"; // id, bounds the export to its time range
+        public static final String EXPORT_INCREMENTAL = "extra.data.EXPORT_INCREMENTAL";
+        public static final String EXPORT_INTERVAL = "extra.data.EXPORT_INTERVAL"; // ms, aligned exports only
+        public static final String EXPORT_DONE = "extra.data.EXPORT_DONE";
+        public static final String EXPORT_RATE = "extra.data.EXPORT_RATE";
     }
 
     public static final class Status {
         public static final int OK = 0;
         public static final int FAILED = -1;
         public static final int UNKNOWN = -2;
+        public static final int CANCELLED = -3;
 
     }
 
+    public static final class ExportFormat {
+        public static final String CSV = "csv"; // progress counted in rows
+        public static final String SQLITE = "sqlite"; // progress counted in bytes
+        public static final String COLUMNAR = "columnar"; // progress counted in rows
+        public static final String ALIGNED = "aligned"; // both tables in one CSV, progress counted in rows
+    }
+
+    public static final class ExportCompression {
+        public static final String NONE = "none";
+        public static final String GZIP = "gzip"; // each file
+        public static final String ZIP = "zip"; // all files in one bundle
+    }
+
     public static final class Settings {
         public static final String DEVICE = "device";
         public static final String DEVICE_KEY = DEVICE + ".KEY";
         public static final String DEVICE_MAC = DEVICE + ".MAC";
+        public static final String RETENTION = "retention";
+        public static final String RETENTION_HEART_RATE_DAYS = RETENTION + ".HEART_RATE_DAYS";
+        public static final String RETENTION_ACCELERATION_DAYS = RETENTION + ".ACCELERATION_DAYS";
+        public static final String EXPORT_WATERMARKS = "export_watermarks";
+        public static final String WATERMARK_HEART_RATE = EXPORT_WATERMARKS + ".HEART_RATE";
+        public static final String WATERMARK_ACCELERATION_TIMESTAMP = EXPORT_WATERMARKS + ".ACCELERATION_TIMESTAMP";
+        public static final String WATERMARK_ACCELERATION_ID = EXPORT_WATERMARKS + ".ACCELERATION_ID";
+        public static final String WATERMARK_DATABASE = EXPORT_WATERMARKS + ".DATABASE";
     }
 
 }
@@ -0,0 +1,320 @@
+package in.wangziq.fitnessrecorder.export;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import in.wangziq.fitnessrecorder.persistance.DbTool;
+import in.wangziq.fitnessrecorder.persistance.FitnessDbSchema;
+
+/**
+ * Exports heart rate and acceleration as one CSV of rows aligned in time, by a merge join of both
+ * tables in timestamp order: a single pass, holding one keyset page of each table at a time.
+ * <p>
+ * Each row has the last value of each table at its time (last value carried forward), or empty
+ * fields if there's none within the max age, e.g. while that measurement was off. Rows are either
+ * at every sample of either table, or on a grid of a fixed interval aligned to epoch; the grid
+ * skips over gaps where both tables are empty. A table left out keeps its columns, empty.
+ * Exports are always whole, watermarks don't apply. Progress is counted in rows written.
+ */
+public final class AlignedExporter {
+
+    private static final String TAG = AlignedExporter.class.getSimpleName();
+
+    public static final long DEFAULT_MAX_AGE = 30 * 1000; // 30 s
+    private static final int PROGRESS_ROWS = 4096;
+
+    private static final String[] HEADER = {
+            FitnessDbSchema.HeartRateTable.Cols.timestamp,
+            FitnessDbSchema.HeartRateTable.Cols.heartRate,
+            FitnessDbSchema.AccelerationTable.Cols.x,
+            FitnessDbSchema.AccelerationTable.Cols.y,
+            FitnessDbSchema.AccelerationTable.Cols.z
+    };
+
+    private final DbTool mDatabase;
+    private final ExportProgress mProgress;
+    private final long mInterval;
+    private final long mMaxAge;
+    private final long mFrom, mTo;
+
+    private int mRate;
+    private float mX, mY, mZ;
+    private long mRateTime = Long.MIN_VALUE, mAccelerationTime = Long.MIN_VALUE;
+    private int mPendingRows;
+
+    /**
+     * @param interval ms between rows, or 0 for a row at every sample
+     * @param maxAge ms for which a value is carried forward
+     * @param from inclusive, epoch milliseconds
+     * @param to exclusive, epoch milliseconds
+     */
+    public AlignedExporter(DbTool database, ExportProgress progress, long interval, long maxAge, long from, long to) {
+        if (interval < 0 || maxAge < 0) throw new IllegalArgumentException("negative interval or max age");
+        mDatabase = database;
+        mProgress = progress;
+        mInterval = interval;
+        mMaxAge = maxAge;
+        mFrom = from;
+        mTo = to;
+    }
+
+    /**
+     * @param heartRate false to leave heart rates out
+     * @param acceleration false to leave accelerations out
+     * @param file gzipped if its name ends with {@link ExportFiles#GZIP_SUFFIX}
+     */
+    public void export(boolean heartRate, boolean acceleration, File file) throws IOException {
+        try (OutputStream out = ExportFiles.openOutput(file)) {
+            write(out, heartRate, acceleration);
+        }
+        Log.i(TAG, "export: exported to " + file);
+    }
+
+    private void write(OutputStream out, boolean withHeartRate, boolean withAcceleration) throws IOException {
+        HeartRatePager heartRate = new HeartRatePager();
+        AccelerationPager acceleration = new AccelerationPager();
+        if (!withHeartRate) heartRate.skip();
+        if (!withAcceleration) acceleration.skip();
+        try {
+            write(out, heartRate, acceleration);
+        } finally {
+            heartRate.close();
+            acceleration.close();
+        }
+    }
+
+    /**
+     * Writes the rows merged from both tables to out, which is flushed but left open.
+     */
+    void write(OutputStream out, Pager heartRate, Pager acceleration) throws IOException {
+        NumericCsvWriter writer = new NumericCsvWriter(out);
+        writer.writeText(HEADER);
+        heartRate.next();
+        acceleration.next();
+        if (mInterval == 0) mergeAtSamples(writer, heartRate, acceleration);
+        else mergeOnGrid(writer, heartRate, acceleration);
+        writer.flush();
+        mProgress.add(mPendingRows);
+    }
+
+    private void mergeAtSamples(NumericCsvWriter writer, Pager heartRate, Pager acceleration)
+            throws IOException {
+        for (;;) {
+            final long time = Math.min(heartRate.time(), acceleration.time());
+            if (time == Long.MAX_VALUE) return;
+            // samples of both tables at the same time make a single row
+            while (heartRate.time() == time) {
+                heartRate.take(this);
+                heartRate.next();
+            }
+            while (acceleration.time() == time) {
+                acceleration.take(this);
+                acceleration.next();
+            }
+            writeRow(writer, time);
+        }
+    }
+
+    /**
+     * The last row is the grid point at or after the last sample, even if that's past the end of the range.
+     */
+    private void mergeOnGrid(NumericCsvWriter writer, Pager heartRate, Pager acceleration) throws IOException {
+        long last = Long.MIN_VALUE;
+        long time = ceil(Math.min(heartRate.time(), acceleration.time()));
+        while (time != Long.MAX_VALUE) {
+            while (heartRate.time() <= time) {
+                last = heartRate.time();
+                heartRate.take(this);
+                heartRate.next();
+            }
+            while (acceleration.time() <= time) {
+                last = Math.max(last, acceleration.time());
+                acceleration.take(this);
+                acceleration.next();
+            }
+            final long next = Math.min(heartRate.time(), acceleration.time());
+            // done once a row was written at or after the last sample
+            if (next == Long.MAX_VALUE && last <= time - mInterval) return;
+            if (isFresh(mRateTime, time) || isFresh(mAccelerationTime, time)) {
+                writeRow(writer, time);
+                time += mInterval;
+            } else {
+                // nothing to carry forward, skip to the grid point of the next sample
+                time = ceil(next);
+            }
+        }
+    }
+
+    void keepRate(long time, int rate) {
+        mRate = rate;
+        mRateTime = time;
+    }
+
+    void keepAcceleration(long time, float x, float y, float z) {
+        mX = x;
+        mY = y;
+        mZ = z;
+        mAccelerationTime = time;
+    }
+
+    private void writeRow(NumericCsvWriter writer, long time) throws IOException {
+        writer.writeLong(time);
+        if (isFresh(mRateTime, time)) writer.writeInt(mRate);
+        else writer.writeEmpty();
+        if (isFresh(mAccelerationTime, time)) {
+            writer.writeFloat(mX);
+            writer.writeFloat(mY);
+            writer.writeFloat(mZ);
+        } else {
+            writer.writeEmpty();
+            writer.writeEmpty();
+            writer.writeEmpty();
+        }
+        writer.endRow();
+        if (++mPendingRows == PROGRESS_ROWS) {
+            mProgress.add(mPendingRows);
+            mPendingRows = 0;
+            mProgress.checkCancelled();
+        }
+    }
+
+    private boolean isFresh(long sampleTime, long time) {
+        return sampleTime != Long.MIN_VALUE && time - sampleTime <= mMaxAge;
+    }
+
+    /**
+     * @return the first grid point at or after time
+     */
+    private long ceil(long time) {
+        if (time == Long.MAX_VALUE) return time;
+        long q = time / mInterval;
+        if (q * mInterval < time) ++q;
+        return q * mInterval;
+    }
+
+    /**
+     * Samples of a table in time order. {@link #time()} is Long.MAX_VALUE once all samples are read.
+     */
+    abstract static class Pager {
+
+        abstract long time();
+
+        /**
+         * Moves to the next sample, or to the end.
+         */
+        abstract void next();
+
+        /**
+         * Makes the current sample the last value of its table.
+         */
+        abstract void take(AlignedExporter exporter);
+    }
+
+    /**
+     * Pages through a table with its keyset query, holding one page at a time.
+     */
+    private abstract class CursorPager extends Pager {
+        private Cursor mCursor;
+        private long mTime = Long.MIN_VALUE;
+
+        @Override
+        long time() {
+            return mTime;
+        }
+
+        @Override
+        void next() {
+            if (mTime == Long.MAX_VALUE) return;
+            if (mCursor == null || !mCursor.moveToNext()) {
+                final boolean last = mCursor != null && mCursor.getCount() < CsvExporter.PAGE_SIZE;
+                close();
+                if (!last) {
+                    mCursor = query(CsvExporter.PAGE_SIZE);
+                    if (mCursor.moveToNext()) {
+                        mTime = read(mCursor);
+                        return;
+                    }
+                }
+                mTime = Long.MAX_VALUE;
+                return;
+            }
+            mTime = read(mCursor);
+        }
+
+        void close() {
+            if (mCursor != null) mCursor.close();
+            mCursor = null;
+        }
+
+        /**
+         * Reads nothing, as if the table was empty.
+         */
+        void skip() {
+            mTime = Long.MAX_VALUE;
+        }
+
+        /**
+         * Next page, after the last sample read.
+         */
+        abstract Cursor query(int limit);
+
+        /**
+         * @return timestamp of the current row, keeping whatever is needed to query the next page
+         */
+        abstract long read(Cursor cursor);
+
+        @Override
+        void take(AlignedExporter exporter) {
+            keep(mCursor);
+        }
+
+        abstract void keep(Cursor cursor);
+    }
+
+    private final class HeartRatePager extends CursorPager {
+        private long mLastTime = CsvExporter.heartRateAfter(null, mFrom);
+
+        @Override
+        Cursor query(int limit) {
+            return mDatabase.queryHeartRateAfter(mLastTime, mTo, limit);
+        }
+
+        @Override
+        long read(Cursor cursor) {
+            mLastTime = cursor.getLong(0);
+            return mLastTime;
+        }
+
+        @Override
+        void keep(Cursor cursor) {
+            keepRate(time(), cursor.getInt(1));
+        }
+    }
+
+    private final class AccelerationPager extends CursorPager {
+        private final long[] mFirst = CsvExporter.accelerationAfter(null, mFrom);
+        private long mLastTime = mFirst[0], mLastId = mFirst[1];
+
+        @Override
+        Cursor query(int limit) {
+            return mDatabase.queryAccelerationAfter(mLastTime, mLastId, mTo, limit);
+        }
+
+        @Override
+        long read(Cursor cursor) {
+            mLastId = cursor.getLong(0);
+            mLastTime = cursor.getLong(1);
+            return mLastTime;
+        }
+
+        @Override
+        void keep(Cursor cursor) {
+            keepAcceleration(time(), cursor.getFloat(2), cursor.getFloat(3), cursor.getFloat(4));
+        }
+    }
+
+}
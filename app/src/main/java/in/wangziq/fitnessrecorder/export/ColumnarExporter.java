@@ -0,0 +1,130 @@
+package in.wangziq.fitnessrecorder.export;
+
+import android.database.Cursor;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import in.wangziq.fitnessrecorder.persistance.DbTool;
+import in.wangziq.fitnessrecorder.persistance.FitnessDbSchema;
+
+/**
+ * Exports samples into {@link ColumnarFormat} files, paging through the same keyset queries as
+ * {@link CsvExporter}, with the same watermarks, leaving the open heart rate run to a later export.
+ * Progress is counted in rows.
+ */
+public final class ColumnarExporter {
+
+    private static final String TAG = ColumnarExporter.class.getSimpleName();
+
+    private static final String[] HEART_RATE_COLUMNS = {
+            FitnessDbSchema.HeartRateTable.Cols.timestamp,
+            FitnessDbSchema.HeartRateTable.Cols.heartRate
+    };
+    private static final byte[] HEART_RATE_TYPES = {ColumnarFormat.INT64, ColumnarFormat.INT32};
+    private static final String[] ACCELERATION_COLUMNS = {
+            FitnessDbSchema.AccelerationTable.Cols.timestamp,
+            FitnessDbSchema.AccelerationTable.Cols.id,
+            FitnessDbSchema.AccelerationTable.Cols.x,
+            FitnessDbSchema.AccelerationTable.Cols.y,
+            FitnessDbSchema.AccelerationTable.Cols.z
+    };
+    private static final byte[] ACCELERATION_TYPES = {
+            ColumnarFormat.INT64, ColumnarFormat.INT64,
+            ColumnarFormat.FLOAT32, ColumnarFormat.FLOAT32, ColumnarFormat.FLOAT32
+    };
+
+    private final DbTool mDatabase;
+    private final ExportProgress mProgress;
+    private final ExportWatermarks mWatermarks;
+    private final long mFrom, mTo;
+    private final boolean mDeflate;
+
+    /**
+     * @param watermarks where to start from, or null to export everything
+     * @param from inclusive, epoch milliseconds
+     * @param to exclusive, epoch milliseconds
+     * @param deflate whether blocks are compressed
+     */
+    public ColumnarExporter(DbTool database, ExportProgress progress, @Nullable ExportWatermarks watermarks,
+                            long from, long to, boolean deflate) {
+        mDatabase = database;
+        mProgress = progress;
+        mWatermarks = watermarks;
+        mFrom = from;
+        mTo = to;
+        mDeflate = deflate;
+    }
+
+    /**
+     * Exports both tables in parallel, see {@link CsvExporter#export(File, File)}.
+     *
+     * @param heartRateFile null to skip heart rate
+     * @param accelerationFile null to skip acceleration
+     */
+    public void export(File heartRateFile, File accelerationFile) throws IOException {
+        List<Callable<Void>> tasks = new ArrayList<>(2);
+        if (heartRateFile != null) tasks.add(() -> { exportHeartRate(heartRateFile); return null; });
+        if (accelerationFile != null) tasks.add(() -> { exportAcceleration(accelerationFile); return null; });
+        ParallelExport.run(mProgress, tasks);
+    }
+
+    public void exportHeartRate(File file) throws IOException {
+        long timestamp = CsvExporter.heartRateAfter(mWatermarks, mFrom);
+        final long to = CsvExporter.heartRateTo(mDatabase, mWatermarks, mTo);
+        try (ColumnarWriter writer = new ColumnarWriter(new FileOutputStream(file),
+                HEART_RATE_COLUMNS, HEART_RATE_TYPES, mDeflate)) {
+            for (;;) {
+                mProgress.checkCancelled();
+                try (Cursor cursor = mDatabase.queryHeartRateAfter(timestamp, to, CsvExporter.PAGE_SIZE)) {
+                    while (cursor.moveToNext()) {
+                        timestamp = cursor.getLong(0);
+                        writer.putLong(0, timestamp);
+                        writer.putInt(1, cursor.getInt(1));
+                        writer.endRow();
+                    }
+                    mProgress.add(cursor.getCount());
+                    if (cursor.getCount() < CsvExporter.PAGE_SIZE) break;
+                }
+            }
+            writer.finish();
+        }
+        if (mWatermarks != null) mWatermarks.setHeartRate(timestamp);
+        Log.i(TAG, "exportHeartRate: exported to " + file);
+    }
+
+    public void exportAcceleration(File file) throws IOException {
+        final long[] after = CsvExporter.accelerationAfter(mWatermarks, mFrom);
+        long timestamp = after[0], id = after[1];
+        try (ColumnarWriter writer = new ColumnarWriter(new FileOutputStream(file),
+                ACCELERATION_COLUMNS, ACCELERATION_TYPES, mDeflate)) {
+            for (;;) {
+                mProgress.checkCancelled();
+                try (Cursor cursor = mDatabase.queryAccelerationAfter(timestamp, id, mTo, CsvExporter.PAGE_SIZE)) {
+                    while (cursor.moveToNext()) {
+                        id = cursor.getLong(0);
+                        timestamp = cursor.getLong(1);
+                        writer.putLong(0, timestamp);
+                        writer.putLong(1, id);
+                        writer.putFloat(2, cursor.getFloat(2));
+                        writer.putFloat(3, cursor.getFloat(3));
+                        writer.putFloat(4, cursor.getFloat(4));
+                        writer.endRow();
+                    }
+                    mProgress.add(cursor.getCount());
+                    if (cursor.getCount() < CsvExporter.PAGE_SIZE) break;
+                }
+            }
+            writer.finish();
+        }
+        if (mWatermarks != null) mWatermarks.setAcceleration(timestamp, id);
+        Log.i(TAG, "exportAcceleration: exported to " + file);
+    }
+
+}
@@ -0,0 +1,48 @@
+package in.wangziq.fitnessrecorder.export;
+
+/**
+ * A compact columnar file of samples, for offline analysis, written by {@link ColumnarWriter}
+ * and read back by {@link ColumnarReader}.
+ *
+ * Layout (little endian):
+ * <pre>
+ * header  int32 magic "FRC1", int32 flags ({@link #FLAG_DEFLATE}), int32 column count,
+ *         then per column: int8 type ({@link #INT32}, {@link #INT64} or {@link #FLOAT32}),
+ *         int8 name length, UTF-8 name
+ * block   int32 row count (at most {@link #BLOCK_ROWS}), int64 min and max of column 0,
+ *         int32 stored size, then the stored bytes: the values of each column one after another,
+ *         deflated (zlib) if the file has {@link #FLAG_DEFLATE}
+ * end     int32 0, in place of a block
+ * </pre>
+ * Column 0 is the epoch ms timestamp, int64, non-decreasing; blocks outside a time range can be
+ * skipped by their header without being read.
+ */
+public final class ColumnarFormat {
+
+    public static final int MAGIC = 0x31435246; // "FRC1"
+    public static final int FLAG_DEFLATE = 1;
+
+    public static final byte INT32 = 1;
+    public static final byte INT64 = 2;
+    public static final byte FLOAT32 = 3;
+
+    public static final int BLOCK_ROWS = 1 << 14;
+    static final int BLOCK_HEADER_SIZE = 4 + 8 + 8 + 4;
+
+    public static final String FILE_SUFFIX = ".frc";
+
+    private ColumnarFormat() {}
+
+    static int width(byte type) {
+        switch (type) {
+            case INT32:
+            case FLOAT32:
+                return 4;
+            case INT64:
+                return 8;
+            default:
+                throw new IllegalArgumentException("unknown column type: " + type);
+        }
+    }
+
+}
@@ -0,0 +1,197 @@
+package in.wangziq.fitnessrecorder.export;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a {@link ColumnarFormat} file block by block, e.g. on a desktop for analysis. Columns are
+ * copied out in bulk into primitive arrays; blocks whose values aren't asked for are skipped
+ * without being decompressed.
+ *
+ * <pre>
+ *     while (reader.nextBlock()) {
+ *         if (reader.getMaxTime() < from) continue;
+ *         timestamps = reader.getLongs(0, timestamps);
+ *         x = reader.getFloats(2, x);
+ *         for (int i = 0; i < reader.getRowCount(); ++i) ...
+ *     }
+ * </pre>
+ */
+public final class ColumnarReader implements Closeable {
+
+    // more than any export has, so that a corrupted header doesn't make it allocate without bounds
+    private static final int MAX_COLUMNS = 256;
+
+    private final InputStream mIn;
+    private final String[] mNames;
+    private final byte[] mTypes;
+    private final int[] mOffsets;
+    private final Inflater mInflater;
+    private final ByteBuffer mBlockHeader = ByteBuffer.allocate(ColumnarFormat.BLOCK_HEADER_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    private byte[] mStored = new byte[0];
+    private ByteBuffer mBlock = ByteBuffer.allocate(0);
+    private int mRows, mStoredSize;
+    private long mMinTime, mMaxTime;
+    private boolean mLoaded = true;
+
+    public ColumnarReader(InputStream in) throws IOException {
+        mIn = in;
+        ByteBuffer header = read(12);
+        if (header.getInt() != ColumnarFormat.MAGIC) throw new IOException("not a columnar export");
+        final int flags = header.getInt();
+        final int columns = header.getInt();
+        if (columns <= 0 || columns > MAX_COLUMNS) throw new IOException("corrupted header");
+        mNames = new String[columns];
+        mTypes = new byte[columns];
+        mOffsets = new int[columns];
+        for (int i = 0; i < columns; ++i) {
+            ByteBuffer column = read(2);
+            mTypes[i] = column.get();
+            if (mTypes[i] != ColumnarFormat.INT32 && mTypes[i] != ColumnarFormat.INT64 && mTypes[i] != ColumnarFormat.FLOAT32)
+                throw new IOException("unknown column type: " + mTypes[i]);
+            mNames[i] = new String(read(column.get() & 0xff).array(), StandardCharsets.UTF_8);
+        }
+        mInflater = (flags & ColumnarFormat.FLAG_DEFLATE) != 0 ? new Inflater() : null;
+    }
+
+    public String[] getColumnNames() {
+        return mNames.clone();
+    }
+
+    public byte[] getColumnTypes() {
+        return mTypes.clone();
+    }
+
+    /**
+     * Moves to the next block, skipping what's left of the current one.
+     *
+     * @return false at the end of the file
+     */
+    public boolean nextBlock() throws IOException {
+        if (!mLoaded) skip(mStoredSize);
+        readFully(mBlockHeader.array(), 0, 4);
+        mRows = mBlockHeader.getInt(0);
+        if (mRows == 0) return false;
+        if (mRows < 0 || mRows > ColumnarFormat.BLOCK_ROWS) throw new IOException("corrupted block");
+        readFully(mBlockHeader.array(), 4, ColumnarFormat.BLOCK_HEADER_SIZE - 4);
+        mMinTime = mBlockHeader.getLong(4);
+        mMaxTime = mBlockHeader.getLong(12);
+        mStoredSize = mBlockHeader.getInt(20);
+        if (mStoredSize < 0) throw new IOException("corrupted block");
+        mLoaded = false;
+        return true;
+    }
+
+    public int getRowCount() {
+        return mRows;
+    }
+
+    public long getMinTime() {
+        return mMinTime;
+    }
+
+    public long getMaxTime() {
+        return mMaxTime;
+    }
+
+    /**
+     * @param values reused if large enough
+     * @return values of an INT64 column in the current block, in the first {@link #getRowCount()} elements
+     */
+    public long[] getLongs(int column, long[] values) throws IOException {
+        ByteBuffer block = column(column, ColumnarFormat.INT64);
+        if (values == null || values.length < mRows) values = new long[mRows];
+        block.asLongBuffer().get(values, 0, mRows);
+        return values;
+    }
+
+    public int[] getInts(int column, int[] values) throws IOException {
+        ByteBuffer block = column(column, ColumnarFormat.INT32);
+        if (values == null || values.length < mRows) values = new int[mRows];
+        block.asIntBuffer().get(values, 0, mRows);
+        return values;
+    }
+
+    public float[] getFloats(int column, float[] values) throws IOException {
+        ByteBuffer block = column(column, ColumnarFormat.FLOAT32);
+        if (values == null || values.length < mRows) values = new float[mRows];
+        block.asFloatBuffer().get(values, 0, mRows);
+        return values;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mInflater != null) mInflater.end();
+        mIn.close();
+    }
+
+    private ByteBuffer column(int column, byte type) throws IOException {
+        if (mTypes[column] != type) throw new IllegalArgumentException("column " + mNames[column] + " is of another type");
+        load();
+        mBlock.limit(mOffsets[column] + mRows * ColumnarFormat.width(type)).position(mOffsets[column]);
+        return mBlock.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void load() throws IOException {
+        if (mLoaded) return;
+        int size = 0;
+        for (int i = 0; i < mTypes.length; ++i) {
+            mOffsets[i] = size;
+            size += mRows * ColumnarFormat.width(mTypes[i]);
+        }
+        if (mBlock.capacity() < size) mBlock = ByteBuffer.allocate(size);
+        mBlock.clear();
+        if (mInflater == null) {
+            if (mStoredSize != size) throw new IOException("corrupted block");
+            readFully(mBlock.array(), 0, size);
+        } else {
+            if (mStored.length < mStoredSize) mStored = new byte[mStoredSize];
+            readFully(mStored, 0, mStoredSize);
+            mInflater.reset();
+            mInflater.setInput(mStored, 0, mStoredSize);
+            try {
+                if (mInflater.inflate(mBlock.array(), 0, size) != size || !mInflater.finished())
+                    throw new IOException("corrupted block");
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            }
+        }
+        mLoaded = true;
+    }
+
+    private ByteBuffer read(int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(buffer.array(), 0, size);
+        return buffer;
+    }
+
+    private void readFully(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            final int read = mIn.read(buffer, offset, length);
+            if (read < 0) throw new EOFException();
+            offset += read;
+            length -= read;
+        }
+    }
+
+    private void skip(long length) throws IOException {
+        while (length > 0) {
+            final long skipped = mIn.skip(length);
+            if (skipped > 0) {
+                length -= skipped;
+            } else {
+                if (mIn.read() < 0) throw new EOFException();
+                --length;
+            }
+        }
+    }
+
+}
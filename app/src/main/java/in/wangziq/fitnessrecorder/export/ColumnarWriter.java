@@ -0,0 +1,154 @@
+package in.wangziq.fitnessrecorder.export;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Writes rows into a {@link ColumnarFormat} file, a block at a time. Values of a row are put
+ * column by column, then the row is ended:
+ *
+ * <pre>
+ *     writer.putLong(0, timestamp);
+ *     writer.putInt(1, rate);
+ *     writer.endRow();
+ * </pre>
+ *
+ * The file is only complete once {@link #finish()} wrote its end; closing without it, e.g. on an
+ * exception, leaves a file that readers fail on instead of taking it for a shorter one.
+ */
+public final class ColumnarWriter implements Closeable {
+
+    private final OutputStream mOut;
+    private final byte[] mTypes;
+    private final ByteBuffer[] mColumns;
+    private final Deflater mDeflater;
+    private final ByteBuffer mBlock;
+    private byte[] mDeflated;
+    private int mRows;
+    private long mMinTime = Long.MAX_VALUE, mMaxTime = Long.MIN_VALUE;
+    private boolean mFinished;
+
+    /**
+     * @param names of the columns, the first one being the timestamp
+     * @param types of the columns, see {@link ColumnarFormat}; the first one must be INT64
+     * @param deflate whether blocks are compressed
+     */
+    public ColumnarWriter(OutputStream out, String[] names, byte[] types, boolean deflate) throws IOException {
+        if (names.length != types.length || types.length == 0 || types[0] != ColumnarFormat.INT64)
+            throw new IllegalArgumentException("column 0 must be an int64 timestamp");
+        mOut = out;
+        mTypes = types.clone();
+        mColumns = new ByteBuffer[types.length];
+        int rowSize = 0;
+        for (int i = 0; i < types.length; ++i) {
+            final int width = ColumnarFormat.width(types[i]);
+            mColumns[i] = ByteBuffer.allocate(width * ColumnarFormat.BLOCK_ROWS).order(ByteOrder.LITTLE_ENDIAN);
+            rowSize += width;
+        }
+        mBlock = ByteBuffer.allocate(ColumnarFormat.BLOCK_HEADER_SIZE + rowSize * ColumnarFormat.BLOCK_ROWS)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        // most of the ratio of the default level, at several times the speed
+        mDeflater = deflate ? new Deflater(Deflater.BEST_SPEED) : null;
+        writeHeader(names, deflate);
+    }
+
+    private void writeHeader(String[] names, boolean deflate) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(12 + names.length * (2 + 255)).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(ColumnarFormat.MAGIC)
+                .putInt(deflate ? ColumnarFormat.FLAG_DEFLATE : 0)
+                .putInt(names.length);
+        for (int i = 0; i < names.length; ++i) {
+            final byte[] name = names[i].getBytes(StandardCharsets.UTF_8);
+            if (name.length > 255) throw new IllegalArgumentException("column name too long: " + names[i]);
+            header.put(mTypes[i]).put((byte) name.length).put(name);
+        }
+        mOut.write(header.array(), 0, header.position());
+    }
+
+    public void putInt(int column, int value) {
+        mColumns[column].putInt(value);
+    }
+
+    public void putLong(int column, long value) {
+        mColumns[column].putLong(value);
+    }
+
+    public void putFloat(int column, float value) {
+        mColumns[column].putFloat(value);
+    }
+
+    public void endRow() throws IOException {
+        final long time = mColumns[0].getLong(mRows * 8);
+        if (time < mMinTime) mMinTime = time;
+        if (time > mMaxTime) mMaxTime = time;
+        if (++mRows == ColumnarFormat.BLOCK_ROWS) writeBlock();
+    }
+
+    /**
+     * Writes the rows so far as a block, which is smaller than the others unless full.
+     */
+    public void flush() throws IOException {
+        if (mRows > 0) writeBlock();
+        mOut.flush();
+    }
+
+    /**
+     * Ends the file, once every row is put; the stream is left open.
+     */
+    public void finish() throws IOException {
+        if (mRows > 0) writeBlock();
+        mBlock.clear();
+        mBlock.putInt(0);
+        mOut.write(mBlock.array(), 0, mBlock.position());
+        mOut.flush();
+        mFinished = true;
+        if (mDeflater != null) mDeflater.end();
+    }
+
+    /**
+     * Closes the stream, without ending the file unless {@link #finish()} did.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!mFinished && mDeflater != null) mDeflater.end();
+        mOut.close();
+    }
+
+    private void writeBlock() throws IOException {
+        mBlock.clear();
+        mBlock.position(ColumnarFormat.BLOCK_HEADER_SIZE);
+        for (ByteBuffer column: mColumns) {
+            mBlock.put(column.array(), 0, column.position());
+            column.clear();
+        }
+        final int size = mBlock.position() - ColumnarFormat.BLOCK_HEADER_SIZE;
+        mBlock.putInt(0, mRows).putLong(4, mMinTime).putLong(12, mMaxTime);
+        if (mDeflater == null) {
+            mBlock.putInt(20, size);
+            mOut.write(mBlock.array(), 0, mBlock.position());
+        } else {
+            if (mDeflated == null) mDeflated = new byte[size + size / 8 + 64];
+            mDeflater.reset();
+            mDeflater.setInput(mBlock.array(), ColumnarFormat.BLOCK_HEADER_SIZE, size);
+            mDeflater.finish();
+            int deflated = 0;
+            while (!mDeflater.finished()) {
+                if (deflated == mDeflated.length) mDeflated = Arrays.copyOf(mDeflated, deflated * 2);
+                deflated += mDeflater.deflate(mDeflated, deflated, mDeflated.length - deflated);
+            }
+            mBlock.putInt(20, deflated);
+            mOut.write(mBlock.array(), 0, ColumnarFormat.BLOCK_HEADER_SIZE);
+            mOut.write(mDeflated, 0, deflated);
+        }
+        mRows = 0;
+        mMinTime = Long.MAX_VALUE;
+        mMaxTime = Long.MIN_VALUE;
+    }
+
+}
@@ -0,0 +1,187 @@
+package in.wangziq.fitnessrecorder.export;
+
+import android.database.Cursor;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import in.wangziq.fitnessrecorder.persistance.DbTool;
+
+/**
+ * Streams samples into CSV files, one page of rows at a time through the keyset queries of
+ * {@link DbTool}, so memory use doesn't depend on the size of the table. Values are formatted by
+ * {@link NumericCsvWriter} straight from the cursor.
+ * Progress is counted in rows.
+ * <p>
+ * Tables can be exported at the same time with {@link #export(File, File)}: each runs on its own
+ * thread, and so on its own connection of the read-only pool, which doesn't block the writer in WAL mode.
+ * <p>
+ * Given {@link ExportWatermarks}, only rows after them are exported, and they are advanced to the
+ * last row written. Heart rates stop before the run still being recorded, which may yet grow or
+ * split, see {@link DbTool#getOpenHeartRateFrom}: it's exported whole by the first export after it closed.
+ */
+public final class CsvExporter {
+
+    private static final String TAG = CsvExporter.class.getSimpleName();
+
+    static final int PAGE_SIZE = 4096;
+
+    private final DbTool mDatabase;
+    private final ExportProgress mProgress;
+    private final ExportWatermarks mWatermarks;
+    private final long mFrom, mTo;
+
+    public CsvExporter(DbTool database, ExportProgress progress) {
+        this(database, progress, null, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param watermarks where to start from, or null to export everything
+     * @param from inclusive, epoch milliseconds; rows before the watermarks are skipped anyway
+     * @param to exclusive, epoch milliseconds; rows recorded later are left to the next export
+     */
+    public CsvExporter(DbTool database, ExportProgress progress, @Nullable ExportWatermarks watermarks,
+                       long from, long to) {
+        mDatabase = database;
+        mProgress = progress;
+        mWatermarks = watermarks;
+        mFrom = from;
+        mTo = to;
+    }
+
+    /**
+     * @return timestamp to page heart rates after: the later of the watermark and the one right before from
+     */
+    static long heartRateAfter(@Nullable ExportWatermarks watermarks, long from) {
+        final long after = from == Long.MIN_VALUE ? from : from - 1;
+        return watermarks == null ? after : Math.max(after, watermarks.getHeartRate());
+    }
+
+    /**
+     * @return end of the heart rates to export, exclusive: to, or before the open run if incremental
+     */
+    static long heartRateTo(DbTool database, @Nullable ExportWatermarks watermarks, long to) {
+        return watermarks == null ? to : Math.min(to, database.getOpenHeartRateFrom(System.currentTimeMillis()));
+    }
+
+    /**
+     * @return (timestamp, id) to page accelerations after, see {@link #heartRateAfter}
+     */
+    static long[] accelerationAfter(@Nullable ExportWatermarks watermarks, long from) {
+        // every id of the millisecond before from
+        final long[] after = from == Long.MIN_VALUE
+                ? new long[] {Long.MIN_VALUE, Long.MIN_VALUE} : new long[] {from - 1, Long.MAX_VALUE};
+        if (watermarks == null) return after;
+        final long timestamp = watermarks.getAccelerationTimestamp(), id = watermarks.getAccelerationId();
+        if (timestamp > after[0] || timestamp == after[0] && id > after[1]) {
+            after[0] = timestamp;
+            after[1] = id;
+        }
+        return after;
+    }
+
+    /**
+     * Exports both tables in parallel, so that it takes about as long as the larger one.
+     * If one fails or is cancelled, the other is cancelled too.
+     *
+     * @param heartRateFile null to skip heart rate
+     * @param accelerationFile null to skip acceleration
+     */
+    public void export(File heartRateFile, File accelerationFile) throws IOException {
+        List<Callable<Void>> tasks = new ArrayList<>(2);
+        if (heartRateFile != null) tasks.add(() -> { exportHeartRate(heartRateFile); return null; });
+        if (accelerationFile != null) tasks.add(() -> { exportAcceleration(accelerationFile); return null; });
+        ParallelExport.run(mProgress, tasks);
+    }
+
+    /**
+     * @param file gzipped if its name ends with {@link ExportFiles#GZIP_SUFFIX}
+     */
+    public void exportHeartRate(File file) throws IOException {
+        try (OutputStream out = ExportFiles.openOutput(file)) {
+            writeHeartRate(out);
+        }
+        Log.i(TAG, "exportHeartRate: exported to " + file);
+    }
+
+    /**
+     * @param file gzipped if its name ends with {@link ExportFiles#GZIP_SUFFIX}
+     */
+    public void exportAcceleration(File file) throws IOException {
+        try (OutputStream out = ExportFiles.openOutput(file)) {
+            writeAcceleration(out);
+        }
+        Log.i(TAG, "exportAcceleration: exported to " + file);
+    }
+
+    /**
+     * Writes heart rate samples to out, which is flushed but left open.
+     *
+     * @return number of rows written
+     */
+    long writeHeartRate(OutputStream out) throws IOException {
+        NumericCsvWriter writer = new NumericCsvWriter(out);
+        long rows = 0;
+        long timestamp = heartRateAfter(mWatermarks, mFrom);
+        final long to = heartRateTo(mDatabase, mWatermarks, mTo);
+        for (;;) {
+            mProgress.checkCancelled();
+            try (Cursor cursor = mDatabase.queryHeartRateAfter(timestamp, to, PAGE_SIZE)) {
+                if (rows == 0) writer.writeText(cursor.getColumnNames());
+                while (cursor.moveToNext()) {
+                    timestamp = cursor.getLong(0);
+                    writer.writeLong(timestamp);
+                    writer.writeInt(cursor.getInt(1));
+                    writer.endRow();
+                }
+                rows += cursor.getCount();
+                mProgress.add(cursor.getCount());
+                if (cursor.getCount() < PAGE_SIZE) break;
+            }
+        }
+        writer.flush();
+        if (mWatermarks != null) mWatermarks.setHeartRate(timestamp);
+        return rows;
+    }
+
+    /**
+     * Writes acceleration samples to out, which is flushed but left open.
+     *
+     * @return number of rows written
+     */
+    long writeAcceleration(OutputStream out) throws IOException {
+        NumericCsvWriter writer = new NumericCsvWriter(out);
+        long rows = 0;
+        final long[] after = accelerationAfter(mWatermarks, mFrom);
+        long timestamp = after[0], id = after[1];
+        for (;;) {
+            mProgress.checkCancelled();
+            try (Cursor cursor = mDatabase.queryAccelerationAfter(timestamp, id, mTo, PAGE_SIZE)) {
+                if (rows == 0) writer.writeText(cursor.getColumnNames());
+                while (cursor.moveToNext()) {
+                    id = cursor.getLong(0);
+                    timestamp = cursor.getLong(1);
+                    writer.writeLong(id);
+                    writer.writeLong(timestamp);
+                    writer.writeFloat(cursor.getFloat(2));
+                    writer.writeFloat(cursor.getFloat(3));
+                    writer.writeFloat(cursor.getFloat(4));
+                    writer.endRow();
+                }
+                rows += cursor.getCount();
+                mProgress.add(cursor.getCount());
+                if (cursor.getCount() < PAGE_SIZE) break;
+            }
+        }
+        writer.flush();
+        if (mWatermarks != null) mWatermarks.setAcceleration(timestamp, id);
+        return rows;
+    }
+
+}
@@ -0,0 +1,112 @@
+package in.wangziq.fitnessrecorder.export;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import in.wangziq.fitnessrecorder.persistance.DbTool;
+
+/**
+ * Exports a consistent snapshot of the database, see {@link DbTool#snapshot}, so that recording
+ * can go on meanwhile. Progress is counted in bytes of the snapshot.
+ * <p>
+ * Given {@link ExportWatermarks}, the snapshot starts where the last one ended, and the watermark
+ * is advanced to its end. That end is kept before the open heart rate run, and before samples
+ * that may still be committed with earlier times, so that the next snapshot misses none of them.
+ */
+public final class DbFileExporter {
+
+    private static final String TAG = DbFileExporter.class.getSimpleName();
+
+    private static final int CHUNK_SIZE = 1024 * 1024; // 1 MiB
+    // how long before its commit a sample may be timed: RR beats are counted back from the
+    // notification, accelerations back over their batch
+    private static final long MAX_STAMP_LAG = 10000; // ms
+
+    private final DbTool mDatabase;
+    private final ExportProgress mProgress;
+    private final File mTempDir;
+    private final ExportWatermarks mWatermarks;
+
+    /**
+     * @param tempDir where snapshots to be compressed are written first, e.g. the cache directory
+     * @param watermarks where to start from, or null to export the whole range
+     */
+    public DbFileExporter(DbTool database, ExportProgress progress, File tempDir,
+                          @Nullable ExportWatermarks watermarks) {
+        mDatabase = database;
+        mProgress = progress;
+        mTempDir = tempDir;
+        mWatermarks = watermarks;
+    }
+
+    /**
+     * @param destination gzipped if its name ends with {@link ExportFiles#GZIP_SUFFIX}
+     * @param from inclusive, epoch milliseconds
+     * @param to exclusive, epoch milliseconds
+     */
+    public void export(File destination, long from, long to) throws IOException {
+        if (mWatermarks != null) from = Math.max(from, mWatermarks.getDatabase());
+        to = committedTo(from, to);
+        if (destination.getName().endsWith(ExportFiles.GZIP_SUFFIX)) {
+            try (OutputStream out = ExportFiles.openOutput(destination)) {
+                writeDatabase(out, from, to);
+            }
+        } else {
+            if (destination.exists() && !destination.delete())
+                throw new IOException("failed to replace " + destination);
+            mDatabase.snapshot(destination, from, to);
+            mProgress.add(destination.length());
+            if (mWatermarks != null) mWatermarks.setDatabase(to);
+        }
+        Log.i(TAG, "export: exported to " + destination);
+    }
+
+    /**
+     * Streams a snapshot to out, which is flushed but left open.
+     *
+     * @return number of bytes written
+     */
+    long writeDatabase(OutputStream out, long from, long to) throws IOException {
+        if (mWatermarks != null) from = Math.max(from, mWatermarks.getDatabase());
+        to = committedTo(from, to);
+        final File snapshot = File.createTempFile("snapshot", ".db", mTempDir);
+        try {
+            if (!snapshot.delete()) throw new IOException("failed to prepare " + snapshot);
+            mDatabase.snapshot(snapshot, from, to);
+            final byte[] buffer = new byte[CHUNK_SIZE];
+            long size = 0;
+            try (InputStream in = new FileInputStream(snapshot)) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    mProgress.checkCancelled();
+                    out.write(buffer, 0, read);
+                    size += read;
+                    mProgress.add(read);
+                }
+            }
+            out.flush();
+            if (mWatermarks != null) mWatermarks.setDatabase(to);
+            return size;
+        } finally {
+            SQLiteDatabase.deleteDatabase(snapshot);
+        }
+    }
+
+    /**
+     * @return end of the snapshot, exclusive: to, or if incremental, before anything not committed yet
+     */
+    private long committedTo(long from, long to) {
+        if (mWatermarks == null) return to;
+        final long committed = Math.min(CsvExporter.heartRateTo(mDatabase, mWatermarks, to),
+                System.currentTimeMillis() - MAX_STAMP_LAG);
+        return Math.max(from, committed);
+    }
+
+}
@@ -0,0 +1,111 @@
+package in.wangziq.fitnessrecorder.export;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import in.wangziq.fitnessrecorder.persistance.DbTool;
+import in.wangziq.fitnessrecorder.persistance.FitnessDbHelper;
+
+/**
+ * Exports into a single zip file, deflated on the fly, with a {@link #MANIFEST} describing the
+ * entries. Tables are written one after the other, as entries of a zip can't be written in parallel.
+ */
+public final class ExportBundle {
+
+    private static final String TAG = ExportBundle.class.getSimpleName();
+
+    public static final String MANIFEST = "manifest.json";
+    public static final String HEART_RATE_ENTRY = "heartRate.csv";
+    public static final String ACCELERATION_ENTRY = "acceleration.csv";
+    public static final String DATABASE_ENTRY = FitnessDbHelper.DB_NAME;
+    private static final int MANIFEST_VERSION = 1;
+
+    private final CsvExporter mCsvExporter;
+    private final DbFileExporter mDbFileExporter;
+
+    /**
+     * @param tempDir where database snapshots are written before being added to the bundle
+     * @param watermarks where to start from, or null to export everything
+     * @param from inclusive, epoch milliseconds, of the CSV exports
+     * @param to exclusive, epoch milliseconds, of the CSV exports
+     */
+    public ExportBundle(DbTool database, ExportProgress progress, File tempDir,
+                        @Nullable ExportWatermarks watermarks, long from, long to) {
+        mCsvExporter = new CsvExporter(database, progress, watermarks, from, to);
+        mDbFileExporter = new DbFileExporter(database, progress, tempDir, watermarks);
+    }
+
+    public void exportCsv(File destination, boolean heartRate, boolean acceleration) throws IOException {
+        JSONArray entries = new JSONArray();
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(destination))) {
+            if (heartRate) {
+                zip.putNextEntry(new ZipEntry(HEART_RATE_ENTRY));
+                entries.put(describe(HEART_RATE_ENTRY, "csv", "rows", mCsvExporter.writeHeartRate(zip)));
+                zip.closeEntry();
+            }
+            if (acceleration) {
+                zip.putNextEntry(new ZipEntry(ACCELERATION_ENTRY));
+                entries.put(describe(ACCELERATION_ENTRY, "csv", "rows", mCsvExporter.writeAcceleration(zip)));
+                zip.closeEntry();
+            }
+            writeManifest(zip, entries);
+        }
+        Log.i(TAG, "exportCsv: exported to " + destination);
+    }
+
+    /**
+     * @param from inclusive, epoch milliseconds
+     * @param to exclusive, epoch milliseconds
+     */
+    public void exportDatabase(File destination, long from, long to) throws IOException {
+        JSONArray entries = new JSONArray();
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(destination))) {
+            zip.putNextEntry(new ZipEntry(DATABASE_ENTRY));
+            entries.put(describe(DATABASE_ENTRY, "sqlite", "bytes", mDbFileExporter.writeDatabase(zip, from, to)));
+            zip.closeEntry();
+            writeManifest(zip, entries);
+        }
+        Log.i(TAG, "exportDatabase: exported to " + destination);
+    }
+
+    private static JSONObject describe(String name, String format, String unit, long size) throws IOException {
+        try {
+            return new JSONObject()
+                    .put("name", name)
+                    .put("format", format)
+                    .put(unit, size);
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void writeManifest(ZipOutputStream zip, JSONArray entries) throws IOException {
+        final String manifest;
+        try {
+            manifest = new JSONObject()
+                    .put("version", MANIFEST_VERSION)
+                    .put("schemaVersion", FitnessDbHelper.VERSION)
+                    .put("created", System.currentTimeMillis())
+                    .put("timeUnit", "epoch milliseconds")
+                    .put("entries", entries)
+                    .toString(2);
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        zip.putNextEntry(new ZipEntry(MANIFEST));
+        zip.write(manifest.getBytes(StandardCharsets.UTF_8));
+        zip.closeEntry();
+    }
+
+}
@@ -0,0 +1,36 @@
+package in.wangziq.fitnessrecorder.export;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Naming of exported files, and the streams they are written through.
+ */
+public final class ExportFiles {
+
+    public static final String GZIP_SUFFIX = ".gz";
+    public static final String ZIP_SUFFIX = ".zip";
+
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+    private ExportFiles() {}
+
+    /**
+     * Opens file for writing, compressing it on the fly if its name ends with {@link #GZIP_SUFFIX},
+     * so that the uncompressed data is never written to storage.
+     */
+    public static OutputStream openOutput(File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        if (!file.getName().endsWith(GZIP_SUFFIX)) return out;
+        try {
+            return new GZIPOutputStream(out, GZIP_BUFFER_SIZE);
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+}
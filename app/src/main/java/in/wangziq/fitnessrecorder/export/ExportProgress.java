@@ -0,0 +1,51 @@
+package in.wangziq.fitnessrecorder.export;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of one export, shared by the threads doing it and the one reporting it.
+ * The unit of work (rows or bytes) depends on the exporter.
+ */
+public final class ExportProgress {
+
+    private final long mStartTime = SystemClock.elapsedRealtime();
+    private final AtomicLong mDone = new AtomicLong();
+    private volatile boolean mCancelled;
+
+    public void add(long done) {
+        mDone.addAndGet(done);
+    }
+
+    public long getDone() {
+        return mDone.get();
+    }
+
+    /**
+     * @return average throughput since the export started, per second
+     */
+    public double getRate() {
+        final long elapsed = SystemClock.elapsedRealtime() - mStartTime;
+        return elapsed <= 0 ? 0 : mDone.get() * 1000.0 / elapsed;
+    }
+
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Called by exporters between chunks of work.
+     *
+     * @throws CancellationException if the export was cancelled
+     */
+    void checkCancelled() {
+        if (mCancelled) throw new CancellationException("export cancelled");
+    }
+
+}
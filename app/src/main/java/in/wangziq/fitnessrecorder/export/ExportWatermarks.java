@@ -0,0 +1,82 @@
+package in.wangziq.fitnessrecorder.export;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import in.wangziq.fitnessrecorder.config.Constants;
+
+/**
+ * Where the last incremental export stopped, per table, so that the next one only writes what
+ * was recorded since. CSV exports keep the keyset of the last row written; database snapshots
+ * keep the end of their time range. Nothing exported yet is Long.MIN_VALUE.
+ * <p>
+ * Exporters advance the watermarks as they go; they are only persisted by {@link #save()},
+ * once the whole export succeeded.
+ */
+public final class ExportWatermarks {
+
+    private final SharedPreferences mSettings;
+    private volatile long mHeartRate;
+    private volatile long mAccelerationTimestamp, mAccelerationId;
+    private volatile long mDatabase;
+
+    private ExportWatermarks(SharedPreferences settings) {
+        mSettings = settings;
+        mHeartRate = settings.getLong(Constants.Settings.WATERMARK_HEART_RATE, Long.MIN_VALUE);
+        mAccelerationTimestamp = settings.getLong(Constants.Settings.WATERMARK_ACCELERATION_TIMESTAMP, Long.MIN_VALUE);
+        mAccelerationId = settings.getLong(Constants.Settings.WATERMARK_ACCELERATION_ID, Long.MIN_VALUE);
+        mDatabase = settings.getLong(Constants.Settings.WATERMARK_DATABASE, Long.MIN_VALUE);
+    }
+
+    public static ExportWatermarks load(Context context) {
+        return new ExportWatermarks(context.getSharedPreferences(Constants.Settings.EXPORT_WATERMARKS, Context.MODE_PRIVATE));
+    }
+
+    public void save() {
+        mSettings.edit()
+                .putLong(Constants.Settings.WATERMARK_HEART_RATE, mHeartRate)
+                .putLong(Constants.Settings.WATERMARK_ACCELERATION_TIMESTAMP, mAccelerationTimestamp)
+                .putLong(Constants.Settings.WATERMARK_ACCELERATION_ID, mAccelerationId)
+                .putLong(Constants.Settings.WATERMARK_DATABASE, mDatabase)
+                .apply();
+    }
+
+    /**
+     * @return timestamp of the last heart rate exported
+     */
+    public long getHeartRate() {
+        return mHeartRate;
+    }
+
+    void setHeartRate(long timestamp) {
+        mHeartRate = timestamp;
+    }
+
+    /**
+     * @return timestamp of the last acceleration exported, see also {@link #getAccelerationId()}
+     */
+    public long getAccelerationTimestamp() {
+        return mAccelerationTimestamp;
+    }
+
+    public long getAccelerationId() {
+        return mAccelerationId;
+    }
+
+    void setAcceleration(long timestamp, long id) {
+        mAccelerationTimestamp = timestamp;
+        mAccelerationId = id;
+    }
+
+    /**
+     * @return end of the time range of the last database snapshot exported, exclusive
+     */
+    public long getDatabase() {
+        return mDatabase;
+    }
+
+    void setDatabase(long to) {
+        mDatabase = to;
+    }
+
+}
@@ -0,0 +1,213 @@
+package in.wangziq.fitnessrecorder.export;
+
+import com.opencsv.CSVWriter;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes CSV rows of numbers, formatting primitives straight into a reused byte buffer, so that
+ * no object is allocated per row. Numeric fields are never quoted. Rows with free text (e.g. the
+ * header) still go through opencsv with {@link #writeText(String[])}.
+ * <p>
+ * By default floats are written with as few decimals as read back to the same float, the value
+ * {@link Float#toString(float)} has, though never in exponent notation unless too large or too small.
+ *
+ * <pre>
+ *     writer.writeLong(timestamp);
+ *     writer.writeInt(rate);
+ *     writer.endRow();
+ * </pre>
+ */
+public final class NumericCsvWriter implements Closeable, Flushable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // longest field: "-9223372036854775808", or a float with its fraction
+    private static final int MAX_FIELD_LENGTH = 48;
+    private static final int MAX_DECIMALS = 9;
+    private static final long[] POWERS_OF_TEN = new long[MAX_DECIMALS + 1];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; ++i) POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+    // above this, scaled floats would no longer fit in a long
+    private static final double MAX_SCALED = 1e17;
+
+    /** Decimals of floats by default: as few as keep the value exact. */
+    public static final int SHORTEST = 0;
+
+    private final OutputStream mOut;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private final byte[] mDigits = new byte[20];
+    private final int mDecimals;
+    private int mPosition;
+    private boolean mRowStarted;
+    private CSVWriter mTextWriter;
+
+    public NumericCsvWriter(OutputStream out) {
+        this(out, SHORTEST);
+    }
+
+    /**
+     * @param decimals number of decimals floats are rounded to, trailing zeros are dropped,
+     *                 or {@link #SHORTEST}
+     */
+    public NumericCsvWriter(OutputStream out, int decimals) {
+        if (decimals != SHORTEST && (decimals < 1 || decimals > MAX_DECIMALS))
+            throw new IllegalArgumentException("decimals must be in [1, " + MAX_DECIMALS + "]: " + decimals);
+        mOut = out;
+        mDecimals = decimals;
+    }
+
+    /**
+     * Writes a whole row of free text through opencsv, quoted as {@link CSVWriter} does.
+     */
+    public void writeText(String[] row) throws IOException {
+        if (mRowStarted) throw new IllegalStateException("a numeric row is not ended");
+        flushBuffer();
+        if (mTextWriter == null)
+            mTextWriter = new CSVWriter(new OutputStreamWriter(mOut, StandardCharsets.UTF_8));
+        mTextWriter.writeNext(row);
+        mTextWriter.flush();
+    }
+
+    public void writeInt(int value) throws IOException {
+        writeLong(value);
+    }
+
+    public void writeLong(long value) throws IOException {
+        startField();
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            mBuffer[mPosition++] = '-';
+            value = -value;
+        }
+        appendDigits(value, 1);
+    }
+
+    public void writeFloat(float value) throws IOException {
+        if (mDecimals != SHORTEST) {
+            writeDouble(value);
+            return;
+        }
+        startField();
+        // rare enough to allocate
+        if (!writeShortest(value, true)) writeAscii(Float.toString(value));
+    }
+
+    public void writeDouble(double value) throws IOException {
+        startField();
+        if (mDecimals == SHORTEST) {
+            if (!writeShortest(value, false)) writeAscii(Double.toString(value));
+        } else if (!isScalable(value, mDecimals)) {
+            writeAscii(Double.toString(value));
+        } else {
+            writeFixed(value, mDecimals);
+        }
+    }
+
+    /**
+     * Writes value with the fewest decimals that read back as the same float (or double).
+     *
+     * @return false, writing nothing, if it takes more than {@link #MAX_DECIMALS}
+     */
+    private boolean writeShortest(double value, boolean isFloat) {
+        for (int decimals = 1; decimals <= MAX_DECIMALS; ++decimals) {
+            if (!isScalable(value, decimals)) return false;
+            final long scale = POWERS_OF_TEN[decimals];
+            final double read = (double) Math.round(value * scale) / scale;
+            if (isFloat ? (float) read == (float) value : read == value) {
+                writeFixed(value, decimals);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isScalable(double value, int decimals) {
+        return !Double.isNaN(value) && !Double.isInfinite(value)
+                && Math.abs(value) * POWERS_OF_TEN[decimals] < MAX_SCALED;
+    }
+
+    private void writeFixed(double value, int decimals) {
+        final long scale = POWERS_OF_TEN[decimals];
+        long scaled = Math.round(value * scale);
+        if (scaled < 0) {
+            mBuffer[mPosition++] = '-';
+            scaled = -scaled;
+        }
+        appendDigits(scaled / scale, 1);
+        mBuffer[mPosition++] = '.';
+        long fraction = scaled % scale;
+        while (decimals > 1 && fraction % 10 == 0) {
+            fraction /= 10;
+            --decimals;
+        }
+        appendDigits(fraction, decimals);
+    }
+
+    /**
+     * Writes an empty field, e.g. for a missing value.
+     */
+    public void writeEmpty() throws IOException {
+        startField();
+    }
+
+    public void endRow() throws IOException {
+        if (mPosition + 1 > BUFFER_SIZE) flushBuffer();
+        mBuffer[mPosition++] = '\n';
+        mRowStarted = false;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            mOut.close();
+        }
+    }
+
+    private void startField() throws IOException {
+        if (mPosition + MAX_FIELD_LENGTH + 1 > BUFFER_SIZE) flushBuffer();
+        if (mRowStarted) mBuffer[mPosition++] = ',';
+        mRowStarted = true;
+    }
+
+    /**
+     * Appends a non-negative value, left-padded with zeros to at least minLength digits.
+     */
+    private void appendDigits(long value, int minLength) {
+        int length = 0;
+        do {
+            mDigits[length++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (length < minLength) mDigits[length++] = '0';
+        while (length > 0) mBuffer[mPosition++] = mDigits[--length];
+    }
+
+    private void writeAscii(String s) {
+        for (int i = 0; i < s.length(); ++i) mBuffer[mPosition++] = (byte) s.charAt(i);
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mPosition == 0) return;
+        mOut.write(mBuffer, 0, mPosition);
+        mPosition = 0;
+    }
+
+}
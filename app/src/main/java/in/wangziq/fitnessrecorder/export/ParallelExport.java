@@ -0,0 +1,59 @@
+package in.wangziq.fitnessrecorder.export;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the exports of several tables at once, each on its own thread, so that it takes about as
+ * long as the largest one. If one fails or is cancelled, the others are cancelled too, and have
+ * stopped writing when this returns.
+ */
+final class ParallelExport {
+
+    // the others stop at their next page
+    private static final long STOP_TIMEOUT = 10; // s
+
+    private ParallelExport() {}
+
+    static void run(ExportProgress progress, List<Callable<Void>> tasks) throws IOException {
+        if (tasks.isEmpty()) return;
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        try {
+            // results are taken as they finish, so that a failure is noticed at once
+            CompletionService<Void> completion = new ExecutorCompletionService<>(executor);
+            for (Callable<Void> task: tasks) completion.submit(task);
+            for (int i = 0; i < tasks.size(); ++i) {
+                try {
+                    completion.take().get();
+                } catch (ExecutionException e) {
+                    // stops the others between pages
+                    progress.cancel();
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof IOException) throw (IOException) cause;
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    throw new IOException(cause);
+                } catch (InterruptedException e) {
+                    progress.cancel();
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException("export interrupted");
+                }
+            }
+        } finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(STOP_TIMEOUT, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+}
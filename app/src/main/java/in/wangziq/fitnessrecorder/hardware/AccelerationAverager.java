@@ -0,0 +1,29 @@
+package in.wangziq.fitnessrecorder.hardware;
+
+/**
+ * Reduces each batch to its mean, timestamped with its last sample: one sample per notification,
+ * as {@link MiBand2} used to deliver them.
+ */
+public final class AccelerationAverager implements MiBand2.AccelerationBatchConsumer {
+
+    private final MiBand2.AccelerationConsumer mDownstream;
+
+    public AccelerationAverager(MiBand2.AccelerationConsumer downstream) {
+        mDownstream = downstream;
+    }
+
+    @Override
+    public void accept(AccelerationBatch batch) {
+        final int n = batch.size();
+        if (n == 0) return;
+        final float[] xs = batch.getX(), ys = batch.getY(), zs = batch.getZ();
+        float x = 0, y = 0, z = 0;
+        for (int i = 0; i < n; ++i) {
+            x += xs[i];
+            y += ys[i];
+            z += zs[i];
+        }
+        mDownstream.accept(batch.getTimestamps()[n - 1], x / n, y / n, z / n);
+    }
+
+}
@@ -0,0 +1,64 @@
+package in.wangziq.fitnessrecorder.hardware;
+
+/**
+ * Acceleration samples decoded from one sensor notification, in raw sensor units, with the
+ * timestamp of each sample. The same batch is reused for every notification: consumers copy what
+ * they keep before returning, as {@code DbTool.insertAccelerationBatch} does.
+ */
+public final class AccelerationBatch {
+
+    private long[] mTimestamps;
+    private float[] mX, mY, mZ;
+    private int mSize;
+
+    AccelerationBatch(int capacity) {
+        mTimestamps = new long[capacity];
+        mX = new float[capacity];
+        mY = new float[capacity];
+        mZ = new float[capacity];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return epoch milliseconds, valid up to {@link #size()}
+     */
+    public long[] getTimestamps() {
+        return mTimestamps;
+    }
+
+    public float[] getX() {
+        return mX;
+    }
+
+    public float[] getY() {
+        return mY;
+    }
+
+    public float[] getZ() {
+        return mZ;
+    }
+
+    /**
+     * Empties the batch, making room for at least capacity samples.
+     */
+    void reset(int capacity) {
+        mSize = 0;
+        if (capacity <= mX.length) return;
+        mTimestamps = new long[capacity];
+        mX = new float[capacity];
+        mY = new float[capacity];
+        mZ = new float[capacity];
+    }
+
+    void add(long timestamp, float x, float y, float z) {
+        mTimestamps[mSize] = timestamp;
+        mX[mSize] = x;
+        mY[mSize] = y;
+        mZ[mSize] = z;
+        ++mSize;
+    }
+
+}
@@ -0,0 +1,46 @@
+package in.wangziq.fitnessrecorder.hardware;
+
+import in.wangziq.fitnessrecorder.utils.BytesUtil;
+
+/**
+ * Notices of the auth characteristic: a 3-byte header, one of {@link Protocol.Response}, then a
+ * body, e.g. the random number to encrypt. The body is left in the notification, not copied.
+ */
+final class AuthNoticeDecoder {
+
+    static final int HEADER_LENGTH = 3;
+
+    private int mHeader;
+    private int mBodyLength;
+
+    /**
+     * @return false if too short to be a notice
+     */
+    boolean decode(byte[] data) {
+        if (data.length < HEADER_LENGTH) return false;
+        mHeader = BytesUtil.uint8(data, 0) << 16 | BytesUtil.uint8(data, 1) << 8 | BytesUtil.uint8(data, 2);
+        mBodyLength = data.length - HEADER_LENGTH;
+        return true;
+    }
+
+    int getHeader() {
+        return mHeader;
+    }
+
+    /**
+     * The body starts at {@link #HEADER_LENGTH} of the decoded notification.
+     */
+    int getBodyLength() {
+        return mBodyLength;
+    }
+
+    /**
+     * @return false, copying nothing, unless the body has exactly destination's length
+     */
+    boolean copyBody(byte[] data, byte[] destination) {
+        if (mBodyLength != destination.length) return false;
+        System.arraycopy(data, HEADER_LENGTH, destination, 0, mBodyLength);
+        return true;
+    }
+
+}
@@ -0,0 +1,47 @@
+package in.wangziq.fitnessrecorder.hardware;
+
+/**
+ * The GATT operations {@link MiBand2} needs, on one device. Operations return at once and report
+ * through their callbacks, which may run on any thread.
+ *
+ * @see FastBleTransport for a real band
+ * @see SimulatedBand for a band in the same process
+ */
+public interface BleTransport {
+
+    interface ConnectCallback {
+        void onConnectSuccess();
+        void onConnectFail(String error);
+        /**
+         * @param active true if asked for with {@link #disconnect()}
+         */
+        void onDisConnected(boolean active);
+    }
+
+    interface NotifyCallback {
+        void onNotifySuccess();
+        void onNotifyFailure(String error);
+        void onCharacteristicChanged(byte[] data);
+    }
+
+    interface WriteCallback {
+        void onWriteSuccess(byte[] justWrite);
+        void onWriteFailure(String error);
+    }
+
+    String getMacAddress();
+
+    void connect(ConnectCallback callback);
+
+    void disconnect();
+
+    void notify(String service, String characteristic, NotifyCallback callback);
+
+    /**
+     * @return true if notifications are off
+     */
+    boolean stopNotify(String service, String characteristic);
+
+    void write(String service, String characteristic, byte[] data, WriteCallback callback);
+
+}
@@ -0,0 +1,411 @@
+package in.wangziq.fitnessrecorder.hardware;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import in.wangziq.fitnessrecorder.utils.TimerUtil;
+
+/**
+ * Serializes the GATT operations on one device, which Android rejects while another is in flight.
+ * Each operation is issued as soon as the previous one completes, fails or times out. A write of a
+ * {@link #coalesce coalesced} command joins an identical one still waiting, instead of being queued
+ * again. Connecting and disconnecting are not queued, and notifications pass straight through.
+ * An operation timing out is reported as failed, but holds the queue until it calls back late, as
+ * the device may still be busy with it and would reject the next ones. Only after Android's own GATT
+ * timeout is the device disconnected, failing everything waiting.
+ */
+public final class CommandQueue implements BleTransport {
+
+    private static final String TAG = CommandQueue.class.getSimpleName();
+
+    private static final int OPERATION_TIMEOUT = 3000; // ms, without a callback
+    private static final int GATT_TIMEOUT = 30000; // ms, after which Android itself gives up
+
+    private final BleTransport mTransport;
+    private final List<byte[]> mCoalesced = new ArrayList<>();
+    private final ArrayDeque<Operation> mPending = new ArrayDeque<>();
+    private Operation mInFlight;
+    // set while delivering a callback, the operation in flight can't complete on that thread until it returns
+    private final ThreadLocal<Boolean> mDispatching = new ThreadLocal<>();
+
+    private int mMaxDepth;
+    private long mCompletedCount, mCoalescedCount, mFailedCount, mTimedOutCount;
+    private double mQueueLatencySum, mRunLatencySum, mMaxLatency; // ms
+
+    public CommandQueue(BleTransport transport) {
+        mTransport = transport;
+    }
+
+    /**
+     * @param command written the same way however often it's queued, e.g. a keep-alive
+     */
+    public synchronized CommandQueue coalesce(byte[] command) {
+        mCoalesced.add(command);
+        return this;
+    }
+
+    @Override
+    public String getMacAddress() {
+        return mTransport.getMacAddress();
+    }
+
+    @Override
+    public void connect(ConnectCallback callback) {
+        mTransport.connect(new ConnectCallback() {
+            @Override public void onConnectSuccess() {
+                callback.onConnectSuccess();
+            }
+            @Override public void onConnectFail(String error) {
+                failAll("connect failed");
+                callback.onConnectFail(error);
+            }
+            @Override public void onDisConnected(boolean active) {
+                failAll("disconnected");
+                callback.onDisConnected(active);
+            }
+        });
+    }
+
+    @Override
+    public void disconnect() {
+        mTransport.disconnect();
+        failAll("disconnected");
+    }
+
+    @Override
+    public void notify(String service, String characteristic, NotifyCallback callback) {
+        enqueue(new Notify(service, characteristic, callback));
+    }
+
+    /**
+     * Waits for its turn, unless called back from the transport, in which case it is only queued.
+     *
+     * @return true if notifications are off, or queued to be turned off
+     */
+    @Override
+    public boolean stopNotify(String service, String characteristic) {
+        final StopNotify operation = new StopNotify(service, characteristic);
+        final int depth = enqueue(operation);
+        if (operation.mDone.getCount() == 0) return operation.mResult;
+        if (Boolean.TRUE.equals(mDispatching.get())) {
+            Log.w(TAG, "stopNotify: queued behind " + depth + " operations, not waiting on the callback thread");
+            return true;
+        }
+        try {
+            if (!operation.mDone.await((long) depth * OPERATION_TIMEOUT, TimeUnit.MILLISECONDS)) return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return operation.mResult;
+    }
+
+    @Override
+    public void write(String service, String characteristic, byte[] data, WriteCallback callback) {
+        synchronized (this) {
+            if (isCoalesced(data)) {
+                for (Operation pending : mPending) {
+                    if (pending instanceof Write && ((Write) pending).joins(service, characteristic, data)) {
+                        ((Write) pending).mCallbacks.add(callback);
+                        ++mCoalescedCount;
+                        return;
+                    }
+                }
+            }
+        }
+        enqueue(new Write(service, characteristic, data, callback));
+    }
+
+    /**
+     * @return operations waiting or in flight
+     */
+    public synchronized int getDepth() {
+        return mPending.size() + (mInFlight == null ? 0 : 1);
+    }
+
+    public synchronized int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    /**
+     * @return operations completed successfully
+     */
+    public synchronized long getCompletedCount() {
+        return mCompletedCount;
+    }
+
+    /**
+     * @return writes which joined an identical one instead of being queued
+     */
+    public synchronized long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /**
+     * @return operations failed, including timed out ones
+     */
+    public synchronized long getFailedCount() {
+        return mFailedCount;
+    }
+
+    public synchronized long getTimedOutCount() {
+        return mTimedOutCount;
+    }
+
+    /**
+     * @return mean ms from queued to issued, or 0
+     */
+    public synchronized double getMeanQueueLatency() {
+        final long count = mCompletedCount + mFailedCount;
+        return count == 0 ? 0 : mQueueLatencySum / count;
+    }
+
+    /**
+     * @return mean ms from issued to completed, or 0
+     */
+    public synchronized double getMeanRunLatency() {
+        final long count = mCompletedCount + mFailedCount;
+        return count == 0 ? 0 : mRunLatencySum / count;
+    }
+
+    /**
+     * @return longest ms from queued to completed
+     */
+    public synchronized double getMaxLatency() {
+        return mMaxLatency;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("depth %d (max %d), %d completed, %d coalesced, %d failed (%d timed out), "
+                        + "mean latency %.1f ms queued + %.1f ms running, max %.1f ms",
+                getDepth(), mMaxDepth, mCompletedCount, mCoalescedCount, mFailedCount, mTimedOutCount,
+                getMeanQueueLatency(), getMeanRunLatency(), mMaxLatency);
+    }
+
+    private boolean isCoalesced(byte[] data) {
+        for (byte[] command : mCoalesced) if (Arrays.equals(command, data)) return true;
+        return false;
+    }
+
+    // returns the depth, this operation included
+    private int enqueue(Operation operation) {
+        final int depth;
+        synchronized (this) {
+            mPending.add(operation);
+            depth = getDepth();
+            mMaxDepth = Math.max(mMaxDepth, depth);
+        }
+        issueNext();
+        return depth;
+    }
+
+    private void issueNext() {
+        final Operation next;
+        synchronized (this) {
+            if (mInFlight != null || mPending.isEmpty()) return;
+            next = mInFlight = mPending.poll();
+            next.mIssued = now();
+            next.mTimeout = TimerUtil.doAfter(OPERATION_TIMEOUT, () -> timeOut(next));
+        }
+        next.issue();
+    }
+
+    // reported as failed, but still in flight until it calls back
+    private void timeOut(Operation operation) {
+        synchronized (this) {
+            if (mInFlight != operation) return;
+            operation.mTimedOut = true;
+            ++mFailedCount;
+            ++mTimedOutCount;
+            operation.mTimeout = TimerUtil.doAfter(GATT_TIMEOUT - OPERATION_TIMEOUT, () -> giveUp(operation));
+        }
+        Log.w(TAG, "timeOut: " + operation + " timed out, waiting for its callback");
+        operation.fail("timeout");
+    }
+
+    private void giveUp(Operation operation) {
+        synchronized (this) {
+            if (mInFlight != operation) return;
+        }
+        Log.e(TAG, "giveUp: no callback of " + operation + ", disconnecting");
+        mTransport.disconnect();
+        failAll("no callback, disconnected");
+    }
+
+    /**
+     * @return false if nothing is to be reported: the operation isn't in flight anymore, or was
+     *         already reported as timed out
+     */
+    private boolean finish(Operation operation, boolean success) {
+        final boolean report;
+        synchronized (this) {
+            if (mInFlight != operation) return false;
+            mInFlight = null;
+            operation.mTimeout.cancel();
+            final double finished = now();
+            mQueueLatencySum += operation.mIssued - operation.mQueued;
+            mRunLatencySum += finished - operation.mIssued;
+            mMaxLatency = Math.max(mMaxLatency, finished - operation.mQueued);
+            report = !operation.mTimedOut;
+            if (!report) Log.i(TAG, "finish: " + operation + " called back after its timeout");
+            else if (success) ++mCompletedCount;
+            else ++mFailedCount;
+        }
+        issueNext();
+        return report;
+    }
+
+    private void failAll(String error) {
+        final List<Operation> failed = new ArrayList<>();
+        synchronized (this) {
+            if (mInFlight != null) {
+                mInFlight.mTimeout.cancel();
+                // already reported if timed out
+                if (!mInFlight.mTimedOut) failed.add(mInFlight);
+                mInFlight = null;
+            }
+            failed.addAll(mPending);
+            mPending.clear();
+            mFailedCount += failed.size();
+        }
+        if (!failed.isEmpty()) Log.i(TAG, "failAll: " + failed.size() + " operations dropped, " + error);
+        for (Operation operation : failed) operation.fail(error);
+    }
+
+    private static double now() {
+        return System.nanoTime() / 1e6;
+    }
+
+    private abstract class Operation {
+        final String mService, mCharacteristic;
+        final double mQueued = now();
+        double mIssued;
+        TimerUtil.Handle mTimeout;
+        boolean mTimedOut;
+
+        Operation(String service, String characteristic) {
+            mService = service;
+            mCharacteristic = characteristic;
+        }
+
+        abstract void issue();
+
+        abstract void fail(String error);
+
+        // callbacks are delivered through here, so that calls back into the queue know where they come from
+        void dispatch(Runnable callback) {
+            final Boolean dispatching = mDispatching.get();
+            mDispatching.set(true);
+            try {
+                callback.run();
+            } finally {
+                mDispatching.set(dispatching);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + " " + mCharacteristic;
+        }
+    }
+
+    private final class Write extends Operation {
+        final byte[] mData;
+        final List<WriteCallback> mCallbacks = new ArrayList<>(1);
+
+        Write(String service, String characteristic, byte[] data, WriteCallback callback) {
+            super(service, characteristic);
+            mData = data;
+            mCallbacks.add(callback);
+        }
+
+        boolean joins(String service, String characteristic, byte[] data) {
+            return mService.equals(service) && mCharacteristic.equals(characteristic) && Arrays.equals(mData, data);
+        }
+
+        @Override
+        void issue() {
+            mTransport.write(mService, mCharacteristic, mData, new WriteCallback() {
+                @Override public void onWriteSuccess(byte[] justWrite) {
+                    if (!finish(Write.this, true)) return;
+                    dispatch(() -> { for (WriteCallback callback : callbacks()) callback.onWriteSuccess(justWrite); });
+                }
+                @Override public void onWriteFailure(String error) {
+                    if (finish(Write.this, false)) fail(error);
+                }
+            });
+        }
+
+        @Override
+        void fail(String error) {
+            dispatch(() -> { for (WriteCallback callback : callbacks()) callback.onWriteFailure(error); });
+        }
+
+        // no more joins once issued, but copy anyway as joining is under the queue's lock
+        private List<WriteCallback> callbacks() {
+            synchronized (CommandQueue.this) {
+                return new ArrayList<>(mCallbacks);
+            }
+        }
+    }
+
+    private final class Notify extends Operation {
+        final NotifyCallback mCallback;
+
+        Notify(String service, String characteristic, NotifyCallback callback) {
+            super(service, characteristic);
+            mCallback = callback;
+        }
+
+        @Override
+        void issue() {
+            mTransport.notify(mService, mCharacteristic, new NotifyCallback() {
+                @Override public void onNotifySuccess() {
+                    if (finish(Notify.this, true)) dispatch(mCallback::onNotifySuccess);
+                }
+                @Override public void onNotifyFailure(String error) {
+                    if (finish(Notify.this, false)) fail(error);
+                }
+                @Override public void onCharacteristicChanged(byte[] data) {
+                    dispatch(() -> mCallback.onCharacteristicChanged(data));
+                }
+            });
+        }
+
+        @Override
+        void fail(String error) {
+            dispatch(() -> mCallback.onNotifyFailure(error));
+        }
+    }
+
+    // completes as soon as issued, the transport doesn't call back
+    private final class StopNotify extends Operation {
+        final CountDownLatch mDone = new CountDownLatch(1);
+        volatile boolean mResult;
+
+        StopNotify(String service, String characteristic) {
+            super(service, characteristic);
+        }
+
+        @Override
+        void issue() {
+            mResult = mTransport.stopNotify(mService, mCharacteristic);
+            mDone.countDown();
+            finish(this, mResult);
+        }
+
+        @Override
+        void fail(String error) {
+            mResult = false;
+            mDone.countDown();
+        }
+    }
+
+}
@@ -0,0 +1,145 @@
+package in.wangziq.fitnessrecorder.hardware;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import in.wangziq.fitnessrecorder.utils.TimerUtil;
+
+/**
+ * The steps of connecting to the band, run one after the other. Each step starts a BLE operation
+ * and is completed by its callback through {@link #complete(Step, boolean)}, which starts the next
+ * step right away. A step not completed within its timeout fails the handshake.
+ *
+ * Callbacks of steps that are no longer current (late, or after a timeout) are ignored.
+ */
+final class ConnectHandshake {
+
+    private static final String TAG = ConnectHandshake.class.getSimpleName();
+
+    enum Step { BLE_CONNECT, AUTH_NOTIFY_ON, SEND_KEY, REQUEST_RAND, SEND_ENCRYPTED_RAND, AUTH_NOTIFY_OFF }
+
+    interface Listener {
+        /**
+         * Called with the handshake locked, must not block.
+         *
+         * @param failedStep null on success
+         * @param elapsed from {@link #start()}, in milliseconds
+         */
+        void onFinished(@Nullable Step failedStep, long elapsed);
+    }
+
+    private static final class Stage {
+        final Step mStep;
+        final int mTimeout;
+        final Runnable mAction;
+
+        Stage(Step step, int timeout, Runnable action) {
+            mStep = step;
+            mTimeout = timeout;
+            mAction = action;
+        }
+    }
+
+    private final List<Stage> mStages = new ArrayList<>();
+    private final Listener mListener;
+    private int mCurrent = -1;
+    private boolean mFinished;
+    private long mStartTime, mStepStartTime;
+    private TimerUtil.Handle mTimeout;
+
+    ConnectHandshake(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @param timeout in milliseconds
+     * @param action starts the step, must not block
+     */
+    ConnectHandshake then(Step step, int timeout, Runnable action) {
+        mStages.add(new Stage(step, timeout, action));
+        return this;
+    }
+
+    void start() {
+        final Runnable action;
+        synchronized (this) {
+            if (mCurrent >= 0) throw new IllegalStateException("already started");
+            mStartTime = now();
+            mCurrent = 0;
+            action = beginStep();
+        }
+        action.run();
+    }
+
+    /**
+     * Called from BLE callbacks: ends the step if it's the current one and starts the next.
+     */
+    void complete(Step step, boolean success) {
+        final Runnable action;
+        synchronized (this) {
+            if (mFinished || mCurrent < 0 || mStages.get(mCurrent).mStep != step) {
+                Log.d(TAG, "complete: ignored " + step + (success ? " success" : " failure"));
+                return;
+            }
+            endStep(success ? "done" : "failed");
+            if (!success) {
+                finish(step);
+                return;
+            }
+            if (++mCurrent == mStages.size()) {
+                finish(null);
+                return;
+            }
+            action = beginStep();
+        }
+        action.run();
+    }
+
+    /**
+     * Fails the current step, e.g. when the connection is lost. Does nothing once finished.
+     */
+    synchronized void cancel() {
+        if (mFinished || mCurrent < 0) return;
+        endStep("cancelled");
+        finish(mStages.get(mCurrent).mStep);
+    }
+
+    synchronized boolean isFinished() {
+        return mFinished;
+    }
+
+    private Runnable beginStep() {
+        final Stage stage = mStages.get(mCurrent);
+        mStepStartTime = now();
+        mTimeout = TimerUtil.doAfter(stage.mTimeout, () -> onTimeout(stage.mStep));
+        Log.i(TAG, "beginStep: " + stage.mStep);
+        return stage.mAction;
+    }
+
+    private synchronized void onTimeout(Step step) {
+        if (mFinished || mStages.get(mCurrent).mStep != step) return;
+        endStep("timed out");
+        finish(step);
+    }
+
+    private void endStep(String outcome) {
+        mTimeout.cancel();
+        mTimeout = null;
+        Log.i(TAG, "endStep: " + mStages.get(mCurrent).mStep + " " + outcome + " in "
+                + (now() - mStepStartTime) + " ms");
+    }
+
+    // the monotonic clock of the JVM, so that the handshake can run against a SimulatedBand off a device
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private void finish(@Nullable Step failedStep) {
+        mFinished = true;
+        mListener.onFinished(failedStep, now() - mStartTime);
+    }
+
+}
@@ -0,0 +1,92 @@
+package in.wangziq.fitnessrecorder.hardware;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothGatt;
+import android.support.annotation.Nullable;
+
+import com.clj.fastble.BleManager;
+import com.clj.fastble.callback.BleGattCallback;
+import com.clj.fastble.callback.BleNotifyCallback;
+import com.clj.fastble.callback.BleWriteCallback;
+import com.clj.fastble.data.BleDevice;
+import com.clj.fastble.exception.BleException;
+
+/**
+ * A band over Bluetooth, through FastBle. Its callbacks run on the main thread.
+ */
+public final class FastBleTransport implements BleTransport {
+
+    private final String mMacAddress;
+    private volatile BleDevice mBleDevice;
+
+    public FastBleTransport(@Nullable String macAddress) {
+        mMacAddress = macAddress;
+        mBleDevice = macAddress == null
+                ? null
+                : new BleDevice(BluetoothAdapter.getDefaultAdapter().getRemoteDevice(macAddress));
+    }
+
+    @Override
+    public String getMacAddress() {
+        return mBleDevice == null ? mMacAddress : mBleDevice.getMac();
+    }
+
+    @Override
+    public void connect(ConnectCallback callback) {
+        BleManager.getInstance().connect(mMacAddress, new BleGattCallback() {
+            @Override public void onStartConnect() {}
+            @Override public void onConnectFail(BleDevice bleDevice, BleException exception) {
+                callback.onConnectFail(describe(exception));
+            }
+            @Override public void onConnectSuccess(BleDevice bleDevice, BluetoothGatt gatt, int status) {
+                mBleDevice = bleDevice;
+                callback.onConnectSuccess();
+            }
+            @Override public void onDisConnected(boolean isActiveDisConnected, BleDevice device, BluetoothGatt gatt, int status) {
+                callback.onDisConnected(isActiveDisConnected);
+            }
+        });
+    }
+
+    @Override
+    public void disconnect() {
+        BleManager.getInstance().disconnect(mBleDevice);
+    }
+
+    @Override
+    public void notify(String service, String characteristic, NotifyCallback callback) {
+        BleManager.getInstance().notify(mBleDevice, service, characteristic, new BleNotifyCallback() {
+            @Override public void onNotifySuccess() {
+                callback.onNotifySuccess();
+            }
+            @Override public void onNotifyFailure(BleException exception) {
+                callback.onNotifyFailure(describe(exception));
+            }
+            @Override public void onCharacteristicChanged(byte[] data) {
+                callback.onCharacteristicChanged(data);
+            }
+        });
+    }
+
+    @Override
+    public boolean stopNotify(String service, String characteristic) {
+        return BleManager.getInstance().stopNotify(mBleDevice, service, characteristic);
+    }
+
+    @Override
+    public void write(String service, String characteristic, byte[] data, WriteCallback callback) {
+        BleManager.getInstance().write(mBleDevice, service, characteristic, data, new BleWriteCallback() {
+            @Override public void onWriteSuccess(int current, int total, byte[] justWrite) {
+                callback.onWriteSuccess(justWrite);
+            }
+            @Override public void onWriteFailure(BleException exception) {
+                callback.onWriteFailure(describe(exception));
+            }
+        });
+    }
+
+    private static String describe(BleException exception) {
+        return exception == null ? null : exception.getCode() + ": " + exception.getDescription();
+    }
+
+}
@@ -0,0 +1,95 @@
+package in.wangziq.fitnessrecorder.hardware;
+
+import in.wangziq.fitnessrecorder.utils.BytesUtil;
+
+/**
+ * Heart Rate Measurement (0x2A37), as in the Bluetooth Heart Rate Service: a flags byte, the heart
+ * rate as uint8 or uint16, then optionally the energy expended and RR intervals.
+ */
+final class HeartRateDecoder {
+
+    private static final int FLAG_UINT16 = 0x01;
+    private static final int FLAG_CONTACT_DETECTED = 0x02;
+    private static final int FLAG_CONTACT_SUPPORTED = 0x04;
+    private static final int FLAG_ENERGY_EXPENDED = 0x08;
+    private static final int FLAG_RR_INTERVALS = 0x10;
+    private static final float RR_UNIT = 1000f / 1024; // ms, intervals are sent in 1/1024 s
+    static final int MAX_RR_INTERVALS = 256; // more than fit in any notification
+
+    private int mHeartRate;
+    private int mFlags;
+    private int mEnergyExpended;
+    private final float[] mRrIntervals = new float[MAX_RR_INTERVALS];
+    private int mRrCount;
+
+    /**
+     * @return false if too short for its flags
+     */
+    boolean decode(byte[] data) {
+        if (data.length < 2) return false;
+        final int flags = BytesUtil.uint8(data, 0);
+        int offset = 1;
+        final int heartRate;
+        if ((flags & FLAG_UINT16) == 0) {
+            heartRate = BytesUtil.uint8(data, offset);
+            offset += 1;
+        } else {
+            if (data.length < offset + 2) return false;
+            heartRate = BytesUtil.uint16(data, offset);
+            offset += 2;
+        }
+        int energyExpended = -1;
+        if ((flags & FLAG_ENERGY_EXPENDED) != 0) {
+            if (data.length < offset + 2) return false;
+            energyExpended = BytesUtil.uint16(data, offset);
+            offset += 2;
+        }
+        mRrCount = 0;
+        if ((flags & FLAG_RR_INTERVALS) != 0) {
+            // a trailing odd byte is not an interval
+            for (; offset + 2 <= data.length && mRrCount < mRrIntervals.length; offset += 2)
+                mRrIntervals[mRrCount++] = BytesUtil.uint16(data, offset) * RR_UNIT;
+        }
+        mFlags = flags;
+        mHeartRate = heartRate;
+        mEnergyExpended = energyExpended;
+        return true;
+    }
+
+    /**
+     * @return beats per minute
+     */
+    int getHeartRate() {
+        return mHeartRate;
+    }
+
+    boolean isContactSupported() {
+        return (mFlags & FLAG_CONTACT_SUPPORTED) != 0;
+    }
+
+    /**
+     * @return false if the sensor isn't worn properly, only meaningful if {@link #isContactSupported()}
+     */
+    boolean isContactDetected() {
+        return (mFlags & FLAG_CONTACT_DETECTED) != 0;
+    }
+
+    /**
+     * @return kJ since the last reset, or -1 if not sent
+     */
+    int getEnergyExpended() {
+        return mEnergyExpended;
+    }
+
+    int getRrCount() {
+        return mRrCount;
+    }
+
+    /**
+     * @return ms between two beats, oldest first
+     */
+    float getRrInterval(int i) {
+        return mRrIntervals[i];
+    }
+
+}
@@ -1,57 +1,77 @@
 package in.wangziq.fitnessrecorder.hardware;
 
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothGatt;
 import android.support.annotation.Nullable;
 import android.util.Log;
-import android.util.SparseArray;
 
 import com.annimon.stream.function.Consumer;
-import com.annimon.stream.function.IntConsumer;
-import com.clj.fastble.BleManager;
-import com.clj.fastble.callback.BleGattCallback;
-import com.clj.fastble.callback.BleNotifyCallback;
-import com.clj.fastble.callback.BleWriteCallback;
-import com.clj.fastble.data.BleDevice;
-import com.clj.fastble.exception.BleException;
 
 import java.security.GeneralSecurityException;
-import java.util.Arrays;
-import java.util.Timer;
+import java.util.concurrent.CountDownLatch;
 
 import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
 
 import in.wangziq.fitnessrecorder.utils.BytesUtil;
 import in.wangziq.fitnessrecorder.utils.ResponseWaiter;
+import in.wangziq.fitnessrecorder.utils.SampleClock;
 import in.wangziq.fitnessrecorder.utils.TimerUtil;
 
 public final class MiBand2 {
 
-    public interface TriFloatConsumer { void accept(float x, float y, float z); }
+    // timestamps are epoch ms of the notification's arrival, see SampleClock
+    public interface HeartRateConsumer { void accept(long timestamp, int heartRate); }
+    // interval in ms, timestamped with the beat ending it
+    public interface RrIntervalConsumer { void accept(long timestamp, float interval); }
+    public interface AccelerationConsumer { void accept(long timestamp, float x, float y, float z); }
+    // the batch is reused, see AccelerationBatch
+    public interface AccelerationBatchConsumer { void accept(AccelerationBatch batch); }
 
-    private static final int REFRESH_TIMEOUT = 100; // 100ms
+    private static final int COMMAND_TIMEOUT = 5000; // 5s, for the band to answer a GATT operation
+    private static final int CONNECT_TIMEOUT = 15000; // 15s
     private static final int USR_INTERACTION_TIMEOUT = 20000; // 20s
     private static final String TAG = MiBand2.class.getSimpleName();
 
-    private BleDevice mBleDevice;
+    // GATT operations come from timers, service threads and callbacks at once, they go one at a time
+    private final CommandQueue mTransport;
     private byte[] mAuthKey;
-    private byte[] mRand;
+    private final byte[] mRand = new byte[16];
     private BandState mState;
 
     private Consumer<BandState> mDisconnectHandler;
-    private SparseArray<Consumer<byte[]>> mNoticeConsumers;
-    private IntConsumer mHeartRateHandler;
-    private TriFloatConsumer mAccelerationHandler;
-    private Timer mHeartRatePingTimer, mAccelerationTimer;
+    private HeartRateConsumer mHeartRateHandler;
+    private RrIntervalConsumer mRrIntervalHandler;
+    private AccelerationBatchConsumer mAccelerationHandler;
+    private final AccelerationBatch mAccelerationBatch = new AccelerationBatch(3);
+    // decoders are only used from the BLE callback thread
+    private final AuthNoticeDecoder mAuthDecoder = new AuthNoticeDecoder();
+    private final HeartRateDecoder mHeartRateDecoder = new HeartRateDecoder();
+    private final SensorDataDecoder mSensorDecoder = new SensorDataDecoder();
+    private final RrBeatTimer mRrBeatTimer = new RrBeatTimer();
+    private final long[] mRrBeats = new long[HeartRateDecoder.MAX_RR_INTERVALS];
+    private final SampleClock mHeartRateClock, mAccelerationClock;
+    private TimerUtil.Handle mHeartRatePingTimer, mAccelerationTimer;
+    private volatile ConnectHandshake mHandshake;
+    private volatile long mConnectLatency = -1;
 
     public MiBand2(@Nullable String macAddress, @Nullable byte[] key) {
-        mBleDevice = macAddress == null
-                ? null
-                : new BleDevice(BluetoothAdapter.getDefaultAdapter().getRemoteDevice(macAddress));
+        this(new FastBleTransport(macAddress), key);
+    }
+
+    public MiBand2(BleTransport transport, @Nullable byte[] key) {
+        this(transport, key, SampleClock.SYSTEM);
+    }
+
+    /**
+     * @param time stamping the samples, e.g. that of a {@link SimulatedBand}
+     */
+    public MiBand2(BleTransport transport, @Nullable byte[] key, SampleClock.Source time) {
+        mHeartRateClock = new SampleClock(time);
+        mAccelerationClock = new SampleClock(time);
+        mTransport = new CommandQueue(transport)
+                .coalesce(Protocol.Command.HEART_KEEP_ALIVE)
+                .coalesce(Protocol.Command.ACCELERATION_INIT);
         mAuthKey = key;
         mState = new BandState();
-        initAuthNoticeConsumer();
     }
 
     public void setDisconnectHandler(Consumer<BandState> callback) {
@@ -63,7 +83,7 @@ public final class MiBand2 {
     }
 
     public String getMacAddress() {
-        return mBleDevice == null ? null : mBleDevice.getMac();
+        return mTransport.getMacAddress();
     }
 
     public byte[] getAuthKey() {
@@ -77,64 +97,119 @@ public final class MiBand2 {
 
 
     /**
+     * Runs {@link #connectAsync(boolean, Consumer)} and blocks until it's finished.
+     *
      * @param refresh true if it's a new connection without historical key
      * @return connected successfully or failed
      */
-    // TODO: should be improved
-    // synchronized communication
-    // doAfter REFRESH_TIMEOUT: let waitForStateUpdate() get the old state before executing a task
     public boolean connect(boolean refresh) {
-        mState.reset();
-
-        TimerUtil.doAfter(REFRESH_TIMEOUT, this::bleConnect);
-        waitForStateUpdate();
-        if (!mState.isBleConnected()) {
-            Log.i(TAG, "pair: bleConnect failed, state=" + mState);
-            return false;
-        }
-
-        TimerUtil.doAfter(REFRESH_TIMEOUT, this::turnOnAuthNotify);
-        waitForStateUpdate();
-        if (!mState.isAuthNotifyOn()) {
-            Log.i(TAG, "pair: failed to enable authentication notification, state=" + mState);
+        final CountDownLatch done = new CountDownLatch(1);
+        final boolean[] connected = new boolean[1];
+        connectAsync(refresh, success -> {
+            connected[0] = success;
+            done.countDown();
+        });
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "connect: interrupted, cancelling");
+            cancelConnect();
+            Thread.currentThread().interrupt();
             return false;
         }
+        return connected[0];
+    }
 
+    /**
+     * Connects and authenticates. Each step starts as soon as the band has answered the previous
+     * one, and fails the whole handshake if not answered in time.
+     *
+     * @param refresh true if it's a new connection without historical key
+     * @param callback told whether connected, from a BLE or timer thread, must not block
+     */
+    public void connectAsync(boolean refresh, Consumer<Boolean> callback) {
+        cancelConnect();
+        mState.reset();
+        mConnectLatency = -1;
+        final ConnectHandshake handshake = new ConnectHandshake((failedStep, elapsed) -> {
+            if (failedStep == null) {
+                mConnectLatency = elapsed;
+                Log.i(TAG, "connect: connected in " + elapsed + " ms, state=" + mState);
+            } else {
+                Log.i(TAG, "connect: failed at " + failedStep + " after " + elapsed + " ms, state=" + mState);
+            }
+            callback.accept(failedStep == null);
+        });
+        handshake.then(ConnectHandshake.Step.BLE_CONNECT, CONNECT_TIMEOUT, this::bleConnect)
+                .then(ConnectHandshake.Step.AUTH_NOTIFY_ON, COMMAND_TIMEOUT, this::turnOnAuthNotify);
         if (mAuthKey == null || refresh) {
             mAuthKey = BytesUtil.random(16);
-            TimerUtil.doAfter(REFRESH_TIMEOUT, this::sendKey);
-            waitForStateUpdate();
-            if (!mState.isKeyGot()) {
-                Log.i(TAG, "pair: failed to receive key, state=" + mState);
-                return false;
-            }
+            // the user has to tap the band to accept a new key
+            handshake.then(ConnectHandshake.Step.SEND_KEY, USR_INTERACTION_TIMEOUT, this::sendKey);
         }
+        handshake.then(ConnectHandshake.Step.REQUEST_RAND, COMMAND_TIMEOUT, this::requestRand)
+                .then(ConnectHandshake.Step.SEND_ENCRYPTED_RAND, COMMAND_TIMEOUT, this::sendEncryptedRand)
+                .then(ConnectHandshake.Step.AUTH_NOTIFY_OFF, COMMAND_TIMEOUT, this::turnOffAuthNotify);
+        mHandshake = handshake;
+        handshake.start();
+    }
 
-        TimerUtil.doAfter(REFRESH_TIMEOUT, this::requestRand);
-        waitForStateUpdate();
-        if (!mState.isRandRequested()) {
-            Log.i(TAG, "pair: failed to request rand, state=" + mState);
-            return false;
-        }
+    /**
+     * Fails the handshake in progress, if any.
+     */
+    public void cancelConnect() {
+        final ConnectHandshake handshake = mHandshake;
+        if (handshake != null) handshake.cancel();
+    }
 
-        TimerUtil.doAfter(REFRESH_TIMEOUT, this::sendEncryptedRand);
-        waitForStateUpdate();
-        if (!mState.isEncrypted()) return false;
+    /**
+     * @return milliseconds taken by the last successful handshake, or -1
+     */
+    public long getConnectLatency() {
+        return mConnectLatency;
+    }
 
-        TimerUtil.doAfter(REFRESH_TIMEOUT, this::turnOffAuthNotify);
-        waitForStateUpdate();
-        return true;
+    /**
+     * @return the clock stamping heart rates and RR intervals, anchored when their measurement starts
+     */
+    public SampleClock getHeartRateClock() {
+        return mHeartRateClock;
+    }
+
+    /**
+     * @return the clock stamping accelerations, anchored when their measurement starts
+     */
+    public SampleClock getAccelerationClock() {
+        return mAccelerationClock;
+    }
+
+    /**
+     * @return depth and latency of the GATT operations
+     */
+    public CommandQueue getCommandQueue() {
+        return mTransport;
     }
 
     public void disconnect() {
-        // TODO: stop working task
+        cancelConnect();
         if (mState.isMeasuringHeartRate()) stopMeasureHeartRate();
         if (mState.isMeasuringAcceleration()) stopMeasureAcceleration();
-        BleManager.getInstance().disconnect(mBleDevice);
+        mTransport.disconnect();
+        Log.i(TAG, "disconnect: " + TimerUtil.getLiveTaskCount() + " scheduled tasks left, commands: " + mTransport);
+    }
+
+    public boolean startMeasureHeartRate(HeartRateConsumer heartRateHandler) {
+        return startMeasureHeartRate(heartRateHandler, null);
     }
 
-    public boolean startMeasureHeartRate(IntConsumer heartRateHandler) {
+    /**
+     * @param rrIntervalHandler receives intervals between beats, if the band sends them
+     */
+    public boolean startMeasureHeartRate(HeartRateConsumer heartRateHandler, @Nullable RrIntervalConsumer rrIntervalHandler) {
         mHeartRateHandler = heartRateHandler;
+        mRrIntervalHandler = rrIntervalHandler;
+        mHeartRateClock.anchor();
+        mRrBeatTimer.reset();
 
         // TODO: check and stop related operations first
         if (!turnOnHeartRateNotify()) {
@@ -161,10 +236,23 @@ public final class MiBand2 {
         return disableHeartRateContinuousMonitor() && turnOffHeartRateNotify();
     }
 
-    public boolean startMeasureAcceleration(TriFloatConsumer accelerationHandler) {
+    /**
+     * Delivers one sample per notification, the mean of the samples it holds.
+     */
+    public boolean startMeasureAcceleration(AccelerationConsumer accelerationHandler) {
+        return startMeasureRawAcceleration(new AccelerationAverager(accelerationHandler));
+    }
+
+    /**
+     * Delivers every sample, at the band's native rate, a notification's worth at a time.
+     */
+    public boolean startMeasureRawAcceleration(AccelerationBatchConsumer accelerationHandler) {
         mAccelerationHandler = accelerationHandler;
+        mAccelerationClock.anchor();
+        mSensorDecoder.reset();
         if (!turnOnRawDataNotify()) return false;
-        mAccelerationTimer = TimerUtil.repeatPer(Protocol.Time.ACCELERATION_PERIOD, this::enableAcceleration);
+        // waits for the band, off the scheduler
+        mAccelerationTimer = TimerUtil.repeatBlockingPer(Protocol.Time.ACCELERATION_PERIOD, this::enableAcceleration);
         return enableAcceleration();
     }
 
@@ -177,16 +265,16 @@ public final class MiBand2 {
             Log.i(TAG, "stopMeasureAcceleration: already disconnected");
             return true;
         }
-        ResponseWaiter waiter = new ResponseWaiter(REFRESH_TIMEOUT);
-        BleManager.getInstance().write(mBleDevice, Protocol.Service.BASIC, Protocol.Characteristic.SENSOR_CONTROL,
+        ResponseWaiter waiter = new ResponseWaiter(COMMAND_TIMEOUT);
+        mTransport.write(Protocol.Service.BASIC, Protocol.Characteristic.SENSOR_CONTROL,
                 Protocol.Command.ACCELERATION_STOP,
-                new BleWriteCallback() {
-                    @Override public void onWriteSuccess(int current, int total, byte[] justWrite) {
+                new BleTransport.WriteCallback() {
+                    @Override public void onWriteSuccess(byte[] justWrite) {
                         mState.setAccelerationMeasuring(false);
                         waiter.ok();
                         Log.i(TAG, "stopMeasureAcceleration: succeeded");
                     }
-                    @Override public void onWriteFailure(BleException exception) {
+                    @Override public void onWriteFailure(String error) {
                         waiter.fail();
                         Log.i(TAG, "stopMeasureAcceleration: failed");
                     }
@@ -194,64 +282,43 @@ public final class MiBand2 {
         return waiter.work();
     }
 
-    private void initAuthNoticeConsumer() {
-        mNoticeConsumers = new SparseArray<>();
-        mNoticeConsumers.put(Protocol.Response.SEND_KEY_OK, data -> {
-            Log.i(TAG, "accept auth notice: key got");
-            mState.setKeyGot(true);
-        });
-        mNoticeConsumers.put(Protocol.Response.SEND_KEY_OOPS, data -> {
-            Log.i(TAG, "accept auth notice: the band failed to receive the key");
-            mState.setKeyGot(false);
-        });
-        mNoticeConsumers.put(Protocol.Response.RAND_OK, data -> {
-            Log.i(TAG, "accept auth notice: rand received");
-            mRand = data;
-            mState.setRandRequested(true);
-        });
-        mNoticeConsumers.put(Protocol.Response.RAND_OOPS, data -> {
-            Log.i(TAG, "accept auth notice: failed to receive rand");
-            mState.setRandRequested(false);
-        });
-        mNoticeConsumers.put(Protocol.Response.AUTH_OK, data -> {
-            Log.i(TAG, "accept auth notice: encrypted number matched");
-            mState.setEncrypted(true);
-        });
-        mNoticeConsumers.put(Protocol.Response.AUTH_OOPS, data -> {
-            Log.i(TAG, "accept auth notice: encrypted number did not match");
-            mState.setEncrypted(false);
-        });
+    private void completeStep(ConnectHandshake.Step step, boolean success) {
+        final ConnectHandshake handshake = mHandshake;
+        if (handshake != null) handshake.complete(step, success);
     }
 
     private void bleConnect() {
-        BleManager.getInstance().connect(getMacAddress(), new BleGattCallback() {
-            @Override public void onStartConnect() {}
-            @Override public void onConnectFail(BleDevice bleDevice, BleException exception) {
+        mTransport.connect(new BleTransport.ConnectCallback() {
+            @Override public void onConnectFail(String error) {
                 mState.setBleConnected(false);
+                completeStep(ConnectHandshake.Step.BLE_CONNECT, false);
             }
-            @Override public void onConnectSuccess(BleDevice bleDevice, BluetoothGatt gatt, int status) {
-                mBleDevice = bleDevice;
+            @Override public void onConnectSuccess() {
                 mState.setBleConnected(true);
+                completeStep(ConnectHandshake.Step.BLE_CONNECT, true);
             }
-            @Override public void onDisConnected(boolean isActiveDisConnected, BleDevice device, BluetoothGatt gatt, int status) {
+            @Override public void onDisConnected(boolean active) {
                 mState.setBleConnected(false);
+                cancelConnect();
                 if (mDisconnectHandler != null) mDisconnectHandler.accept(mState);
             }
         });
     }
 
     private void turnOnAuthNotify() {
-        BleManager.getInstance().notify(mBleDevice, Protocol.Service.AUTH, Protocol.Characteristic.AUTH, new BleNotifyCallback() {
+        mTransport.notify(Protocol.Service.AUTH, Protocol.Characteristic.AUTH, new BleTransport.NotifyCallback() {
             @Override public void onNotifySuccess() {
                 if (!mState.isAuthNotifyOn()) {
                     mState.setAuthNotify(true);
                     Log.i(TAG, "turnOnAuthNotify: succeeded, or turnOffAuthNotify");
                 }
+                completeStep(ConnectHandshake.Step.AUTH_NOTIFY_ON, true);
             }
-            @Override public void onNotifyFailure(BleException exception) { // FIXME: may have bug
+            @Override public void onNotifyFailure(String error) { // FIXME: may have bug
                 if (mState.isAuthNotifyOn()) mState.setAuthNotify(false);
 //                mState.setAuthNotify(false);
                 Log.i(TAG, "turnOnAuthNotify: failed");
+                completeStep(ConnectHandshake.Step.AUTH_NOTIFY_ON, false);
             }
             @Override public void onCharacteristicChanged(byte[] data) {
                 handleAuthNotification(data);
@@ -260,7 +327,7 @@ public final class MiBand2 {
     }
 
     private void turnOffAuthNotify() {
-        boolean success = BleManager.getInstance().stopNotify(mBleDevice, Protocol.Service.AUTH, Protocol.Characteristic.AUTH);
+        boolean success = mTransport.stopNotify(Protocol.Service.AUTH, Protocol.Characteristic.AUTH);
         if (success) {
             mState.setAuthNotify(false);
             Log.i(TAG, "turnOffAuthNotify: succeeded");
@@ -268,40 +335,49 @@ public final class MiBand2 {
             mState.setAuthNotify(true);
             Log.i(TAG, "turnOffAuthNotify: failed");
         }
+        // authenticated either way
+        completeStep(ConnectHandshake.Step.AUTH_NOTIFY_OFF, true);
     }
 
     private void sendKey() {
-        BleManager.getInstance().write(mBleDevice, Protocol.Service.AUTH, Protocol.Characteristic.AUTH,
+        mTransport.write(Protocol.Service.AUTH, Protocol.Characteristic.AUTH,
                 BytesUtil.combine(Protocol.Command.SEND_KEY, mAuthKey),
-                new BleWriteCallback() {
-                    @Override public void onWriteSuccess(int current, int total, byte[] justWrite) {
+                new BleTransport.WriteCallback() {
+                    @Override public void onWriteSuccess(byte[] justWrite) {
                         Log.i(TAG, "onWriteSuccess: wrote=" + BytesUtil.toHexStr(justWrite));
                     }
-                    @Override public void onWriteFailure(BleException exception) {
+                    @Override public void onWriteFailure(String error) {
                         mState.setKeyGot(false);
+                        completeStep(ConnectHandshake.Step.SEND_KEY, false);
                     }
                 });
     }
 
     private void requestRand() {
-        BleManager.getInstance().write(mBleDevice, Protocol.Service.AUTH, Protocol.Characteristic.AUTH,
+        mTransport.write(Protocol.Service.AUTH, Protocol.Characteristic.AUTH,
                 Protocol.Command.RAND_REQUEST,
-                new BleWriteCallback() {
-                    @Override public void onWriteSuccess(int current, int total, byte[] justWrite) {}
-                    @Override public void onWriteFailure(BleException exception) {
+                new BleTransport.WriteCallback() {
+                    @Override public void onWriteSuccess(byte[] justWrite) {}
+                    @Override public void onWriteFailure(String error) {
                         mState.setRandRequested(false);
+                        completeStep(ConnectHandshake.Step.REQUEST_RAND, false);
                     }
                 });
     }
 
     private void sendEncryptedRand() {
         byte[] encrypted = aesEncrypt(mRand);
-        BleManager.getInstance().write(mBleDevice, Protocol.Service.AUTH, Protocol.Characteristic.AUTH,
+        if (encrypted == null) {
+            completeStep(ConnectHandshake.Step.SEND_ENCRYPTED_RAND, false);
+            return;
+        }
+        mTransport.write(Protocol.Service.AUTH, Protocol.Characteristic.AUTH,
                 BytesUtil.combine(Protocol.Command.SEND_ENCRYPTED, encrypted),
-                new BleWriteCallback() {
-                    @Override public void onWriteSuccess(int current, int total, byte[] justWrite) {}
-                    @Override public void onWriteFailure(BleException exception) {
+                new BleTransport.WriteCallback() {
+                    @Override public void onWriteSuccess(byte[] justWrite) {}
+                    @Override public void onWriteFailure(String error) {
                         mState.setEncrypted(false);
+                        completeStep(ConnectHandshake.Step.SEND_ENCRYPTED_RAND, false);
                     }
                 });
     }
@@ -319,51 +395,66 @@ public final class MiBand2 {
     }
 
     private void handleAuthNotification(byte[] notice) {
-        Log.i(TAG, "handleAuthNotification: received notification: " + BytesUtil.toHexStr(notice));
-        if (notice.length < 3) {
+        if (!mAuthDecoder.decode(notice)) {
             Log.w(TAG, "handleAuthNotification: data length < 3!");
             return;
         }
-        int head = (int)notice[0] << 16 | (int)notice[1] << 8 | (int)notice[2];
-        byte[] body = Arrays.copyOfRange(notice, 3, notice.length);
-        Consumer<byte[]> noticeConsumer = mNoticeConsumers.get(head);
-        if (noticeConsumer != null) noticeConsumer.accept(body);
-        else Log.i(TAG, String.format("handleAuthNotification: unknown auth response header: %04x", head));
-    }
-
-    private void waitForStateUpdate() {
-        try {
-            BandState oldState = new BandState(mState);
-            long startTime = System.currentTimeMillis();
-            for (;;) {
-                Thread.sleep(REFRESH_TIMEOUT);
-                if (mState.isNewerThan(oldState)) break;
-                if (System.currentTimeMillis() - startTime > USR_INTERACTION_TIMEOUT) break;
-            }
-        } catch (InterruptedException e) {
-            Log.e(TAG, "waitForStateUpdate: interrupted: " + e.getMessage(), e);
+        switch (mAuthDecoder.getHeader()) {
+            case Protocol.Response.SEND_KEY_OK:
+                Log.i(TAG, "accept auth notice: key got");
+                mState.setKeyGot(true);
+                completeStep(ConnectHandshake.Step.SEND_KEY, true);
+                break;
+            case Protocol.Response.SEND_KEY_OOPS:
+                Log.i(TAG, "accept auth notice: the band failed to receive the key");
+                mState.setKeyGot(false);
+                completeStep(ConnectHandshake.Step.SEND_KEY, false);
+                break;
+            case Protocol.Response.RAND_OK:
+                final boolean received = mAuthDecoder.copyBody(notice, mRand);
+                Log.i(TAG, received ? "accept auth notice: rand received" : "accept auth notice: rand of wrong length");
+                mState.setRandRequested(received);
+                completeStep(ConnectHandshake.Step.REQUEST_RAND, received);
+                break;
+            case Protocol.Response.RAND_OOPS:
+                Log.i(TAG, "accept auth notice: failed to receive rand");
+                mState.setRandRequested(false);
+                completeStep(ConnectHandshake.Step.REQUEST_RAND, false);
+                break;
+            case Protocol.Response.AUTH_OK:
+                Log.i(TAG, "accept auth notice: encrypted number matched");
+                mState.setEncrypted(true);
+                completeStep(ConnectHandshake.Step.SEND_ENCRYPTED_RAND, true);
+                break;
+            case Protocol.Response.AUTH_OOPS:
+                Log.i(TAG, "accept auth notice: encrypted number did not match");
+                mState.setEncrypted(false);
+                completeStep(ConnectHandshake.Step.SEND_ENCRYPTED_RAND, false);
+                break;
+            default:
+                Log.i(TAG, String.format("handleAuthNotification: unknown auth response header: %06x", mAuthDecoder.getHeader()));
         }
     }
 
     private boolean turnOnHeartRateNotify() {
         Log.i(TAG, "turning on heart rate notification");
-        ResponseWaiter waiter = new ResponseWaiter(REFRESH_TIMEOUT);
-        BleManager.getInstance().notify(
-                mBleDevice, Protocol.Service.HEART_RATE, Protocol.Characteristic.HEART_RATE_MEASURE,
-                new BleNotifyCallback() {
+        ResponseWaiter waiter = new ResponseWaiter(COMMAND_TIMEOUT);
+        mTransport.notify(Protocol.Service.HEART_RATE, Protocol.Characteristic.HEART_RATE_MEASURE,
+                new BleTransport.NotifyCallback() {
                     @Override public void onNotifySuccess() {
                         if (!mState.isMeasuringHeartRate()) mState.setHeartNotify(true);
                         waiter.ok();
                         Log.i(TAG, "turnOnHeartRateNotify: succeed");
                     }
-                    @Override public void onNotifyFailure(BleException exception) {
+                    @Override public void onNotifyFailure(String error) {
                         waiter.fail();
                         mState.setHeartNotify(false);
                         Log.i(TAG, "turnOnHearRateNotify: failed");
                     }
                     @Override public void onCharacteristicChanged(byte[] data) {
+                        final long timestamp = mHeartRateClock.now();
                         mState.setHeartMeasuring(true);
-                        parseHeartRate(data);
+                        parseHeartRate(timestamp, data);
                     }
                 }
         );
@@ -372,32 +463,39 @@ public final class MiBand2 {
 
     private boolean turnOffHeartRateNotify() {
         Log.i(TAG, "turning off heart rate notification");
-        boolean success = BleManager.getInstance().stopNotify(mBleDevice,
-                Protocol.Service.HEART_RATE, Protocol.Characteristic.HEART_RATE_MEASURE);
+        boolean success = mTransport.stopNotify(Protocol.Service.HEART_RATE, Protocol.Characteristic.HEART_RATE_MEASURE);
         if (success) mState.setHeartNotify(false);
         return success;
     }
 
-    private void parseHeartRate(byte[] data) {
-        // In most cases, only data[1] contributes, not sure about data[0], which is usually 0
-        int heartRate = (int)data[0] * 0x100 + data[1];
+    private void parseHeartRate(long timestamp, byte[] data) {
+        if (!mHeartRateDecoder.decode(data)) {
+            Log.w(TAG, "parseHeartRate: got unexpected heart rate data with length: " + data.length);
+            return;
+        }
+        final int heartRate = mHeartRateDecoder.getHeartRate();
         Log.i(TAG, "parseHeartRate: heartRate=" + heartRate);
-        if (mHeartRateHandler != null) mHeartRateHandler.accept(heartRate);
+        if (mHeartRateHandler != null) mHeartRateHandler.accept(timestamp, heartRate);
+        if (mRrIntervalHandler != null) parseRrIntervals(timestamp);
+    }
+
+    private void parseRrIntervals(long timestamp) {
+        mRrBeatTimer.time(timestamp, mHeartRateDecoder, mRrBeats);
+        for (int i = 0, count = mHeartRateDecoder.getRrCount(); i < count; ++i)
+            mRrIntervalHandler.accept(mRrBeats[i], mHeartRateDecoder.getRrInterval(i));
     }
 
     private boolean enableHeartRateContinuousMonitor() {
         Log.i(TAG, "enabling heart rate continuous monitor");
-        ResponseWaiter waiter = new ResponseWaiter(REFRESH_TIMEOUT);
-        BleManager.getInstance().write(
-                mBleDevice,
-                Protocol.Service.HEART_RATE, Protocol.Characteristic.HEART_RATE_CONTROL,
+        ResponseWaiter waiter = new ResponseWaiter(COMMAND_TIMEOUT);
+        mTransport.write(Protocol.Service.HEART_RATE, Protocol.Characteristic.HEART_RATE_CONTROL,
                 Protocol.Command.HEART_START_CONTINUOUS,
-                new BleWriteCallback() {
-                    @Override public void onWriteSuccess(int current, int total, byte[] justWrite) {
+                new BleTransport.WriteCallback() {
+                    @Override public void onWriteSuccess(byte[] justWrite) {
                         waiter.ok();
                         Log.i(TAG, "enableHeartRateContinuousMonitor: succeed");
                     }
-                    @Override public void onWriteFailure(BleException exception) {
+                    @Override public void onWriteFailure(String error) {
                         waiter.fail();
                         Log.i(TAG, "enableHeartRateContinuousMonitor: failed");
                     }
@@ -407,18 +505,16 @@ public final class MiBand2 {
 
     private boolean disableHeartRateContinuousMonitor() {
         Log.i(TAG, "disabling heart rate continuous monitor");
-        ResponseWaiter waiter = new ResponseWaiter(REFRESH_TIMEOUT);
-        BleManager.getInstance().write(
-                mBleDevice,
-                Protocol.Service.HEART_RATE, Protocol.Characteristic.HEART_RATE_CONTROL,
+        ResponseWaiter waiter = new ResponseWaiter(COMMAND_TIMEOUT);
+        mTransport.write(Protocol.Service.HEART_RATE, Protocol.Characteristic.HEART_RATE_CONTROL,
                 Protocol.Command.HEART_STOP_CONTINUOUS,
-                new BleWriteCallback() {
-                    @Override public void onWriteSuccess(int current, int total, byte[] justWrite) {
+                new BleTransport.WriteCallback() {
+                    @Override public void onWriteSuccess(byte[] justWrite) {
                         mState.setHeartMeasuring(false);
                         waiter.ok();
                         Log.i(TAG, "disableHeartRateContinuousMonitor: succeed");
                     }
-                    @Override public void onWriteFailure(BleException exception) {
+                    @Override public void onWriteFailure(String error) {
                         waiter.fail();
                         Log.i(TAG, "disableHeartRateContinuousMonitor: failed");
                     }
@@ -429,16 +525,14 @@ public final class MiBand2 {
     private void enableHeartRatePing() {
         mHeartRatePingTimer = TimerUtil.repeatPer(Protocol.Time.HEART_KEEP_ALIVE_PERIOD, () -> {
             Log.i(TAG, "pinging heart rate monitor...");
-            BleManager.getInstance().write(
-                    mBleDevice,
-                    Protocol.Service.HEART_RATE, Protocol.Characteristic.HEART_RATE_CONTROL,
+            mTransport.write(Protocol.Service.HEART_RATE, Protocol.Characteristic.HEART_RATE_CONTROL,
                     Protocol.Command.HEART_KEEP_ALIVE,
-                    new BleWriteCallback() {
-                        @Override public void onWriteSuccess(int current, int total, byte[] justWrite) {
+                    new BleTransport.WriteCallback() {
+                        @Override public void onWriteSuccess(byte[] justWrite) {
                             Log.i(TAG, "pingHeartRate :)");
                             mState.setHeartMeasuring(true);
                         }
-                        @Override public void onWriteFailure(BleException exception) {
+                        @Override public void onWriteFailure(String error) {
                             Log.i(TAG, "pingHeartRate :(");
                             mState.setHeartMeasuring(false);
                         }
@@ -454,42 +548,32 @@ public final class MiBand2 {
         }
     }
 
-    // see https://github.com/Freeyourgadget/Gadgetbridge/pull/703/files for details
-    private void parseAcceleration(byte[] value) {
-        if (value.length <= 2 || (value.length - 2) % 6 != 0) {
+    private void parseAcceleration(long timestamp, byte[] value) {
+        if (!mSensorDecoder.decode(timestamp, value, mAccelerationBatch)) {
             Log.w(TAG, "parseAcceleration: got unexpected sensor data with length: " + value.length);
             return;
         }
-        float count = 0;
-        float x = 0, y = 0, z = 0;
-        for (int i = 2; i < value.length; i += 6, count += 1) {
-            x += (value[i]   | (value[i+1] << 8));
-            y += (value[i+2] | (value[i+3] << 8));
-            z += (value[i+4] | (value[i+5] << 8));
-        }
-        x /= count; y /= count; z /= count;
-        Log.i(TAG, String.format("parseAcceleration: x=%.3f, y=%.3f, z=%.3f, total=%.3f", x, y, z, Math.sqrt(x*x + y*y + z*z)));
-        if (mAccelerationHandler != null) mAccelerationHandler.accept(x, y, z);
+        if (mAccelerationHandler != null) mAccelerationHandler.accept(mAccelerationBatch);
     }
 
     private boolean turnOnRawDataNotify() {
-        ResponseWaiter waiter = new ResponseWaiter(REFRESH_TIMEOUT);
-        BleManager.getInstance().notify(mBleDevice, Protocol.Service.BASIC, Protocol.Characteristic.SENSOR_DATA,
-                new BleNotifyCallback() {
+        ResponseWaiter waiter = new ResponseWaiter(COMMAND_TIMEOUT);
+        mTransport.notify(Protocol.Service.BASIC, Protocol.Characteristic.SENSOR_DATA,
+                new BleTransport.NotifyCallback() {
                     @Override public void onNotifySuccess() {
                         mState.setRawNotify(true);
                         waiter.ok();
                         Log.i(TAG, "turnOnRawDataNotify: succeeded");
                     }
-                    @Override public void onNotifyFailure(BleException exception) {
+                    @Override public void onNotifyFailure(String error) {
                         mState.setRawNotify(false);
                         waiter.fail();
                         Log.e(TAG, "turnOnRawDataNotify: failed");
                     }
                     @Override public void onCharacteristicChanged(byte[] data) {
+                        final long timestamp = mAccelerationClock.now();
                         mState.setAccelerationMeasuring(true);
-                        Log.i(TAG, "received raw data: length=" + data.length + ", data=" + BytesUtil.toHexStr(data));
-                        parseAcceleration(data);
+                        parseAcceleration(timestamp, data);
                     }
                 });
         return waiter.work();
@@ -497,16 +581,15 @@ public final class MiBand2 {
 
     // https://github.com/Freeyourgadget/Gadgetbridge/pull/894
     private boolean enableAcceleration() {
-        ResponseWaiter waiter = new ResponseWaiter(REFRESH_TIMEOUT);
-        BleManager.getInstance().write(
-                mBleDevice, Protocol.Service.BASIC, Protocol.Characteristic.SENSOR_CONTROL,
+        ResponseWaiter waiter = new ResponseWaiter(COMMAND_TIMEOUT);
+        mTransport.write(Protocol.Service.BASIC, Protocol.Characteristic.SENSOR_CONTROL,
                 Protocol.Command.ACCELERATION_INIT,
-                new BleWriteCallback() {
-                    @Override public void onWriteSuccess(int current, int total, byte[] justWrite) {
+                new BleTransport.WriteCallback() {
+                    @Override public void onWriteSuccess(byte[] justWrite) {
                         waiter.ok();
                         Log.i(TAG, "enableAcceleration step 1: succeeded");
                     }
-                    @Override public void onWriteFailure(BleException exception) {
+                    @Override public void onWriteFailure(String error) {
                         mState.setAccelerationMeasuring(false);
                         waiter.fail();
                         Log.e(TAG, "enableAcceleration step 1: failed");
@@ -515,15 +598,15 @@ public final class MiBand2 {
         if (!waiter.work()) return false;
 
         waiter.reset();
-        BleManager.getInstance().write(mBleDevice, Protocol.Service.BASIC, Protocol.Characteristic.SENSOR_CONTROL,
+        mTransport.write(Protocol.Service.BASIC, Protocol.Characteristic.SENSOR_CONTROL,
                 Protocol.Command.ACCELERATION_START,
-                new BleWriteCallback() {
-                    @Override public void onWriteSuccess(int current, int total, byte[] justWrite) {
+                new BleTransport.WriteCallback() {
+                    @Override public void onWriteSuccess(byte[] justWrite) {
                         mState.setAccelerationMeasuring(true);
                         waiter.ok();
                         Log.i(TAG, "enableAcceleration step 2: succeeded");
                     }
-                    @Override public void onWriteFailure(BleException exception) {
+                    @Override public void onWriteFailure(String error) {
                         mState.setAccelerationMeasuring(false);
                         waiter.fail();
                         Log.i(TAG, "enableAcceleration step 2: failed");
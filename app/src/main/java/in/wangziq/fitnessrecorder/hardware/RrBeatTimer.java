@@ -0,0 +1,48 @@
+package in.wangziq.fitnessrecorder.hardware;
+
+/**
+ * Times the beats of RR intervals sent by the band. A notification arrives some time after its last
+ * beat, and that delay varies, so beats are chained instead: each one is the previous beat plus its
+ * interval. The arrival only anchors the chain, on the first notification and after a real gap.
+ * Only used from the BLE callback thread.
+ */
+final class RrBeatTimer {
+
+    // the chain may lead the arrival by as much as the delay of the anchoring notification exceeded
+    // this one's, but falling this far behind means beats were lost, e.g. while the band had no contact
+    static final long MAX_DRIFT = 2000; // ms, the longest interval taken as a heartbeat
+
+    private double mLastBeat;
+    private boolean mAnchored;
+
+    /**
+     * Forgets the last beat, e.g. when a measurement starts.
+     */
+    void reset() {
+        mAnchored = false;
+    }
+
+    /**
+     * @param arrival time of the notification
+     * @param decoder holding the notification's intervals, decoded
+     * @param beats filled with the time of the beat ending each interval, at least as long as their count
+     */
+    void time(long arrival, HeartRateDecoder decoder, long[] beats) {
+        final int count = decoder.getRrCount();
+        if (count == 0) return;
+        double total = 0;
+        for (int i = 0; i < count; ++i) total += decoder.getRrInterval(i);
+        double beat = mLastBeat;
+        if (!mAnchored || Math.abs(beat + total - arrival) > MAX_DRIFT) {
+            // the last beat is taken to be the arrival, earlier ones are counted back from it
+            beat = arrival - total;
+            mAnchored = true;
+        }
+        for (int i = 0; i < count; ++i) {
+            beat += decoder.getRrInterval(i);
+            beats[i] = Math.round(beat);
+        }
+        mLastBeat = beat;
+    }
+
+}
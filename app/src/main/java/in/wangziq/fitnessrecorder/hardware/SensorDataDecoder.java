@@ -0,0 +1,49 @@
+package in.wangziq.fitnessrecorder.hardware;
+
+import in.wangziq.fitnessrecorder.utils.BytesUtil;
+
+/**
+ * Raw sensor data: a 2-byte header, then samples of x, y and z as little-endian int16. Samples end
+ * at the notification's arrival, spaced by the time since the previous notification.
+ *
+ * @see <a href="https://github.com/Freeyourgadget/Gadgetbridge/pull/703/files">Gadgetbridge</a>
+ */
+final class SensorDataDecoder {
+
+    static final int HEADER_LENGTH = 2;
+    static final int SAMPLE_LENGTH = 6;
+    private static final int DEFAULT_SAMPLE_PERIOD = 40; // ms, until measured
+    private static final int MAX_SAMPLE_GAP = 500; // ms, longer gaps between notifications are pauses
+
+    private long mLastArrival;
+    private float mSamplePeriod = DEFAULT_SAMPLE_PERIOD;
+
+    /**
+     * Forgets the previous notification, e.g. when a measurement starts.
+     */
+    void reset() {
+        mLastArrival = 0;
+        mSamplePeriod = DEFAULT_SAMPLE_PERIOD;
+    }
+
+    /**
+     * @param arrival epoch milliseconds
+     * @param batch emptied, then filled with the samples
+     * @return false, leaving the batch as it was, if the length is not that of whole samples
+     */
+    boolean decode(long arrival, byte[] data, AccelerationBatch batch) {
+        if (data.length <= HEADER_LENGTH || (data.length - HEADER_LENGTH) % SAMPLE_LENGTH != 0) return false;
+        final int count = (data.length - HEADER_LENGTH) / SAMPLE_LENGTH;
+        final long gap = arrival - mLastArrival;
+        if (gap > 0 && gap <= MAX_SAMPLE_GAP) mSamplePeriod = (float) gap / count;
+        mLastArrival = arrival;
+
+        batch.reset(count);
+        for (int i = HEADER_LENGTH, k = count - 1; i < data.length; i += SAMPLE_LENGTH, --k) {
+            batch.add(arrival - Math.round(k * mSamplePeriod),
+                    BytesUtil.int16(data, i), BytesUtil.int16(data, i + 2), BytesUtil.int16(data, i + 4));
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,429 @@
+package in.wangziq.fitnessrecorder.hardware;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import in.wangziq.fitnessrecorder.utils.SampleClock;
+
+/**
+ * A Mi Band 2 in the same process, so that {@link MiBand2} and everything behind it can run, be
+ * benchmarked and soak-tested without a phone. It answers the auth handshake of {@link Protocol},
+ * and sends heart rate and sensor notifications at the rates, jitter and drop ratio of its
+ * {@link Config}.
+ *
+ * Like the real band, it stops sending heart rate without a keep-alive, and acceleration after a
+ * while. All of its state is confined to one thread, on which callbacks run.
+ */
+public final class SimulatedBand implements BleTransport {
+
+    private static final String TAG = SimulatedBand.class.getSimpleName();
+
+    private static final int HEART_RATE_TIMEOUT = 15000; // without a keep-alive
+    private static final int ACCELERATION_RUN = 70000;
+    private static final int SENSOR_HEADER_LENGTH = 2;
+    private static final int SAMPLE_LENGTH = 6;
+    private static final byte RR_INTERVALS_PRESENT = 0x10;
+
+    public static final class Config {
+        private int mHeartRatePeriod = 1000;
+        private int mAccelerationPeriod = 120;
+        private int mSamplesPerPacket = 3;
+        private int mJitter;
+        private double mDropRatio;
+        private int mConnectDelay = 50;
+        private int mResponseDelay = 10;
+        private byte[] mKey;
+        private long mSeed = System.nanoTime();
+        private boolean mRrIntervals;
+
+        /**
+         * @param period between heart rate notifications, in milliseconds
+         */
+        public Config setHeartRatePeriod(int period) {
+            mHeartRatePeriod = period;
+            return this;
+        }
+
+        /**
+         * @param period between sensor notifications, in milliseconds
+         */
+        public Config setAccelerationPeriod(int period) {
+            mAccelerationPeriod = period;
+            return this;
+        }
+
+        /**
+         * @param samples per sensor notification, 3 fit in the default MTU
+         */
+        public Config setSamplesPerPacket(int samples) {
+            mSamplesPerPacket = samples;
+            return this;
+        }
+
+        /**
+         * @param jitter at most this many milliseconds early or late, uniformly
+         */
+        public Config setJitter(int jitter) {
+            mJitter = jitter;
+            return this;
+        }
+
+        /**
+         * @param ratio of heart rate and sensor notifications lost, in [0, 1]
+         */
+        public Config setDropRatio(double ratio) {
+            mDropRatio = ratio;
+            return this;
+        }
+
+        public Config setConnectDelay(int delay) {
+            mConnectDelay = delay;
+            return this;
+        }
+
+        /**
+         * @param delay before a write, a notify or an auth response is answered, in milliseconds
+         */
+        public Config setResponseDelay(int delay) {
+            mResponseDelay = delay;
+            return this;
+        }
+
+        /**
+         * @param key the band is paired with already, or null to pair on the first connection
+         */
+        public Config setKey(@Nullable byte[] key) {
+            mKey = key;
+            return this;
+        }
+
+        public Config setSeed(long seed) {
+            mSeed = seed;
+            return this;
+        }
+
+        /**
+         * @param enabled to send the RR interval of the heart rate with it, as chest straps do
+         */
+        public Config setRrIntervals(boolean enabled) {
+            mRrIntervals = enabled;
+            return this;
+        }
+    }
+
+    private final Config mConfig;
+    private final String mMacAddress;
+    private final Random mRandom;
+    private final ScheduledExecutorService mExecutor;
+    private final long mStartNanos = System.nanoTime(), mStartMillis = System.currentTimeMillis();
+    private volatile Thread mThread;
+    private final AtomicLong mHeartRateSent = new AtomicLong(), mHeartRateDropped = new AtomicLong();
+    private final AtomicLong mSensorSent = new AtomicLong(), mSensorDropped = new AtomicLong();
+
+    // confined to mThread
+    private final Map<String, NotifyCallback> mNotifications = new HashMap<>();
+    private ConnectCallback mConnection;
+    private byte[] mKey, mRand;
+    private boolean mAccelerationArmed;
+    private ScheduledFuture<?> mHeartRateTask, mSensorTask;
+    private long mLastKeepAlive, mAccelerationStart;
+    private int mHeartRate = 70;
+    private int mSensorCounter;
+
+    public SimulatedBand(String macAddress, Config config) {
+        mConfig = config;
+        mMacAddress = macAddress;
+        mRandom = new Random(config.mSeed);
+        mKey = config.mKey == null ? null : config.mKey.clone();
+        mExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            mThread = new Thread(runnable, TAG + "-" + macAddress);
+            mThread.setDaemon(true);
+            return mThread;
+        });
+    }
+
+    public long getHeartRateSent() {
+        return mHeartRateSent.get();
+    }
+
+    public long getHeartRateDropped() {
+        return mHeartRateDropped.get();
+    }
+
+    public long getSensorSent() {
+        return mSensorSent.get();
+    }
+
+    public long getSensorDropped() {
+        return mSensorDropped.get();
+    }
+
+    /**
+     * @return the time of the band, for {@link MiBand2} to stamp its samples on: it advances with
+     * the notifications on the JVM too, unlike SystemClock there
+     */
+    public SampleClock.Source getTime() {
+        return new SampleClock.Source() {
+            @Override
+            public long elapsedRealtimeNanos() {
+                return System.nanoTime() - mStartNanos;
+            }
+
+            @Override
+            public long currentTimeMillis() {
+                return mStartMillis + elapsedRealtimeNanos() / 1000000;
+            }
+        };
+    }
+
+    /**
+     * Loses the connection, as when the band goes out of range.
+     */
+    public void dropConnection() {
+        mExecutor.execute(() -> closeConnection(false));
+    }
+
+    /**
+     * Stops the band's thread, it can't be connected to anymore.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Override
+    public String getMacAddress() {
+        return mMacAddress;
+    }
+
+    @Override
+    public void connect(ConnectCallback callback) {
+        mExecutor.schedule(() -> {
+            if (mConnection != null) {
+                callback.onConnectFail("already connected");
+                return;
+            }
+            mConnection = callback;
+            Log.i(TAG, "connect: connected");
+            callback.onConnectSuccess();
+        }, mConfig.mConnectDelay, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void disconnect() {
+        mExecutor.execute(() -> closeConnection(true));
+    }
+
+    @Override
+    public void notify(String service, String characteristic, NotifyCallback callback) {
+        mExecutor.schedule(() -> {
+            if (mConnection == null) {
+                callback.onNotifyFailure("not connected");
+                return;
+            }
+            mNotifications.put(key(service, characteristic), callback);
+            callback.onNotifySuccess();
+        }, mConfig.mResponseDelay, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean stopNotify(String service, String characteristic) {
+        final String key = key(service, characteristic);
+        // synchronous, as with FastBle, and possibly called from one of our own callbacks
+        if (Thread.currentThread() == mThread) return mNotifications.remove(key) != null;
+        try {
+            return mExecutor.submit(() -> mNotifications.remove(key) != null).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "stopNotify: " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    @Override
+    public void write(String service, String characteristic, byte[] data, WriteCallback callback) {
+        final byte[] written = data.clone();
+        mExecutor.schedule(() -> {
+            if (mConnection == null) {
+                callback.onWriteFailure("not connected");
+                return;
+            }
+            callback.onWriteSuccess(written);
+            if (characteristic.equals(Protocol.Characteristic.AUTH)) handleAuth(written);
+            else if (characteristic.equals(Protocol.Characteristic.HEART_RATE_CONTROL)) handleHeartRateControl(written);
+            else if (characteristic.equals(Protocol.Characteristic.SENSOR_CONTROL)) handleSensorControl(written);
+        }, mConfig.mResponseDelay, TimeUnit.MILLISECONDS);
+    }
+
+    private void closeConnection(boolean active) {
+        final ConnectCallback connection = mConnection;
+        if (connection == null) return;
+        mConnection = null;
+        mNotifications.clear();
+        stopHeartRate();
+        stopAcceleration();
+        mRand = null;
+        Log.i(TAG, "closeConnection: active=" + active);
+        connection.onDisConnected(active);
+    }
+
+    private void handleAuth(byte[] data) {
+        if (startsWith(data, Protocol.Command.SEND_KEY)) {
+            if (data.length == Protocol.Command.SEND_KEY.length + 16) {
+                mKey = Arrays.copyOfRange(data, Protocol.Command.SEND_KEY.length, data.length);
+                respond(Protocol.Response.SEND_KEY_OK, null);
+            } else {
+                respond(Protocol.Response.SEND_KEY_OOPS, null);
+            }
+        } else if (startsWith(data, Protocol.Command.RAND_REQUEST)) {
+            mRand = new byte[16];
+            mRandom.nextBytes(mRand);
+            respond(Protocol.Response.RAND_OK, mRand);
+        } else if (startsWith(data, Protocol.Command.SEND_ENCRYPTED)) {
+            final byte[] encrypted = Arrays.copyOfRange(data, Protocol.Command.SEND_ENCRYPTED.length, data.length);
+            final boolean matched = mKey != null && mRand != null && Arrays.equals(encrypted, aesEncrypt(mKey, mRand));
+            respond(matched ? Protocol.Response.AUTH_OK : Protocol.Response.AUTH_OOPS, null);
+        }
+    }
+
+    private void respond(int header, @Nullable byte[] body) {
+        final int length = body == null ? 0 : body.length;
+        final byte[] notice = new byte[3 + length];
+        notice[0] = (byte) (header >> 16);
+        notice[1] = (byte) (header >> 8);
+        notice[2] = (byte) header;
+        if (body != null) System.arraycopy(body, 0, notice, 3, length);
+        mExecutor.schedule(() -> {
+            NotifyCallback callback = mNotifications.get(key(Protocol.Service.AUTH, Protocol.Characteristic.AUTH));
+            if (callback != null) callback.onCharacteristicChanged(notice);
+        }, mConfig.mResponseDelay, TimeUnit.MILLISECONDS);
+    }
+
+    private void handleHeartRateControl(byte[] data) {
+        if (Arrays.equals(data, Protocol.Command.HEART_START_CONTINUOUS)) {
+            mLastKeepAlive = System.currentTimeMillis();
+            if (mHeartRateTask == null) mHeartRateTask = scheduleNext(this::sendHeartRate, mConfig.mHeartRatePeriod);
+        } else if (Arrays.equals(data, Protocol.Command.HEART_STOP_CONTINUOUS)) {
+            stopHeartRate();
+        } else if (Arrays.equals(data, Protocol.Command.HEART_KEEP_ALIVE)) {
+            mLastKeepAlive = System.currentTimeMillis();
+        }
+    }
+
+    private void handleSensorControl(byte[] data) {
+        if (Arrays.equals(data, Protocol.Command.ACCELERATION_INIT)) {
+            mAccelerationArmed = true;
+        } else if (Arrays.equals(data, Protocol.Command.ACCELERATION_START)) {
+            if (!mAccelerationArmed) return;
+            mAccelerationStart = System.currentTimeMillis();
+            if (mSensorTask == null) mSensorTask = scheduleNext(this::sendAcceleration, mConfig.mAccelerationPeriod);
+        } else if (Arrays.equals(data, Protocol.Command.ACCELERATION_STOP)) {
+            mAccelerationArmed = false;
+            stopAcceleration();
+        }
+    }
+
+    private void sendHeartRate() {
+        if (System.currentTimeMillis() - mLastKeepAlive > HEART_RATE_TIMEOUT) {
+            Log.i(TAG, "sendHeartRate: no keep-alive, stopped");
+            mHeartRateTask = null;
+            return;
+        }
+        mHeartRate = Math.max(40, Math.min(180, mHeartRate + mRandom.nextInt(5) - 2));
+        final byte[] measure;
+        if (mConfig.mRrIntervals) {
+            final int rr = 60 * 1024 / mHeartRate; // in 1/1024 s
+            measure = new byte[] {RR_INTERVALS_PRESENT, (byte) mHeartRate, (byte) rr, (byte) (rr >> 8)};
+        } else {
+            measure = new byte[] {0, (byte) mHeartRate};
+        }
+        deliver(Protocol.Service.HEART_RATE, Protocol.Characteristic.HEART_RATE_MEASURE,
+                measure, mHeartRateSent, mHeartRateDropped);
+        mHeartRateTask = scheduleNext(this::sendHeartRate, mConfig.mHeartRatePeriod);
+    }
+
+    private void sendAcceleration() {
+        if (System.currentTimeMillis() - mAccelerationStart > ACCELERATION_RUN) {
+            Log.i(TAG, "sendAcceleration: run over, stopped");
+            mSensorTask = null;
+            return;
+        }
+        final byte[] packet = new byte[SENSOR_HEADER_LENGTH + SAMPLE_LENGTH * mConfig.mSamplesPerPacket];
+        packet[0] = 0x01;
+        packet[1] = (byte) mSensorCounter++;
+        for (int i = SENSOR_HEADER_LENGTH; i < packet.length; i += 2) {
+            // around 1 g on z, little-endian int16
+            final int value = mRandom.nextInt(64) - 32 + ((i - SENSOR_HEADER_LENGTH) % SAMPLE_LENGTH == 4 ? 512 : 0);
+            packet[i] = (byte) value;
+            packet[i + 1] = (byte) (value >> 8);
+        }
+        deliver(Protocol.Service.BASIC, Protocol.Characteristic.SENSOR_DATA, packet, mSensorSent, mSensorDropped);
+        mSensorTask = scheduleNext(this::sendAcceleration, mConfig.mAccelerationPeriod);
+    }
+
+    private void deliver(String service, String characteristic, byte[] data, AtomicLong sent, AtomicLong dropped) {
+        final NotifyCallback callback = mNotifications.get(key(service, characteristic));
+        if (callback == null) return;
+        if (mRandom.nextDouble() < mConfig.mDropRatio) {
+            dropped.incrementAndGet();
+            return;
+        }
+        sent.incrementAndGet();
+        callback.onCharacteristicChanged(data);
+    }
+
+    private ScheduledFuture<?> scheduleNext(Runnable task, int period) {
+        final int jitter = mConfig.mJitter > 0 ? mRandom.nextInt(2 * mConfig.mJitter + 1) - mConfig.mJitter : 0;
+        return mExecutor.schedule(task, Math.max(0, period + jitter), TimeUnit.MILLISECONDS);
+    }
+
+    private void stopHeartRate() {
+        if (mHeartRateTask == null) return;
+        mHeartRateTask.cancel(false);
+        mHeartRateTask = null;
+    }
+
+    private void stopAcceleration() {
+        if (mSensorTask == null) return;
+        mSensorTask.cancel(false);
+        mSensorTask = null;
+    }
+
+    private static String key(String service, String characteristic) {
+        return service + '/' + characteristic;
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        if (data.length < prefix.length) return false;
+        for (int i = 0; i < prefix.length; ++i) if (data[i] != prefix[i]) return false;
+        return true;
+    }
+
+    private static byte[] aesEncrypt(byte[] key, byte[] message) {
+        try {
+            Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+            return cipher.doFinal(message);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "aesEncrypt: " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+package in.wangziq.fitnessrecorder.persistance;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A memory-mapped, append-only file of fixed-width acceleration records.
+ *
+ * Layout (little endian): a {@link #HEADER_SIZE} bytes header followed by {@link #CAPACITY} records of
+ * int64 timestamp (epoch ms) + float32 x, y, z. The header holds magic, record size, capacity, record
+ * count, id of the first record, first/last timestamp and a sparse time index with the timestamp of
+ * every {@link #INDEX_STRIDE}-th record. Timestamps never decrease within a segment.
+ *
+ * The record count is written after the record itself, so readers mapping the same file never see
+ * a partially written record.
+ */
+final class AccelerationSegment {
+
+    static final int MAGIC = 0x31415246; // "FRA1"
+    static final int RECORD_SIZE = 20;
+    static final int CAPACITY = 1 << 18; // ~5 MB per segment
+    static final int INDEX_STRIDE = 1 << 10;
+    static final int HEADER_SIZE = 4096;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int RECORD_SIZE_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int COUNT_OFFSET = 12;
+    private static final int BASE_ID_OFFSET = 16;
+    private static final int FIRST_TIME_OFFSET = 24;
+    private static final int LAST_TIME_OFFSET = 32;
+    private static final int INDEX_OFFSET = 64;
+
+    private static final long FILE_SIZE = HEADER_SIZE + (long) CAPACITY * RECORD_SIZE;
+
+    private final File mFile;
+    private final MappedByteBuffer mBuffer;
+
+    private AccelerationSegment(File file, MappedByteBuffer buffer) {
+        mFile = file;
+        mBuffer = buffer;
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    static AccelerationSegment create(File file, long baseId) throws IOException {
+        AccelerationSegment segment = new AccelerationSegment(file, map(file, true));
+        MappedByteBuffer buffer = segment.mBuffer;
+        buffer.putInt(RECORD_SIZE_OFFSET, RECORD_SIZE);
+        buffer.putInt(CAPACITY_OFFSET, CAPACITY);
+        buffer.putInt(COUNT_OFFSET, 0);
+        buffer.putLong(BASE_ID_OFFSET, baseId);
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        return segment;
+    }
+
+    /**
+     * @return null if the file is not a valid segment (e.g. one being created right now)
+     */
+    static AccelerationSegment open(File file, boolean writable) throws IOException {
+        if (file.length() != FILE_SIZE) return null;
+        AccelerationSegment segment = new AccelerationSegment(file, map(file, writable));
+        MappedByteBuffer buffer = segment.mBuffer;
+        if (buffer.getInt(MAGIC_OFFSET) != MAGIC
+                || buffer.getInt(RECORD_SIZE_OFFSET) != RECORD_SIZE
+                || buffer.getInt(CAPACITY_OFFSET) != CAPACITY) return null;
+        return segment;
+    }
+
+    private static MappedByteBuffer map(File file, boolean writable) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r")) {
+            if (writable && raf.length() < FILE_SIZE) raf.setLength(FILE_SIZE);
+            // the mapping stays valid after the channel is closed
+            return raf.getChannel().map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                    0, FILE_SIZE);
+        }
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    int count() {
+        return mBuffer.getInt(COUNT_OFFSET);
+    }
+
+    boolean isFull() {
+        return count() >= CAPACITY;
+    }
+
+    long baseId() {
+        return mBuffer.getLong(BASE_ID_OFFSET);
+    }
+
+    long firstTimestamp() {
+        return mBuffer.getLong(FIRST_TIME_OFFSET);
+    }
+
+    long lastTimestamp() {
+        return mBuffer.getLong(LAST_TIME_OFFSET);
+    }
+
+    /**
+     * The caller ensures the segment is not full and timestamp >= {@link #lastTimestamp()}.
+     */
+    void append(long timestamp, float x, float y, float z) {
+        final int n = count();
+        final int position = HEADER_SIZE + n * RECORD_SIZE;
+        mBuffer.putLong(position, timestamp);
+        mBuffer.putFloat(position + 8, x);
+        mBuffer.putFloat(position + 12, y);
+        mBuffer.putFloat(position + 16, z);
+        if (n % INDEX_STRIDE == 0) mBuffer.putLong(INDEX_OFFSET + (n / INDEX_STRIDE) * 8, timestamp);
+        if (n == 0) mBuffer.putLong(FIRST_TIME_OFFSET, timestamp);
+        mBuffer.putLong(LAST_TIME_OFFSET, timestamp);
+        mBuffer.putInt(COUNT_OFFSET, n + 1);
+    }
+
+    long timestamp(int i) {
+        return mBuffer.getLong(HEADER_SIZE + i * RECORD_SIZE);
+    }
+
+    float x(int i) {
+        return mBuffer.getFloat(HEADER_SIZE + i * RECORD_SIZE + 8);
+    }
+
+    float y(int i) {
+        return mBuffer.getFloat(HEADER_SIZE + i * RECORD_SIZE + 12);
+    }
+
+    float z(int i) {
+        return mBuffer.getFloat(HEADER_SIZE + i * RECORD_SIZE + 16);
+    }
+
+    /**
+     * @param count number of records to search, as read from {@link #count()} beforehand
+     * @return index of the first record with timestamp >= time, or count if there's none
+     */
+    int lowerBound(long time, int count) {
+        // the sparse index narrows the search down to one stride of records
+        int lo = 0, hi = (count + INDEX_STRIDE - 1) / INDEX_STRIDE;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mBuffer.getLong(INDEX_OFFSET + mid * 8) < time) lo = mid + 1;
+            else hi = mid;
+        }
+        int first = lo == 0 ? 0 : (lo - 1) * INDEX_STRIDE;
+        int last = Math.min(count, lo * INDEX_STRIDE);
+        while (first < last) {
+            final int mid = (first + last) >>> 1;
+            if (timestamp(mid) < time) first = mid + 1;
+            else last = mid;
+        }
+        return first;
+    }
+
+    void force() {
+        mBuffer.force();
+    }
+
+}
@@ -0,0 +1,30 @@
+package in.wangziq.fitnessrecorder.persistance;
+
+import android.database.Cursor;
+
+/**
+ * Storage backend of acceleration samples.
+ * Appends come from the single writer thread of {@link BatchWriter}, queries may come from any thread.
+ */
+interface AccelerationStore {
+
+    void append(long[] timestamps, float[] x, float[] y, float[] z, int offset, int count);
+
+    /**
+     * Keyset query: rows after (afterTimestamp, afterId) in (timestamp, id) order, with timestamp < to.
+     * Pass (from, Long.MIN_VALUE) to start at timestamp from, inclusive.
+     *
+     * @return at most limit rows with the columns of {@link FitnessDbSchema.AccelerationTable}
+     */
+    Cursor query(long afterTimestamp, long afterId, long to, int limit);
+
+    Cursor queryAll();
+
+    /**
+     * Makes appended samples durable.
+     */
+    void flush();
+
+    void close();
+
+}
@@ -0,0 +1,235 @@
+package in.wangziq.fitnessrecorder.persistance;
+
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Write-behind queue for sensor samples.
+ * Samples are buffered in memory and committed by a background thread in one transaction,
+ * either when {@link #MAX_BATCH_SIZE} samples are pending or {@link #MAX_DELAY} ms after the
+ * oldest pending sample arrived, so that a single commit (and fsync) covers many rows.
+ * The writer thread runs as long as the process, like {@link DbTool}.
+ */
+final class BatchWriter {
+
+    private static final String TAG = BatchWriter.class.getSimpleName();
+
+    static final int MAX_BATCH_SIZE = 256;
+    static final int MAX_DELAY = 5000; // 5 s
+
+    private final SQLiteDatabase mDb;
+    private final HeartRateStore mHeartRateStore;
+    private final AccelerationStore mAccelerationStore;
+    private final SqliteRrIntervalStore mRrIntervalStore;
+    private final RollupWriter mRollups; // only used by the writer thread
+
+    private SampleBuffer mPending, mWriting;
+    private long mFirstPendingTime;
+    private long mSubmitted, mCommitted;
+    private boolean mFlushRequested;
+    private Thread mWriterThread;
+
+    BatchWriter(SQLiteDatabase db, HeartRateStore heartRateStore, AccelerationStore accelerationStore,
+                SqliteRrIntervalStore rrIntervalStore) {
+        mDb = db;
+        mHeartRateStore = heartRateStore;
+        mAccelerationStore = accelerationStore;
+        mRrIntervalStore = rrIntervalStore;
+        mRollups = new RollupWriter(db);
+        mPending = new SampleBuffer();
+        mWriting = new SampleBuffer();
+    }
+
+    synchronized void addHeartRate(long timestamp, int heartRate) {
+        mPending.addHeartRate(timestamp, heartRate);
+        onSampleAdded();
+    }
+
+    synchronized void addRrInterval(long timestamp, float interval) {
+        mPending.addRrInterval(timestamp, interval);
+        onSampleAdded();
+    }
+
+    synchronized void addAcceleration(long timestamp, float x, float y, float z) {
+        mPending.addAcceleration(timestamp, x, y, z);
+        onSampleAdded();
+    }
+
+    synchronized void addAccelerations(long[] timestamps, float[] x, float[] y, float[] z, int count) {
+        if (count <= 0) return;
+        mPending.addAccelerations(timestamps, x, y, z, count);
+        onSamplesAdded(count);
+    }
+
+    /**
+     * Blocks until every sample added before this call has been committed.
+     */
+    synchronized void flush() {
+        final long target = mSubmitted;
+        if (mCommitted >= target) return;
+        mFlushRequested = true;
+        notifyAll();
+        try {
+            while (mCommitted < target && mWriterThread != null) wait();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "flush: interrupted: " + e.getMessage(), e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void onSampleAdded() {
+        onSamplesAdded(1);
+    }
+
+    private void onSamplesAdded(int count) {
+        final boolean wasEmpty = mPending.size() == count;
+        if (wasEmpty) mFirstPendingTime = SystemClock.elapsedRealtime();
+        mSubmitted += count;
+        if (mWriterThread == null) {
+            mWriterThread = new Thread(this::runWriter, TAG);
+            mWriterThread.start();
+        } else if (wasEmpty || mPending.size() >= MAX_BATCH_SIZE) {
+            // wake the writer to arm the time threshold, or to commit a full batch
+            notifyAll();
+        }
+    }
+
+    private void runWriter() {
+        for (;;) {
+            synchronized (this) {
+                try {
+                    long delay;
+                    while ((delay = commitDelay()) > 0) wait(delay == Long.MAX_VALUE ? 0 : delay);
+                } catch (InterruptedException e) {
+                    // nothing stops the writer, wait for the pending samples again
+                    Log.e(TAG, "runWriter: interrupted: " + e.getMessage(), e);
+                    continue;
+                }
+                SampleBuffer ready = mPending;
+                mPending = mWriting;
+                mWriting = ready;
+                mFlushRequested = false;
+            }
+
+            final int count = mWriting.size();
+            commit(mWriting);
+            mWriting.clear();
+
+            synchronized (this) {
+                mCommitted += count;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return 0 if pending samples should be committed now, otherwise the time to wait in ms
+     */
+    private long commitDelay() {
+        final int size = mPending.size();
+        if (size == 0) return Long.MAX_VALUE;
+        if (size >= MAX_BATCH_SIZE || mFlushRequested) return 0;
+        return Math.max(0, mFirstPendingTime + MAX_DELAY - SystemClock.elapsedRealtime());
+    }
+
+    // accelerations are appended last: a segment file is not rolled back with the transaction,
+    // so nothing may fail after them. If the commit itself fails, they are kept though.
+    private void commit(SampleBuffer buffer) {
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < buffer.heartRateCount; ++i) {
+                if (mHeartRateStore.insert(buffer.heartRateTime[i], buffer.heartRate[i]))
+                    mRollups.addHeartRate(buffer.heartRateTime[i], buffer.heartRate[i]);
+            }
+            mHeartRateStore.flush();
+            for (int i = 0; i < buffer.rrCount; ++i) mRrIntervalStore.insert(buffer.rrTime[i], buffer.rrInterval[i]);
+            for (int i = 0; i < buffer.accelerationCount; ++i)
+                mRollups.addAcceleration(buffer.accelerationTime[i], buffer.x[i], buffer.y[i], buffer.z[i]);
+            mRollups.flush();
+            mAccelerationStore.append(buffer.accelerationTime, buffer.x, buffer.y, buffer.z,
+                    0, buffer.accelerationCount);
+            mDb.setTransactionSuccessful();
+            Log.d(TAG, "commit: heartRate=" + buffer.heartRateCount + ", rrInterval=" + buffer.rrCount
+                    + ", acceleration=" + buffer.accelerationCount);
+        } catch (SQLException e) {
+            Log.e(TAG, "commit: failed, " + buffer.size() + " samples dropped", e);
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    private static final class SampleBuffer {
+        long[] heartRateTime = new long[MAX_BATCH_SIZE];
+        int[] heartRate = new int[MAX_BATCH_SIZE];
+        int heartRateCount;
+
+        long[] rrTime = new long[MAX_BATCH_SIZE];
+        float[] rrInterval = new float[MAX_BATCH_SIZE];
+        int rrCount;
+
+        long[] accelerationTime = new long[MAX_BATCH_SIZE];
+        float[] x = new float[MAX_BATCH_SIZE], y = new float[MAX_BATCH_SIZE], z = new float[MAX_BATCH_SIZE];
+        int accelerationCount;
+
+        int size() {
+            return heartRateCount + rrCount + accelerationCount;
+        }
+
+        void clear() {
+            heartRateCount = rrCount = accelerationCount = 0;
+        }
+
+        // buffers only grow when the writer falls behind, which should rarely happen
+        void addHeartRate(long timestamp, int rate) {
+            if (heartRateCount == heartRate.length) {
+                heartRateTime = Arrays.copyOf(heartRateTime, heartRateCount * 2);
+                heartRate = Arrays.copyOf(heartRate, heartRateCount * 2);
+            }
+            heartRateTime[heartRateCount] = timestamp;
+            heartRate[heartRateCount] = rate;
+            ++heartRateCount;
+        }
+
+        void addRrInterval(long timestamp, float interval) {
+            if (rrCount == rrInterval.length) {
+                rrTime = Arrays.copyOf(rrTime, rrCount * 2);
+                rrInterval = Arrays.copyOf(rrInterval, rrCount * 2);
+            }
+            rrTime[rrCount] = timestamp;
+            rrInterval[rrCount] = interval;
+            ++rrCount;
+        }
+
+        void addAcceleration(long timestamp, float xValue, float yValue, float zValue) {
+            ensureAccelerationCapacity(accelerationCount + 1);
+            accelerationTime[accelerationCount] = timestamp;
+            x[accelerationCount] = xValue;
+            y[accelerationCount] = yValue;
+            z[accelerationCount] = zValue;
+            ++accelerationCount;
+        }
+
+        void addAccelerations(long[] timestamps, float[] xValues, float[] yValues, float[] zValues, int count) {
+            ensureAccelerationCapacity(accelerationCount + count);
+            System.arraycopy(timestamps, 0, accelerationTime, accelerationCount, count);
+            System.arraycopy(xValues, 0, x, accelerationCount, count);
+            System.arraycopy(yValues, 0, y, accelerationCount, count);
+            System.arraycopy(zValues, 0, z, accelerationCount, count);
+            accelerationCount += count;
+        }
+
+        private void ensureAccelerationCapacity(int capacity) {
+            if (capacity <= x.length) return;
+            final int newLength = Math.max(capacity, x.length * 2);
+            accelerationTime = Arrays.copyOf(accelerationTime, newLength);
+            x = Arrays.copyOf(x, newLength);
+            y = Arrays.copyOf(y, newLength);
+            z = Arrays.copyOf(z, newLength);
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+package in.wangziq.fitnessrecorder.persistance;
+
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+/**
+ * Deletes raw samples older than the {@link RetentionPolicy} and gives the freed pages back to the
+ * file system with incremental vacuum.
+ *
+ * Deletes and vacuum steps are bounded, each committed on its own, so the batch writer
+ * never waits long for the connection while this runs next to a measurement.
+ *
+ * The exception is the one full vacuum switching a database created before auto_vacuum was
+ * configured to incremental vacuum: it rewrites the whole file holding the connection, so it's
+ * only done when allowed by the caller, e.g. while charging, and deferred to a later run otherwise.
+ */
+final class Compaction implements Runnable {
+
+    private static final String TAG = Compaction.class.getSimpleName();
+
+    private static final int DELETE_CHUNK_ROWS = 5000;
+    private static final int VACUUM_CHUNK_PAGES = 256;
+
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private final SQLiteDatabase mDb;
+    private final SegmentAccelerationStore mSegments;
+    private final RetentionPolicy mPolicy;
+    private final boolean mFullVacuumAllowed;
+
+    /**
+     * @param segments the segment store, or null if acceleration is kept in the table only
+     * @param fullVacuumAllowed whether the connection may be held for a full vacuum if one is needed
+     */
+    Compaction(SQLiteDatabase db, @Nullable SegmentAccelerationStore segments, RetentionPolicy policy,
+               boolean fullVacuumAllowed) {
+        mDb = db;
+        mSegments = segments;
+        mPolicy = policy;
+        mFullVacuumAllowed = fullVacuumAllowed;
+    }
+
+    @Override
+    public void run() {
+        Log.i(TAG, "run: started");
+        final long now = System.currentTimeMillis();
+        try {
+            long deleted = deleteBefore(FitnessDbSchema.HeartRateTable.NAME,
+                    FitnessDbSchema.HeartRateTable.Cols.timestamp, mPolicy.heartRateCutoff(now));
+            deleted += deleteBefore(FitnessDbSchema.HeartRateRunTable.NAME,
+                    FitnessDbSchema.HeartRateRunTable.Cols.end, mPolicy.heartRateCutoff(now));
+            deleted += deleteBefore(FitnessDbSchema.RrIntervalTable.NAME,
+                    FitnessDbSchema.RrIntervalTable.Cols.timestamp, mPolicy.heartRateCutoff(now));
+            deleted += deleteBefore(FitnessDbSchema.AccelerationTable.NAME,
+                    FitnessDbSchema.AccelerationTable.Cols.timestamp, mPolicy.accelerationCutoff(now));
+            if (mSegments != null) mSegments.deleteBefore(mPolicy.accelerationCutoff(now));
+            if (deleted > 0 || mFullVacuumAllowed) vacuum();
+        } catch (SQLException e) {
+            Log.e(TAG, "run: failed", e);
+        }
+        Log.i(TAG, "run: finished");
+    }
+
+    /**
+     * @return the number of deleted rows
+     */
+    private long deleteBefore(String table, String timestamp, long cutoff) {
+        if (cutoff == Long.MIN_VALUE) return 0;
+        final String sql = String.format(
+                "delete from %1$s where rowid in (select rowid from %1$s where %2$s < %3$d limit %4$d)",
+                table, timestamp, cutoff, DELETE_CHUNK_ROWS);
+        long total = 0;
+        try (SQLiteStatement delete = mDb.compileStatement(sql)) {
+            int deleted;
+            do {
+                // each execution commits on its own
+                deleted = delete.executeUpdateDelete();
+                total += deleted;
+            } while (deleted == DELETE_CHUNK_ROWS);
+        }
+        Log.i(TAG, "deleteBefore: " + total + " rows deleted from " + table);
+        return total;
+    }
+
+    private void vacuum() {
+        if (DatabaseUtils.longForQuery(mDb, "pragma auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL) {
+            // databases created before auto_vacuum was configured need one full vacuum to switch;
+            // it can't run inside a transaction, so it's done here instead of onUpgrade()
+            if (!mFullVacuumAllowed) {
+                Log.i(TAG, "vacuum: incremental vacuum not enabled yet, deferred");
+                return;
+            }
+            Log.i(TAG, "vacuum: enabling incremental vacuum");
+            mDb.execSQL("pragma auto_vacuum = incremental");
+            mDb.execSQL("vacuum");
+            return;
+        }
+        long free;
+        while ((free = DatabaseUtils.longForQuery(mDb, "pragma freelist_count", null)) > 0) {
+            mDb.execSQL("pragma incremental_vacuum(" + Math.min(free, VACUUM_CHUNK_PAGES) + ")");
+        }
+        Log.i(TAG, "vacuum: free pages released");
+    }
+
+}
@@ -1,43 +1,305 @@
 package in.wangziq.fitnessrecorder.persistance;
 
-import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.BatteryManager;
 import android.util.Log;
 
+import java.io.File;
+import java.util.List;
+
+/**
+ * Process-wide access to the recorded data, shared by the recording service and the UI.
+ * Samples go through the single writable connection, queries use a separate pool of read-only
+ * connections, which in WAL mode never block and are never blocked by the writer.
+ */
 public final class DbTool {
 
     private static final String TAG = DbTool.class.getSimpleName();
 
+    // store acceleration in memory-mapped segment files instead of the sqlite table
+    private static final boolean ACCELERATION_SEGMENTS = true;
+    // store runs of identical heart rates instead of one row per sample
+    private static final boolean HEART_RATE_RUNS = true;
+
+    private static DbTool sInstance;
+
+    private final Context mContext;
     private SQLiteDatabase mDb;
+    private SQLiteDatabase mReadDb;
+    private SqliteHeartRateStore mHeartRateTable;
+    private HeartRateStore mHeartRateStore;
+    private SqliteRrIntervalStore mRrIntervals;
+    private SqliteAccelerationStore mAccelerationTable;
+    private SegmentAccelerationStore mSegments; // null if acceleration is kept in the table only
+    private AccelerationStore mAccelerationStore;
+    private BatchWriter mWriter;
+
+    public static synchronized DbTool getInstance(Context context) {
+        if (sInstance == null) sInstance = new DbTool(context.getApplicationContext());
+        return sInstance;
+    }
+
+    private DbTool(Context context) {
+        mContext = context;
+        // creates or upgrades the database, and switches it to WAL, before the readers open it
+        mDb = new FitnessDbHelper(context).getWritableDatabase();
+        mReadDb = SQLiteDatabase.openDatabase(mDb.getPath(), null,
+                SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING);
+        mHeartRateTable = new SqliteHeartRateStore(mDb, mReadDb);
+        mHeartRateStore = HEART_RATE_RUNS ? new RunHeartRateStore(mDb, mReadDb) : mHeartRateTable;
+        mRrIntervals = new SqliteRrIntervalStore(mDb, mReadDb);
+        mAccelerationTable = new SqliteAccelerationStore(mDb, mReadDb);
+        mSegments = ACCELERATION_SEGMENTS
+                ? new SegmentAccelerationStore(new File(context.getFilesDir(), SegmentAccelerationStore.DIR_NAME),
+                        mAccelerationTable.queryMaxId() + 1)
+                : null;
+        mAccelerationStore = mSegments != null ? mSegments : mAccelerationTable;
+        mWriter = new BatchWriter(mDb, mHeartRateStore, mAccelerationStore, mRrIntervals);
+        Session.endAbandoned(mDb);
+    }
+
+    // samples are committed in batches, call flush() to make sure they are written;
+    // timestamps are epoch ms of when the sample was received, not of when it's written
+    public void insertHeartRate(long timestamp, int heartRate) {
+        mWriter.addHeartRate(timestamp, heartRate);
+    }
+
+    /**
+     * @param timestamp of the beat ending the interval
+     * @param interval ms since the previous beat
+     */
+    public void insertRrInterval(long timestamp, float interval) {
+        mWriter.addRrInterval(timestamp, interval);
+    }
+
+    public void insertAcceleration(long timestamp, float x, float y, float z) {
+        mWriter.addAcceleration(timestamp, x, y, z);
+    }
 
-    public DbTool(Context context) {
-        mDb = new FitnessDbHelper(context.getApplicationContext()).getWritableDatabase();
+    /**
+     * Queues n acceleration samples at once, e.g. all samples decoded from one notification.
+     * The arrays are copied, so callers may reuse them right after this returns.
+     */
+    public void insertAccelerationBatch(long[] timestamps, float[] x, float[] y, float[] z, int n) {
+        mWriter.addAccelerations(timestamps, x, y, z, n);
     }
 
-    public void insertHeartRate(int heartRate) {
-        ContentValues value = new ContentValues();
-        value.put(FitnessDbSchema.HeartRateTable.Cols.heartRate, heartRate);
-        mDb.insert(FitnessDbSchema.HeartRateTable.NAME, null, value);
-        Log.d(TAG, "insertHeartRate: inserted " + heartRate);
+    /**
+     * Commits queued samples and makes them durable, e.g. when a measurement stops.
+     */
+    public void flush() {
+        mWriter.flush();
+        mAccelerationStore.flush();
+        checkpoint(false);
     }
 
-    public void insertAcceleration(float x, float y, float z) {
-        ContentValues values = new ContentValues();
-        values.put(FitnessDbSchema.AccelerationTable.Cols.x, x);
-        values.put(FitnessDbSchema.AccelerationTable.Cols.y, y);
-        values.put(FitnessDbSchema.AccelerationTable.Cols.z, z);
-        mDb.insert(FitnessDbSchema.AccelerationTable.NAME, null, values);
-        Log.d(TAG, String.format("insertAcceleration: inserted (x=%f, y=%f, z=%f)", x, y, z));
+    /**
+     * Records the start of a measurement.
+     *
+     * @param type {@link FitnessDbSchema.SessionTable#TYPE_HEART_RATE} or TYPE_ACCELERATION
+     * @param start inclusive, on the {@link in.wangziq.fitnessrecorder.utils.SampleClock} stamping its samples
+     * @return id of the session
+     */
+    public long startSession(String type, long start) {
+        return Session.start(mDb, type, start);
+    }
+
+    /**
+     * Records the end of a measurement, once the band stopped sending samples.
+     * Queued samples are committed first.
+     *
+     * @param end exclusive, on the same clock as the start
+     */
+    public void endSession(long id, long end) {
+        flush();
+        Session.end(mDb, id, end);
+    }
+
+    /**
+     * Copies the write-ahead log back into the database file.
+     *
+     * @param full wait for the writer and readers to finish, so that the database file alone
+     *             holds everything committed so far; otherwise copy what can be copied without waiting
+     */
+    public void checkpoint(boolean full) {
+        final String mode = full ? "full" : "passive";
+        final long busy = DatabaseUtils.longForQuery(mDb, "pragma wal_checkpoint(" + mode + ")", null);
+        Log.i(TAG, "checkpoint: " + mode + (busy != 0 ? ", incomplete" : ""));
+    }
+
+    /**
+     * Writes a transactionally consistent copy of the database into a new file, without pausing
+     * the writer. Queued samples are committed first.
+     *
+     * @param destination must not exist yet
+     * @param from inclusive, epoch milliseconds; Long.MIN_VALUE and Long.MAX_VALUE copy everything
+     * @param to exclusive, epoch milliseconds
+     */
+    public void snapshot(File destination, long from, long to) {
+        flush();
+        Snapshot.write(new File(mDb.getPath()), mSegments, destination, from, to);
+    }
+
+    /**
+     * In a background thread, aggregates raw data recorded before the rollup tables existed,
+     * then deletes raw data beyond the retention period. A full vacuum, if needed, waits until
+     * maintenance starts while the device is charging.
+     */
+    public void startMaintenance(RetentionPolicy retention) {
+        final boolean backfill = RollupBackfill.isPending(mDb);
+        new Thread(() -> {
+            // the backfill goes first, so that pruned data is still counted in the rollups
+            if (backfill) new RollupBackfill(mDb, mSegments).run();
+            new Compaction(mDb, mSegments, retention, isCharging()).run();
+        }, "DbMaintenance").start();
+    }
+
+    private boolean isCharging() {
+        // sticky broadcast, nothing is registered
+        Intent battery = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    /**
+     * @return sessions overlapping [from, to), in the order they started
+     */
+    public List<Session> querySessions(long from, long to) {
+        return Session.query(mReadDb, from, to);
+    }
+
+    /**
+     * @return the session, or null if there's none with this id
+     */
+    public Session querySession(long id) {
+        return Session.query(mReadDb, id);
+    }
+
+    /**
+     * Heart rates from the returned time on may still change, e.g. the last run can still grow or
+     * split. Incremental exports stop right before them, and take the run whole once it's closed.
+     * Only committed samples are considered, flush first.
+     *
+     * @param now epoch milliseconds
+     * @return Long.MAX_VALUE if every heart rate stored is final
+     */
+    public long getOpenHeartRateFrom(long now) {
+        return mHeartRateStore.getOpenFrom(now);
     }
 
     public Cursor queryAllHeartRate() {
-        return mDb.rawQuery("select * from " + FitnessDbSchema.HeartRateTable.NAME, null);
+        if (mHeartRateStore == mHeartRateTable) return mHeartRateTable.queryAll();
+        // rows recorded before switching to runs stay in the table, and are older
+        return new MergeCursor(new Cursor[] {mHeartRateTable.queryAll(), mHeartRateStore.queryAll()});
     }
 
     public Cursor queryAllAcceleration() {
-        return mDb.rawQuery("select * from " + FitnessDbSchema.AccelerationTable.NAME, null);
+        if (mAccelerationStore == mAccelerationTable) return mAccelerationTable.queryAll();
+        // rows recorded before switching to segments stay in the table, and are older
+        return new MergeCursor(new Cursor[] {mAccelerationTable.queryAll(), mAccelerationStore.queryAll()});
+    }
+
+    /**
+     * @param from inclusive, epoch milliseconds
+     * @param to exclusive, epoch milliseconds
+     * @return at most limit rows in timestamp order; continue with {@link #queryHeartRateAfter}
+     */
+    public Cursor queryHeartRate(long from, long to, int limit) {
+        return queryHeartRateAfter(from == Long.MIN_VALUE ? from : from - 1, to, limit);
+    }
+
+    /**
+     * Next page of {@link #queryHeartRate}, starting right after the timestamp of the last row read.
+     */
+    public Cursor queryHeartRateAfter(long timestamp, long to, int limit) {
+        Cursor table = mHeartRateTable.query(timestamp, to, limit);
+        if (mHeartRateStore == mHeartRateTable) return table;
+        final int remaining = limit - table.getCount();
+        if (remaining <= 0) return table;
+        return new MergeCursor(new Cursor[] {table, mHeartRateStore.query(timestamp, to, remaining)});
+    }
+
+    /**
+     * @param from inclusive, epoch milliseconds
+     * @param to exclusive, epoch milliseconds
+     * @return at most limit rows of {@link FitnessDbSchema.RrIntervalTable} in (timestamp, id) order;
+     *         continue with {@link #queryRrIntervalsAfter}
+     */
+    public Cursor queryRrIntervals(long from, long to, int limit) {
+        return queryRrIntervalsAfter(from, Long.MIN_VALUE, to, limit);
+    }
+
+    /**
+     * Next page of {@link #queryRrIntervals}, starting right after the last row read,
+     * given its timestamp and id. Beats sharing a timestamp are never skipped or repeated.
+     */
+    public Cursor queryRrIntervalsAfter(long timestamp, long id, long to, int limit) {
+        return mRrIntervals.query(timestamp, id, to, limit);
+    }
+
+    /**
+     * @param from inclusive, epoch milliseconds
+     * @param to exclusive, epoch milliseconds
+     * @return at most limit rows in (timestamp, id) order; continue with {@link #queryAccelerationAfter}
+     */
+    public Cursor queryAcceleration(long from, long to, int limit) {
+        return queryAccelerationAfter(from, Long.MIN_VALUE, to, limit);
+    }
+
+    /**
+     * Next page of {@link #queryAcceleration}, starting right after the last row read,
+     * given its timestamp and id. Samples sharing a timestamp are never skipped or repeated.
+     */
+    public Cursor queryAccelerationAfter(long timestamp, long id, long to, int limit) {
+        Cursor table = mAccelerationTable.query(timestamp, id, to, limit);
+        if (mAccelerationStore == mAccelerationTable) return table;
+        final int remaining = limit - table.getCount();
+        if (remaining <= 0) return table;
+        // rows recorded before switching to segments stay in the table, and are older
+        return new MergeCursor(new Cursor[] {table, mAccelerationStore.query(timestamp, id, to, remaining)});
+    }
+
+    /**
+     * @param from inclusive, epoch milliseconds, truncated to whole minutes
+     * @param to exclusive, epoch milliseconds, truncated to whole minutes
+     */
+    public RollupStats queryHeartRateStats(long from, long to) {
+        return RollupStats.query(mReadDb, FitnessDbSchema.RollupTable.HEART_RATE, from, to);
+    }
+
+    /**
+     * Same as {@link #queryHeartRateStats(long, long)}, of the magnitude of acceleration.
+     */
+    public RollupStats queryAccelerationStats(long from, long to) {
+        return RollupStats.query(mReadDb, FitnessDbSchema.RollupTable.ACCELERATION, from, to);
+    }
+
+    /**
+     * @param resolution one of {@link FitnessDbSchema.RollupTable#MINUTE}, HOUR and DAY
+     * @return buckets with the columns of {@link FitnessDbSchema.RollupTable}, in time order
+     */
+    public Cursor queryHeartRateRollup(long resolution, long from, long to) {
+        return queryRollup(FitnessDbSchema.RollupTable.HEART_RATE, resolution, from, to);
+    }
+
+    public Cursor queryAccelerationRollup(long resolution, long from, long to) {
+        return queryRollup(FitnessDbSchema.RollupTable.ACCELERATION, resolution, from, to);
+    }
+
+    private Cursor queryRollup(String table, long resolution, long from, long to) {
+        return mReadDb.rawQuery(String.format("select * from %s where %s = ? and %s >= ? and %s < ? order by %s",
+                table,
+                FitnessDbSchema.RollupTable.Cols.resolution,
+                FitnessDbSchema.RollupTable.Cols.bucket,
+                FitnessDbSchema.RollupTable.Cols.bucket,
+                FitnessDbSchema.RollupTable.Cols.bucket),
+                new String[] {Long.toString(resolution), Long.toString(RollupWriter.bucketStart(from, resolution)),
+                        Long.toString(to)});
     }
 
 }
@@ -1,6 +1,7 @@
 package in.wangziq.fitnessrecorder.persistance;
 
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
@@ -9,41 +10,165 @@ public final class FitnessDbHelper extends SQLiteOpenHelper {
 
     private static final String TAG = FitnessDbHelper.class.getSimpleName();
 
-    public static final int VERSION = 2;
+    public static final int VERSION = 7;
     public static final String DB_NAME = "fitness_data.db";
 
+    // checkpoint policy of the write-ahead log, see onOpen()
+    static final int WAL_AUTOCHECKPOINT_PAGES = 1000;
+    static final long WAL_SIZE_LIMIT = 4 * 1024 * 1024; // 4 MiB
+
     public FitnessDbHelper(Context context) {
         super(context, DB_NAME, null, VERSION);
+        // readers see the last committed snapshot while the writer appends to the log
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // only takes effect on a new database, existing ones are switched by Compaction
+        db.execSQL("pragma auto_vacuum = incremental");
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        if (db.isReadOnly()) return;
+        // commits are ordered in the log, fsync only at checkpoints: a power loss may drop the
+        // last commits but never corrupts the database
+        db.execSQL("pragma synchronous = normal");
+        // checkpoint less often than the default 100 pages, so that the batch writer rarely pays for it
+        // while recording; the log file is truncated back to the limit after each checkpoint
+        DatabaseUtils.longForQuery(db, "pragma wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES, null);
+        DatabaseUtils.longForQuery(db, "pragma journal_size_limit = " + WAL_SIZE_LIMIT, null);
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-        createHeartRateDb(db);
-        createAccelerationDb(db);
+        createHeartRateDb(db, FitnessDbSchema.HeartRateTable.NAME);
+        createHeartRateRunDb(db);
+        createAccelerationDb(db, FitnessDbSchema.AccelerationTable.NAME);
+        createAccelerationIndex(db);
+        createRollupDb(db);
+        createSessionDb(db);
+        createRrIntervalDb(db);
+        createRrIntervalIndex(db);
     }
 
     @Override
-    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 3) {
+            createRollupDb(db);
+            RollupBackfill.schedule(db, System.currentTimeMillis());
+        }
+        if (oldVersion < 4) {
+            migrateToEpochTimestamps(db);
+        }
+        if (oldVersion < 5) {
+            createHeartRateRunDb(db);
+        }
+        if (oldVersion < 6) {
+            createSessionDb(db);
+        }
+        if (oldVersion < 7) {
+            createRrIntervalDb(db);
+            createRrIntervalIndex(db);
+        }
     }
 
-    private static void createHeartRateDb(SQLiteDatabase db) {
-        final String ddl = String.format(
-                "create table %s (%s datetime primary key default current_timestamp, %s integer not null check (%s > 0));",
+    // version 4: timestamps are integer epoch milliseconds instead of current_timestamp text
+    private static void migrateToEpochTimestamps(SQLiteDatabase db) {
+        final String heartRateTmp = FitnessDbSchema.HeartRateTable.NAME + "_v4";
+        createHeartRateDb(db, heartRateTmp);
+        db.execSQL(String.format("insert or ignore into %s (%s, %s) select %s, %s from %s where %s is not null",
+                heartRateTmp,
+                FitnessDbSchema.HeartRateTable.Cols.timestamp,
+                FitnessDbSchema.HeartRateTable.Cols.heartRate,
+                toEpochMillis(FitnessDbSchema.HeartRateTable.Cols.timestamp),
+                FitnessDbSchema.HeartRateTable.Cols.heartRate,
                 FitnessDbSchema.HeartRateTable.NAME,
+                FitnessDbSchema.HeartRateTable.Cols.timestamp));
+        db.execSQL("drop table " + FitnessDbSchema.HeartRateTable.NAME);
+        db.execSQL(String.format("alter table %s rename to %s", heartRateTmp, FitnessDbSchema.HeartRateTable.NAME));
+
+        final String accelerationTmp = FitnessDbSchema.AccelerationTable.NAME + "_v4";
+        createAccelerationDb(db, accelerationTmp);
+        db.execSQL(String.format("insert into %1$s (%2$s, %3$s, %4$s, %5$s, %6$s) select %2$s, %7$s, %4$s, %5$s, %6$s from %8$s",
+                accelerationTmp,
+                FitnessDbSchema.AccelerationTable.Cols.id,
+                FitnessDbSchema.AccelerationTable.Cols.timestamp,
+                FitnessDbSchema.AccelerationTable.Cols.x,
+                FitnessDbSchema.AccelerationTable.Cols.y,
+                FitnessDbSchema.AccelerationTable.Cols.z,
+                toEpochMillis(FitnessDbSchema.AccelerationTable.Cols.timestamp),
+                FitnessDbSchema.AccelerationTable.NAME));
+        db.execSQL("drop table " + FitnessDbSchema.AccelerationTable.NAME);
+        db.execSQL(String.format("alter table %s rename to %s", accelerationTmp, FitnessDbSchema.AccelerationTable.NAME));
+        createAccelerationIndex(db);
+        Log.i(TAG, "migrateToEpochTimestamps: migrated successfully");
+    }
+
+    private static String toEpochMillis(String datetimeColumn) {
+        return "cast(strftime('%s', " + datetimeColumn + ") as integer) * 1000";
+    }
+
+    private static void createHeartRateDb(SQLiteDatabase db, String name) {
+        // the timestamp is an alias of rowid, so range scans need no separate index
+        final String ddl = String.format(
+                "create table %s (%s integer primary key, %s integer not null check (%s > 0));",
+                name,
                 FitnessDbSchema.HeartRateTable.Cols.timestamp,
                 FitnessDbSchema.HeartRateTable.Cols.heartRate, FitnessDbSchema.HeartRateTable.Cols.heartRate);
         db.execSQL(ddl);
         Log.i(TAG, "createHeartRateDb: created successfully");
     }
 
-    private static void createAccelerationDb(SQLiteDatabase db) {
+    private static void createHeartRateRunDb(SQLiteDatabase db) {
+        // runs never overlap, so the run containing a time is the last one starting before it
+        final String ddl = String.format("create table %s (" +
+                "%s integer primary key, " +
+                "%s integer not null, " +
+                "%s integer not null check (%s > 0), " +
+                "%s integer not null check (%s > 0), " +
+                "%s blob not null);",
+                FitnessDbSchema.HeartRateRunTable.NAME,
+                FitnessDbSchema.HeartRateRunTable.Cols.start,
+                FitnessDbSchema.HeartRateRunTable.Cols.end,
+                FitnessDbSchema.HeartRateRunTable.Cols.heartRate, FitnessDbSchema.HeartRateRunTable.Cols.heartRate,
+                FitnessDbSchema.HeartRateRunTable.Cols.count, FitnessDbSchema.HeartRateRunTable.Cols.count,
+                FitnessDbSchema.HeartRateRunTable.Cols.deltas);
+        db.execSQL(ddl);
+        Log.i(TAG, "createHeartRateRunDb: created successfully");
+    }
+
+    private static void createRrIntervalDb(SQLiteDatabase db) {
+        // unlike heart rates, two beats may round to the same millisecond, so the timestamp can't be the key
         final String ddl = String.format("create table %s (" +
                 "%s integer primary key autoincrement, " +
-                "%s datetime not null default current_timestamp, " +
+                "%s integer not null, " +
+                "%s real not null check (%s > 0));",
+                FitnessDbSchema.RrIntervalTable.NAME,
+                FitnessDbSchema.RrIntervalTable.Cols.id,
+                FitnessDbSchema.RrIntervalTable.Cols.timestamp,
+                FitnessDbSchema.RrIntervalTable.Cols.interval, FitnessDbSchema.RrIntervalTable.Cols.interval);
+        db.execSQL(ddl);
+        Log.i(TAG, "createRrIntervalDb: created successfully");
+    }
+
+    // as for acceleration, entries are ordered by (timestamp, id), the keyset of range queries
+    private static void createRrIntervalIndex(SQLiteDatabase db) {
+        db.execSQL(String.format("create index %s on %s (%s);",
+                FitnessDbSchema.RrIntervalTable.TIMESTAMP_INDEX,
+                FitnessDbSchema.RrIntervalTable.NAME,
+                FitnessDbSchema.RrIntervalTable.Cols.timestamp));
+    }
+
+    private static void createAccelerationDb(SQLiteDatabase db, String name) {
+        final String ddl = String.format("create table %s (" +
+                "%s integer primary key autoincrement, " +
+                "%s integer not null, " +
                 "%s real not null, " +
                 "%s real not null, " +
                 "%s real not null);",
-                FitnessDbSchema.AccelerationTable.NAME,
+                name,
                 FitnessDbSchema.AccelerationTable.Cols.id,
                 FitnessDbSchema.AccelerationTable.Cols.timestamp,
                 FitnessDbSchema.AccelerationTable.Cols.x,
@@ -53,4 +178,66 @@ public final class FitnessDbHelper extends SQLiteOpenHelper {
         Log.i(TAG, "createAccelerationDb: created successfully");
     }
 
+    // entries of the index are ordered by (timestamp, id), which is also the keyset of range queries
+    private static void createAccelerationIndex(SQLiteDatabase db) {
+        db.execSQL(String.format("create index %s on %s (%s);",
+                FitnessDbSchema.AccelerationTable.TIMESTAMP_INDEX,
+                FitnessDbSchema.AccelerationTable.NAME,
+                FitnessDbSchema.AccelerationTable.Cols.timestamp));
+    }
+
+    private static void createRollupDb(SQLiteDatabase db) {
+        for (String table: new String[] {FitnessDbSchema.RollupTable.HEART_RATE, FitnessDbSchema.RollupTable.ACCELERATION}) {
+            final String ddl = String.format("create table %s (" +
+                    "%s integer not null, " +
+                    "%s integer not null, " +
+                    "%s integer not null, " +
+                    "%s real not null, " +
+                    "%s real not null, " +
+                    "%s real not null, " +
+                    "%s real not null, " +
+                    "primary key (%s, %s));",
+                    table,
+                    FitnessDbSchema.RollupTable.Cols.resolution,
+                    FitnessDbSchema.RollupTable.Cols.bucket,
+                    FitnessDbSchema.RollupTable.Cols.count,
+                    FitnessDbSchema.RollupTable.Cols.min,
+                    FitnessDbSchema.RollupTable.Cols.max,
+                    FitnessDbSchema.RollupTable.Cols.sum,
+                    FitnessDbSchema.RollupTable.Cols.sumOfSquares,
+                    FitnessDbSchema.RollupTable.Cols.resolution,
+                    FitnessDbSchema.RollupTable.Cols.bucket);
+            db.execSQL(ddl);
+        }
+        final String ddl = String.format("create table %s (" +
+                "%s text primary key, " +
+                "%s integer not null default 0, " +
+                "%s integer not null);",
+                FitnessDbSchema.RollupBackfillTable.NAME,
+                FitnessDbSchema.RollupBackfillTable.Cols.source,
+                FitnessDbSchema.RollupBackfillTable.Cols.position,
+                FitnessDbSchema.RollupBackfillTable.Cols.until);
+        db.execSQL(ddl);
+        Log.i(TAG, "createRollupDb: created successfully");
+    }
+
+    private static void createSessionDb(SQLiteDatabase db) {
+        final String ddl = String.format("create table %s (" +
+                "%s integer primary key autoincrement, " +
+                "%s text not null, " +
+                "%s integer not null, " +
+                "%s integer);",
+                FitnessDbSchema.SessionTable.NAME,
+                FitnessDbSchema.SessionTable.Cols.id,
+                FitnessDbSchema.SessionTable.Cols.type,
+                FitnessDbSchema.SessionTable.Cols.start,
+                FitnessDbSchema.SessionTable.Cols.end);
+        db.execSQL(ddl);
+        db.execSQL(String.format("create index %s on %s (%s);",
+                FitnessDbSchema.SessionTable.START_INDEX,
+                FitnessDbSchema.SessionTable.NAME,
+                FitnessDbSchema.SessionTable.Cols.start));
+        Log.i(TAG, "createSessionDb: created successfully");
+    }
+
 }
@@ -1,5 +1,8 @@
 package in.wangziq.fitnessrecorder.persistance;
 
+/**
+ * Timestamps are epoch milliseconds.
+ */
 public final class FitnessDbSchema {
 
     public static final class HeartRateTable {
@@ -11,8 +14,41 @@ public final class FitnessDbSchema {
         }
     }
 
+    /**
+     * Consecutive heart rates of the same value, as one row per run. The time of each sample is
+     * kept exactly, as the start time and the gaps to the following samples.
+     */
+    public static final class HeartRateRunTable {
+        public static final String NAME = "heart_rate_run";
+
+        public static final class Cols {
+            public static final String start = "start_time";
+            public static final String end = "end_time";
+            public static final String heartRate = "rate";
+            public static final String count = "count";
+            // gaps in ms between successive samples as unsigned varints
+            public static final String deltas = "deltas";
+        }
+    }
+
+    /**
+     * Intervals between successive heartbeats, each timestamped with the beat ending it.
+     * Beats may share a timestamp, rows are told apart by id.
+     */
+    public static final class RrIntervalTable {
+        public static final String NAME = "rr_interval";
+        public static final String TIMESTAMP_INDEX = "rr_interval_timestamp_index";
+
+        public static final class Cols {
+            public static final String id = "id";
+            public static final String timestamp = "timestamp";
+            public static final String interval = "interval"; // ms
+        }
+    }
+
     public static final class AccelerationTable {
         public static final String NAME = "acceleration";
+        public static final String TIMESTAMP_INDEX = "acceleration_timestamp_index";
 
         public static final class Cols {
             public static final String id = "id";
@@ -23,4 +59,58 @@ public final class FitnessDbSchema {
         }
     }
 
+    /**
+     * Per bucket statistics of heart rate or acceleration magnitude. Buckets are aligned to epoch (UTC).
+     */
+    public static final class RollupTable {
+        public static final String HEART_RATE = "heart_rate_rollup";
+        public static final String ACCELERATION = "acceleration_rollup";
+
+        public static final long MINUTE = 60 * 1000;
+        public static final long HOUR = 60 * MINUTE;
+        public static final long DAY = 24 * HOUR;
+
+        public static final class Cols {
+            public static final String resolution = "resolution";
+            public static final String bucket = "bucket";
+            public static final String count = "count";
+            public static final String min = "min";
+            public static final String max = "max";
+            public static final String sum = "sum";
+            public static final String sumOfSquares = "sum_sq";
+        }
+    }
+
+    /**
+     * One row per measurement started by the service. Samples belong to a session by time:
+     * those of its type with start <= timestamp < end. The end is null while recording.
+     */
+    public static final class SessionTable {
+        public static final String NAME = "session";
+        public static final String START_INDEX = "session_start_index";
+
+        public static final String TYPE_HEART_RATE = "heart_rate";
+        public static final String TYPE_ACCELERATION = "acceleration";
+
+        public static final class Cols {
+            public static final String id = "id";
+            public static final String type = "type";
+            public static final String start = "start_time";
+            public static final String end = "end_time";
+        }
+    }
+
+    /**
+     * Raw data recorded before the rollup tables existed, which is still to be aggregated.
+     */
+    public static final class RollupBackfillTable {
+        public static final String NAME = "rollup_backfill";
+
+        public static final class Cols {
+            public static final String source = "source";
+            public static final String position = "position";
+            public static final String until = "until_time";
+        }
+    }
+
 }
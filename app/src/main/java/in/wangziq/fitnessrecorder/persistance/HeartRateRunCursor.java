@@ -0,0 +1,210 @@
+package in.wangziq.fitnessrecorder.persistance;
+
+import android.database.AbstractCursor;
+
+import java.util.Arrays;
+
+/**
+ * Read-only cursor expanding runs of {@link FitnessDbSchema.HeartRateRunTable} into one row per sample,
+ * with the same columns as {@link FitnessDbSchema.HeartRateTable}. Times of a run are decoded from its
+ * deltas once the cursor moves into it.
+ */
+final class HeartRateRunCursor extends AbstractCursor {
+
+    private static final String[] COLUMNS = {
+            FitnessDbSchema.HeartRateTable.Cols.timestamp,
+            FitnessDbSchema.HeartRateTable.Cols.heartRate,
+    };
+    private static final int TIMESTAMP = 0;
+
+    static final int MAX_GAP_LENGTH = 10; // bytes, of a varint
+
+    private final long[] mStarts;
+    private final int[] mRates, mCounts;
+    private final byte[][] mDeltas;
+    private final int[] mFirsts; // index within each run of its first sample in the cursor
+    private final int[] mOffsets; // position of the first row of each run, plus the total count
+
+    private int mRun, mSample;
+    private int mDecodedRun = -1;
+    private long[] mTimes;
+
+    private HeartRateRunCursor(Builder builder) {
+        final int n = builder.mSize;
+        mStarts = Arrays.copyOf(builder.mStarts, n);
+        mRates = Arrays.copyOf(builder.mRates, n);
+        mCounts = Arrays.copyOf(builder.mCounts, n);
+        mDeltas = Arrays.copyOf(builder.mDeltas, n);
+        mFirsts = Arrays.copyOf(builder.mFirsts, n);
+        mOffsets = Arrays.copyOf(builder.mOffsets, n + 1);
+    }
+
+    /**
+     * Writes the gap to the next sample of a run as an unsigned varint.
+     *
+     * @param buffer with room for {@link #MAX_GAP_LENGTH} bytes at position
+     * @return the position after the gap
+     */
+    static int putGap(byte[] buffer, int position, long gap) {
+        while ((gap & ~0x7fL) != 0) {
+            buffer[position++] = (byte) (gap & 0x7f | 0x80);
+            gap >>>= 7;
+        }
+        buffer[position++] = (byte) gap;
+        return position;
+    }
+
+    /**
+     * @return the gaps between times[from, to), as stored with a run of those samples
+     */
+    static byte[] encodeGaps(long[] times, int from, int to) {
+        final byte[] deltas = new byte[Math.max(to - from - 1, 0) * MAX_GAP_LENGTH];
+        int length = 0;
+        for (int i = from + 1; i < to; ++i) length = putGap(deltas, length, times[i] - times[i - 1]);
+        return Arrays.copyOf(deltas, length);
+    }
+
+    /**
+     * @param deltas gaps between successive samples, see {@link #encodeGaps}
+     * @return time of every sample of the run
+     */
+    static long[] decodeTimes(long start, int count, byte[] deltas) {
+        final long[] times = new long[count];
+        if (count == 0) return times;
+        times[0] = start;
+        int position = 0;
+        for (int i = 1; i < count; ++i) {
+            long gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = position < deltas.length ? deltas[position++] : 0;
+                gap |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            times[i] = times[i - 1] + gap;
+        }
+        return times;
+    }
+
+    /**
+     * @return index of the first sample later than time (or not earlier, if inclusive)
+     */
+    static int firstSampleAfter(long[] times, long time, boolean inclusive) {
+        int low = 0, high = times.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (inclusive ? times[mid] < time : times[mid] <= time) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        int i = Arrays.binarySearch(mOffsets, newPosition);
+        if (i < 0) i = -i - 2; // ranges are never empty, so offsets are strictly increasing
+        if (i < 0 || i >= mStarts.length) return false;
+        mRun = i;
+        mSample = mFirsts[i] + newPosition - mOffsets[i];
+        return true;
+    }
+
+    @Override
+    public int getCount() {
+        return mOffsets[mOffsets.length - 1];
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return COLUMNS;
+    }
+
+    @Override
+    public int getType(int column) {
+        return FIELD_TYPE_INTEGER;
+    }
+
+    @Override
+    public String getString(int column) {
+        return Long.toString(getLong(column));
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        if (column != TIMESTAMP) return mRates[mRun];
+        if (mDecodedRun != mRun) {
+            mTimes = decodeTimes(mStarts[mRun], mCounts[mRun], mDeltas[mRun]);
+            mDecodedRun = mRun;
+        }
+        return mTimes[mSample];
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return false;
+    }
+
+    static final class Builder {
+        private long[] mStarts = new long[16];
+        private int[] mRates = new int[16], mCounts = new int[16], mFirsts = new int[16];
+        private byte[][] mDeltas = new byte[16][];
+        private int[] mOffsets = new int[17];
+        private int mSize;
+
+        /**
+         * Adds the samples of a run with after < timestamp < to, at most limit of them.
+         *
+         * @return the number of samples added
+         */
+        int add(long start, int rate, int count, byte[] deltas, long after, long to, int limit) {
+            final long[] times = decodeTimes(start, count, deltas);
+            final int first = firstSampleAfter(times, after, false);
+            int last = firstSampleAfter(times, to, true);
+            if (last - first > limit) last = first + limit;
+            if (first >= last) return 0;
+            if (mSize == mStarts.length) {
+                final int length = mSize * 2;
+                mStarts = Arrays.copyOf(mStarts, length);
+                mRates = Arrays.copyOf(mRates, length);
+                mCounts = Arrays.copyOf(mCounts, length);
+                mDeltas = Arrays.copyOf(mDeltas, length);
+                mFirsts = Arrays.copyOf(mFirsts, length);
+                mOffsets = Arrays.copyOf(mOffsets, length + 1);
+            }
+            mStarts[mSize] = start;
+            mRates[mSize] = rate;
+            mCounts[mSize] = count;
+            mDeltas[mSize] = deltas;
+            mFirsts[mSize] = first;
+            mOffsets[mSize + 1] = mOffsets[mSize] + last - first;
+            ++mSize;
+            return last - first;
+        }
+
+        HeartRateRunCursor build() {
+            return new HeartRateRunCursor(this);
+        }
+    }
+
+}
@@ -0,0 +1,39 @@
+package in.wangziq.fitnessrecorder.persistance;
+
+import android.database.Cursor;
+
+/**
+ * Storage backend of heart rate samples.
+ * Inserts come from the single writer thread of {@link BatchWriter}, queries may come from any thread.
+ */
+interface HeartRateStore {
+
+    /**
+     * @return false if the sample was ignored, e.g. another one with the same timestamp exists
+     */
+    boolean insert(long timestamp, int heartRate);
+
+    /**
+     * Writes what {@link #insert} may have kept in memory, inside the transaction of the writer.
+     */
+    void flush();
+
+    /**
+     * Keyset query: rows with afterTimestamp < timestamp < to, in timestamp order.
+     *
+     * @return at most limit rows with the columns of {@link FitnessDbSchema.HeartRateTable}
+     */
+    Cursor query(long afterTimestamp, long to, int limit);
+
+    Cursor queryAll();
+
+    /**
+     * @param now epoch milliseconds
+     * @return time from which stored samples may still change, e.g. a run that can still grow,
+     *         or Long.MAX_VALUE if they're all final
+     */
+    long getOpenFrom(long now);
+
+    void close();
+
+}
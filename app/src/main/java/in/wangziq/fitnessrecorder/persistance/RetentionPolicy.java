@@ -0,0 +1,55 @@
+package in.wangziq.fitnessrecorder.persistance;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import in.wangziq.fitnessrecorder.config.Constants;
+
+/**
+ * How long raw samples are kept, in days; 0 keeps them forever.
+ * Rollups are always kept, so statistics of pruned ranges stay available.
+ */
+public final class RetentionPolicy {
+
+    public static final int DEFAULT_HEART_RATE_DAYS = 365;
+    public static final int DEFAULT_ACCELERATION_DAYS = 7;
+
+    private final int mHeartRateDays;
+    private final int mAccelerationDays;
+
+    public RetentionPolicy(int heartRateDays, int accelerationDays) {
+        mHeartRateDays = heartRateDays;
+        mAccelerationDays = accelerationDays;
+    }
+
+    public static RetentionPolicy load(Context context) {
+        SharedPreferences settings = context.getSharedPreferences(Constants.Settings.RETENTION, Context.MODE_PRIVATE);
+        return new RetentionPolicy(
+                settings.getInt(Constants.Settings.RETENTION_HEART_RATE_DAYS, DEFAULT_HEART_RATE_DAYS),
+                settings.getInt(Constants.Settings.RETENTION_ACCELERATION_DAYS, DEFAULT_ACCELERATION_DAYS));
+    }
+
+    public int getHeartRateDays() {
+        return mHeartRateDays;
+    }
+
+    public int getAccelerationDays() {
+        return mAccelerationDays;
+    }
+
+    /**
+     * @return epoch ms before which heart rates are deleted, or Long.MIN_VALUE to keep everything
+     */
+    long heartRateCutoff(long now) {
+        return cutoff(now, mHeartRateDays);
+    }
+
+    long accelerationCutoff(long now) {
+        return cutoff(now, mAccelerationDays);
+    }
+
+    private static long cutoff(long now, int days) {
+        return days > 0 ? now - days * FitnessDbSchema.RollupTable.DAY : Long.MIN_VALUE;
+    }
+
+}
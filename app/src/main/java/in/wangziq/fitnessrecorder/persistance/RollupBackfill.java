@@ -0,0 +1,212 @@
+package in.wangziq.fitnessrecorder.persistance;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+/**
+ * Aggregates raw data recorded before the rollup tables existed, as listed in
+ * {@link FitnessDbSchema.RollupBackfillTable}. Data newer than the until time of a source is
+ * aggregated on ingest, so it's left alone here.
+ *
+ * Sources are processed in chunks, each in one transaction together with its progress,
+ * so the job can be interrupted and resumed without counting anything twice.
+ */
+final class RollupBackfill implements Runnable {
+
+    private static final String TAG = RollupBackfill.class.getSimpleName();
+
+    static final String HEART_RATE = "heart_rate";
+    static final String ACCELERATION = "acceleration";
+    static final String ACCELERATION_SEGMENTS = "acceleration_segments";
+
+    private static final long CHUNK_TIME = FitnessDbSchema.RollupTable.DAY;
+    private static final int CHUNK_ROWS = 10000;
+
+    private final SQLiteDatabase mDb;
+    private final AccelerationStore mSegments;
+
+    /**
+     * @param segments the segment store, or null if acceleration is kept in the table only
+     */
+    RollupBackfill(SQLiteDatabase db, @Nullable AccelerationStore segments) {
+        mDb = db;
+        mSegments = segments;
+    }
+
+    static void schedule(SQLiteDatabase db, long until) {
+        ContentValues values = new ContentValues();
+        for (String source: new String[] {HEART_RATE, ACCELERATION, ACCELERATION_SEGMENTS}) {
+            values.put(FitnessDbSchema.RollupBackfillTable.Cols.source, source);
+            values.put(FitnessDbSchema.RollupBackfillTable.Cols.until, until);
+            db.insertWithOnConflict(FitnessDbSchema.RollupBackfillTable.NAME, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+        }
+    }
+
+    static boolean isPending(SQLiteDatabase db) {
+        try (Cursor cursor = db.rawQuery("select 1 from " + FitnessDbSchema.RollupBackfillTable.NAME + " limit 1", null)) {
+            return cursor.moveToFirst();
+        }
+    }
+
+    @Override
+    public void run() {
+        Log.i(TAG, "run: started");
+        try (Cursor pending = mDb.rawQuery(String.format("select %s, %s, %s from %s",
+                FitnessDbSchema.RollupBackfillTable.Cols.source,
+                FitnessDbSchema.RollupBackfillTable.Cols.position,
+                FitnessDbSchema.RollupBackfillTable.Cols.until,
+                FitnessDbSchema.RollupBackfillTable.NAME), null)) {
+            while (pending.moveToNext()) {
+                final String source = pending.getString(0);
+                final long position = pending.getLong(1), until = pending.getLong(2);
+                switch (source) {
+                    case HEART_RATE:
+                        backfillHeartRate(position, until);
+                        break;
+                    case ACCELERATION:
+                        backfillAccelerationTable(position, until);
+                        break;
+                    case ACCELERATION_SEGMENTS:
+                        backfillAccelerationSegments(position, until);
+                        break;
+                    default:
+                        Log.w(TAG, "run: unknown source " + source);
+                }
+            }
+        } catch (SQLException e) {
+            Log.e(TAG, "run: failed", e);
+        }
+        Log.i(TAG, "run: finished");
+    }
+
+    private void backfillHeartRate(long position, long until) {
+        final String table = FitnessDbSchema.HeartRateTable.NAME;
+        final String timestamp = FitnessDbSchema.HeartRateTable.Cols.timestamp;
+        if (position == 0) {
+            try (Cursor cursor = mDb.rawQuery(String.format(
+                    "select min(%s) from %s", timestamp, table), null)) {
+                if (!cursor.moveToFirst() || cursor.isNull(0)) {
+                    updateProgress(HEART_RATE, until, until);
+                    return;
+                }
+                position = RollupWriter.bucketStart(cursor.getLong(0), CHUNK_TIME);
+            }
+        }
+        final String query = String.format(
+                "select %1$s, %2$s from %3$s where %1$s >= ? and %1$s < ?",
+                timestamp, FitnessDbSchema.HeartRateTable.Cols.heartRate, table);
+        RollupWriter rollups = new RollupWriter(mDb);
+        try {
+            while (position < until) {
+                final long next = Math.min(position + CHUNK_TIME, until);
+                mDb.beginTransaction();
+                try (Cursor cursor = mDb.rawQuery(query, new String[] {Long.toString(position), Long.toString(next)})) {
+                    while (cursor.moveToNext()) rollups.addHeartRate(cursor.getLong(0), cursor.getInt(1));
+                    rollups.flush();
+                    updateProgress(HEART_RATE, next, until);
+                    mDb.setTransactionSuccessful();
+                } finally {
+                    mDb.endTransaction();
+                }
+                position = next;
+            }
+        } finally {
+            rollups.close();
+        }
+    }
+
+    private void backfillAccelerationTable(long position, long until) {
+        final String query = String.format(
+                "select %1$s, %2$s, %3$s, %4$s, %5$s from %6$s " +
+                        "where %1$s > ? and %2$s < ? order by %1$s limit %7$d",
+                FitnessDbSchema.AccelerationTable.Cols.id,
+                FitnessDbSchema.AccelerationTable.Cols.timestamp,
+                FitnessDbSchema.AccelerationTable.Cols.x,
+                FitnessDbSchema.AccelerationTable.Cols.y,
+                FitnessDbSchema.AccelerationTable.Cols.z,
+                FitnessDbSchema.AccelerationTable.NAME,
+                CHUNK_ROWS);
+        RollupWriter rollups = new RollupWriter(mDb);
+        try {
+            boolean done = false;
+            while (!done) {
+                mDb.beginTransaction();
+                try (Cursor cursor = mDb.rawQuery(query, new String[] {Long.toString(position), Long.toString(until)})) {
+                    done = cursor.getCount() == 0;
+                    while (cursor.moveToNext()) {
+                        position = cursor.getLong(0);
+                        rollups.addAcceleration(cursor.getLong(1), cursor.getFloat(2), cursor.getFloat(3), cursor.getFloat(4));
+                    }
+                    rollups.flush();
+                    if (done) deleteSource(ACCELERATION);
+                    else updateProgress(ACCELERATION, position, Long.MAX_VALUE);
+                    mDb.setTransactionSuccessful();
+                } finally {
+                    mDb.endTransaction();
+                }
+            }
+        } finally {
+            rollups.close();
+        }
+    }
+
+    private void backfillAccelerationSegments(long position, long until) {
+        if (mSegments == null) {
+            deleteSource(ACCELERATION_SEGMENTS);
+            return;
+        }
+        if (position == 0) {
+            try (Cursor cursor = mSegments.query(Long.MIN_VALUE, Long.MIN_VALUE, until, 1)) {
+                if (!cursor.moveToFirst()) {
+                    deleteSource(ACCELERATION_SEGMENTS);
+                    return;
+                }
+                position = RollupWriter.bucketStart(cursor.getLong(1), CHUNK_TIME);
+            }
+        }
+        RollupWriter rollups = new RollupWriter(mDb);
+        try {
+            while (position < until) {
+                final long next = Math.min(position + CHUNK_TIME, until);
+                mDb.beginTransaction();
+                try (Cursor cursor = mSegments.query(position, Long.MIN_VALUE, next, Integer.MAX_VALUE)) {
+                    while (cursor.moveToNext())
+                        rollups.addAcceleration(cursor.getLong(1), cursor.getFloat(2), cursor.getFloat(3), cursor.getFloat(4));
+                    rollups.flush();
+                    updateProgress(ACCELERATION_SEGMENTS, next, until);
+                    mDb.setTransactionSuccessful();
+                } finally {
+                    mDb.endTransaction();
+                }
+                position = next;
+            }
+        } finally {
+            rollups.close();
+        }
+    }
+
+    /**
+     * Records the progress of a time based source, or removes it when position reaches until.
+     */
+    private void updateProgress(String source, long position, long until) {
+        if (position >= until) {
+            deleteSource(source);
+            Log.i(TAG, "backfill of " + source + " completed");
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put(FitnessDbSchema.RollupBackfillTable.Cols.position, position);
+        mDb.update(FitnessDbSchema.RollupBackfillTable.NAME, values,
+                FitnessDbSchema.RollupBackfillTable.Cols.source + " = ?", new String[] {source});
+    }
+
+    private void deleteSource(String source) {
+        mDb.delete(FitnessDbSchema.RollupBackfillTable.NAME,
+                FitnessDbSchema.RollupBackfillTable.Cols.source + " = ?", new String[] {source});
+    }
+
+}
@@ -0,0 +1,117 @@
+package in.wangziq.fitnessrecorder.persistance;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Summary of the samples in a time range, computed from the rollup tables.
+ */
+public final class RollupStats {
+
+    private final long mCount;
+    private final double mMin, mMax, mSum, mSumOfSquares;
+
+    private RollupStats(long count, double min, double max, double sum, double sumOfSquares) {
+        mCount = count;
+        mMin = min;
+        mMax = max;
+        mSum = sum;
+        mSumOfSquares = sumOfSquares;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public double getMin() {
+        return mMin;
+    }
+
+    public double getMax() {
+        return mMax;
+    }
+
+    public double getSum() {
+        return mSum;
+    }
+
+    public double getMean() {
+        return mCount == 0 ? Double.NaN : mSum / mCount;
+    }
+
+    public double getStandardDeviation() {
+        if (mCount == 0) return Double.NaN;
+        final double mean = mSum / mCount;
+        return Math.sqrt(Math.max(0, mSumOfSquares / mCount - mean * mean));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RollupStats[count=%d, min=%f, max=%f, mean=%f]", mCount, mMin, mMax, getMean());
+    }
+
+    /**
+     * Covers [from, to) with as few buckets as possible: whole days in the middle,
+     * whole hours around them and minutes at both ends.
+     * from and to are truncated to whole minutes, which is the finest resolution.
+     */
+    static RollupStats query(SQLiteDatabase db, String table, long from, long to) {
+        final long minute = FitnessDbSchema.RollupTable.MINUTE;
+        final long hour = FitnessDbSchema.RollupTable.HOUR;
+        final long day = FitnessDbSchema.RollupTable.DAY;
+        from = RollupWriter.bucketStart(from, minute);
+        to = RollupWriter.bucketStart(to, minute);
+
+        List<String> args = new ArrayList<>();
+        StringBuilder where = new StringBuilder();
+        final long hourFrom = ceil(from, hour), hourTo = RollupWriter.bucketStart(to, hour);
+        if (hourFrom >= hourTo) {
+            appendRange(where, args, minute, from, to);
+        } else {
+            final long dayFrom = ceil(hourFrom, day), dayTo = RollupWriter.bucketStart(hourTo, day);
+            if (dayFrom >= dayTo) {
+                appendRange(where, args, hour, hourFrom, hourTo);
+            } else {
+                appendRange(where, args, day, dayFrom, dayTo);
+                appendRange(where, args, hour, hourFrom, dayFrom);
+                appendRange(where, args, hour, dayTo, hourTo);
+            }
+            appendRange(where, args, minute, from, hourFrom);
+            appendRange(where, args, minute, hourTo, to);
+        }
+        if (args.isEmpty()) return new RollupStats(0, Double.NaN, Double.NaN, 0, 0);
+
+        final String sql = String.format("select sum(%s), min(%s), max(%s), sum(%s), sum(%s) from %s where %s",
+                FitnessDbSchema.RollupTable.Cols.count,
+                FitnessDbSchema.RollupTable.Cols.min,
+                FitnessDbSchema.RollupTable.Cols.max,
+                FitnessDbSchema.RollupTable.Cols.sum,
+                FitnessDbSchema.RollupTable.Cols.sumOfSquares,
+                table, where);
+        try (Cursor cursor = db.rawQuery(sql, args.toArray(new String[args.size()]))) {
+            if (!cursor.moveToFirst() || cursor.isNull(0)) return new RollupStats(0, Double.NaN, Double.NaN, 0, 0);
+            return new RollupStats(cursor.getLong(0), cursor.getDouble(1), cursor.getDouble(2),
+                    cursor.getDouble(3), cursor.getDouble(4));
+        }
+    }
+
+    private static void appendRange(StringBuilder where, List<String> args, long resolution, long from, long to) {
+        if (from >= to) return;
+        if (where.length() > 0) where.append(" or ");
+        where.append('(').append(FitnessDbSchema.RollupTable.Cols.resolution).append(" = ? and ")
+                .append(FitnessDbSchema.RollupTable.Cols.bucket).append(" >= ? and ")
+                .append(FitnessDbSchema.RollupTable.Cols.bucket).append(" < ?)");
+        args.add(Long.toString(resolution));
+        args.add(Long.toString(from));
+        args.add(Long.toString(to));
+    }
+
+    private static long ceil(long timestamp, long resolution) {
+        final long start = RollupWriter.bucketStart(timestamp, resolution);
+        return start == timestamp ? start : start + resolution;
+    }
+
+}
@@ -0,0 +1,146 @@
+package in.wangziq.fitnessrecorder.persistance;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Aggregates samples into the minute, hour and day buckets of the rollup tables.
+ * Open buckets are kept in memory and merged into the tables by {@link #flush()}, which must
+ * run in the same transaction that writes the raw samples so that both stay consistent.
+ * Merges are additive, so a bucket may be flushed any number of times.
+ * Not thread safe.
+ */
+final class RollupWriter {
+
+    private static final long[] RESOLUTIONS = {
+            FitnessDbSchema.RollupTable.MINUTE,
+            FitnessDbSchema.RollupTable.HOUR,
+            FitnessDbSchema.RollupTable.DAY,
+    };
+
+    private final Series mHeartRate;
+    private final Series mAcceleration;
+
+    RollupWriter(SQLiteDatabase db) {
+        mHeartRate = new Series(db, FitnessDbSchema.RollupTable.HEART_RATE);
+        mAcceleration = new Series(db, FitnessDbSchema.RollupTable.ACCELERATION);
+    }
+
+    void addHeartRate(long timestamp, int heartRate) {
+        mHeartRate.add(timestamp, heartRate);
+    }
+
+    /**
+     * Acceleration is aggregated by its magnitude.
+     */
+    void addAcceleration(long timestamp, float x, float y, float z) {
+        mAcceleration.add(timestamp, Math.sqrt(x * x + y * y + z * z));
+    }
+
+    void flush() {
+        mHeartRate.flush();
+        mAcceleration.flush();
+    }
+
+    void close() {
+        mHeartRate.close();
+        mAcceleration.close();
+    }
+
+    // Math.floorDiv() requires API 24
+    static long bucketStart(long timestamp, long resolution) {
+        final long remainder = timestamp % resolution;
+        return remainder < 0 ? timestamp - remainder - resolution : timestamp - remainder;
+    }
+
+    private static final class Series {
+        private final SQLiteStatement mInsert, mUpdate;
+        private final Bucket[] mBuckets;
+
+        Series(SQLiteDatabase db, String table) {
+            mInsert = db.compileStatement(String.format(
+                    "insert or ignore into %s (%s, %s, %s, %s, %s, %s, %s) values (?, ?, 0, ?, ?, 0, 0)",
+                    table,
+                    FitnessDbSchema.RollupTable.Cols.resolution,
+                    FitnessDbSchema.RollupTable.Cols.bucket,
+                    FitnessDbSchema.RollupTable.Cols.count,
+                    FitnessDbSchema.RollupTable.Cols.min,
+                    FitnessDbSchema.RollupTable.Cols.max,
+                    FitnessDbSchema.RollupTable.Cols.sum,
+                    FitnessDbSchema.RollupTable.Cols.sumOfSquares));
+            mUpdate = db.compileStatement(String.format(
+                    "update %1$s set %3$s = %3$s + ?, %4$s = min(%4$s, ?), %5$s = max(%5$s, ?), " +
+                            "%6$s = %6$s + ?, %7$s = %7$s + ? where %8$s = ? and %2$s = ?",
+                    table,
+                    FitnessDbSchema.RollupTable.Cols.bucket,
+                    FitnessDbSchema.RollupTable.Cols.count,
+                    FitnessDbSchema.RollupTable.Cols.min,
+                    FitnessDbSchema.RollupTable.Cols.max,
+                    FitnessDbSchema.RollupTable.Cols.sum,
+                    FitnessDbSchema.RollupTable.Cols.sumOfSquares,
+                    FitnessDbSchema.RollupTable.Cols.resolution));
+            mBuckets = new Bucket[RESOLUTIONS.length];
+            for (int i = 0; i < RESOLUTIONS.length; ++i) mBuckets[i] = new Bucket(RESOLUTIONS[i]);
+        }
+
+        void add(long timestamp, double value) {
+            for (Bucket bucket: mBuckets) {
+                final long start = bucketStart(timestamp, bucket.resolution);
+                if (bucket.count > 0 && bucket.start != start) merge(bucket);
+                bucket.add(start, value);
+            }
+        }
+
+        void flush() {
+            for (Bucket bucket: mBuckets) if (bucket.count > 0) merge(bucket);
+        }
+
+        private void merge(Bucket bucket) {
+            mInsert.bindLong(1, bucket.resolution);
+            mInsert.bindLong(2, bucket.start);
+            mInsert.bindDouble(3, bucket.min);
+            mInsert.bindDouble(4, bucket.max);
+            mInsert.executeInsert();
+            mUpdate.bindLong(1, bucket.count);
+            mUpdate.bindDouble(2, bucket.min);
+            mUpdate.bindDouble(3, bucket.max);
+            mUpdate.bindDouble(4, bucket.sum);
+            mUpdate.bindDouble(5, bucket.sumOfSquares);
+            mUpdate.bindLong(6, bucket.resolution);
+            mUpdate.bindLong(7, bucket.start);
+            mUpdate.executeUpdateDelete();
+            bucket.count = 0;
+        }
+
+        void close() {
+            mInsert.close();
+            mUpdate.close();
+        }
+    }
+
+    private static final class Bucket {
+        final long resolution;
+        long start;
+        long count;
+        double min, max, sum, sumOfSquares;
+
+        Bucket(long resolution) {
+            this.resolution = resolution;
+        }
+
+        void add(long bucketStart, double value) {
+            if (count == 0) {
+                start = bucketStart;
+                min = max = value;
+                sum = sumOfSquares = 0;
+            } else {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            sum += value;
+            sumOfSquares += value * value;
+            ++count;
+        }
+    }
+
+}
@@ -0,0 +1,220 @@
+package in.wangziq.fitnessrecorder.persistance;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.Arrays;
+
+/**
+ * Keeps heart rate samples as runs of {@link FitnessDbSchema.HeartRateRunTable}: a sample with the
+ * same value as the last one, arriving within {@link #MAX_GAP} ms, extends its run instead of adding a row.
+ * The gap to each sample is kept with the run, so samples are read back at the exact time they were stored.
+ *
+ * The last run is kept in memory while it grows, and its row is rewritten once per commit of the writer.
+ * A sample at or before the end of the last run, e.g. after the wall clock was set back, goes into the
+ * run containing its time, splitting it if the value differs.
+ */
+final class RunHeartRateStore implements HeartRateStore {
+
+    // a longer pause, e.g. between two measurements, starts a new run even for the same value
+    static final long MAX_GAP = 15 * 1000; // 15 s
+    // bounds the deltas rewritten at each commit
+    static final int MAX_RUN_SAMPLES = 3600;
+
+    private final SQLiteDatabase mDb;
+    private final SQLiteDatabase mReadDb;
+    private final SQLiteStatement mUpsert;
+    private final SQLiteStatement mDelete;
+
+    // the last run, only used by the writer thread
+    private boolean mHasRun, mDirty;
+    private long mStart, mEnd;
+    private int mRate, mCount;
+    private byte[] mDeltas = new byte[256];
+    private int mDeltasLength;
+
+    RunHeartRateStore(SQLiteDatabase db, SQLiteDatabase readDb) {
+        mDb = db;
+        mReadDb = readDb;
+        // replaces rather than updates the row, which also restores it if a failed commit rolled it back
+        mUpsert = db.compileStatement(String.format(
+                "insert or replace into %s (%s, %s, %s, %s, %s) values (?, ?, ?, ?, ?)",
+                FitnessDbSchema.HeartRateRunTable.NAME,
+                FitnessDbSchema.HeartRateRunTable.Cols.start,
+                FitnessDbSchema.HeartRateRunTable.Cols.end,
+                FitnessDbSchema.HeartRateRunTable.Cols.heartRate,
+                FitnessDbSchema.HeartRateRunTable.Cols.count,
+                FitnessDbSchema.HeartRateRunTable.Cols.deltas));
+        mDelete = db.compileStatement(String.format("delete from %s where %s = ?",
+                FitnessDbSchema.HeartRateRunTable.NAME,
+                FitnessDbSchema.HeartRateRunTable.Cols.start));
+        // continue the last run, in case recording resumes right after a restart
+        loadLastRun();
+    }
+
+    @Override
+    public boolean insert(long timestamp, int heartRate) {
+        if (!mHasRun || timestamp <= mEnd) return insertAmongRuns(timestamp, heartRate);
+        if (heartRate == mRate && timestamp - mEnd <= MAX_GAP && mCount < MAX_RUN_SAMPLES) {
+            if (mDeltas.length - mDeltasLength < HeartRateRunCursor.MAX_GAP_LENGTH)
+                mDeltas = Arrays.copyOf(mDeltas, mDeltas.length * 2);
+            mDeltasLength = HeartRateRunCursor.putGap(mDeltas, mDeltasLength, timestamp - mEnd);
+            mEnd = timestamp;
+            ++mCount;
+            mDirty = true;
+            return true;
+        }
+        flush();
+        startRun(timestamp, heartRate);
+        mDirty = true;
+        flush();
+        return true;
+    }
+
+    // the slow path, out of order or without a last run: the database has the runs around the sample
+    private boolean insertAmongRuns(long timestamp, int heartRate) {
+        flush();
+        try (Cursor run = mDb.rawQuery(String.format("select %s, %s, %s, %s, %s from %s where %s <= ? order by %s desc limit 1",
+                FitnessDbSchema.HeartRateRunTable.Cols.start,
+                FitnessDbSchema.HeartRateRunTable.Cols.end,
+                FitnessDbSchema.HeartRateRunTable.Cols.heartRate,
+                FitnessDbSchema.HeartRateRunTable.Cols.count,
+                FitnessDbSchema.HeartRateRunTable.Cols.deltas,
+                FitnessDbSchema.HeartRateRunTable.NAME,
+                FitnessDbSchema.HeartRateRunTable.Cols.start,
+                FitnessDbSchema.HeartRateRunTable.Cols.start),
+                new String[] {Long.toString(timestamp)})) {
+            if (run.moveToFirst() && run.getLong(1) >= timestamp) {
+                final long[] times = HeartRateRunCursor.decodeTimes(run.getLong(0), run.getInt(3), run.getBlob(4));
+                final int rate = run.getInt(2);
+                final int at = HeartRateRunCursor.firstSampleAfter(times, timestamp, true);
+                if (at < times.length && times[at] == timestamp) return false; // already stored
+
+                mDelete.bindLong(1, times[0]);
+                mDelete.executeUpdateDelete();
+                if (rate == heartRate) {
+                    final long[] merged = new long[times.length + 1];
+                    System.arraycopy(times, 0, merged, 0, at);
+                    merged[at] = timestamp;
+                    System.arraycopy(times, at, merged, at + 1, times.length - at);
+                    writeRun(merged, 0, merged.length, rate);
+                } else {
+                    writeRun(times, 0, at, rate);
+                    writeRun(new long[] {timestamp}, 0, 1, heartRate);
+                    writeRun(times, at, times.length, rate);
+                }
+            } else {
+                writeRun(new long[] {timestamp}, 0, 1, heartRate);
+            }
+        }
+        loadLastRun();
+        return true;
+    }
+
+    // writes times[from, to) as one run, if not empty
+    private void writeRun(long[] times, int from, int to, int rate) {
+        if (from >= to) return;
+        mUpsert.bindLong(1, times[from]);
+        mUpsert.bindLong(2, times[to - 1]);
+        mUpsert.bindLong(3, rate);
+        mUpsert.bindLong(4, to - from);
+        mUpsert.bindBlob(5, HeartRateRunCursor.encodeGaps(times, from, to));
+        mUpsert.executeInsert();
+    }
+
+    private void startRun(long timestamp, int heartRate) {
+        mHasRun = true;
+        mStart = mEnd = timestamp;
+        mRate = heartRate;
+        mCount = 1;
+        mDeltasLength = 0;
+    }
+
+    private void loadLastRun() {
+        mHasRun = mDirty = false;
+        try (Cursor cursor = mDb.rawQuery(String.format("select %s, %s, %s, %s, %s from %s order by %s desc limit 1",
+                FitnessDbSchema.HeartRateRunTable.Cols.start,
+                FitnessDbSchema.HeartRateRunTable.Cols.end,
+                FitnessDbSchema.HeartRateRunTable.Cols.heartRate,
+                FitnessDbSchema.HeartRateRunTable.Cols.count,
+                FitnessDbSchema.HeartRateRunTable.Cols.deltas,
+                FitnessDbSchema.HeartRateRunTable.NAME,
+                FitnessDbSchema.HeartRateRunTable.Cols.start), null)) {
+            if (!cursor.moveToFirst()) return;
+            final long[] times = HeartRateRunCursor.decodeTimes(cursor.getLong(0), cursor.getInt(3), cursor.getBlob(4));
+            startRun(times[0], cursor.getInt(2));
+            for (int i = 1; i < times.length; ++i) {
+                if (mDeltas.length - mDeltasLength < HeartRateRunCursor.MAX_GAP_LENGTH)
+                    mDeltas = Arrays.copyOf(mDeltas, mDeltas.length * 2);
+                mDeltasLength = HeartRateRunCursor.putGap(mDeltas, mDeltasLength, times[i] - times[i - 1]);
+            }
+            mEnd = times[times.length - 1];
+            mCount = times.length;
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (!mDirty) return;
+        mUpsert.bindLong(1, mStart);
+        mUpsert.bindLong(2, mEnd);
+        mUpsert.bindLong(3, mRate);
+        mUpsert.bindLong(4, mCount);
+        mUpsert.bindBlob(5, Arrays.copyOf(mDeltas, mDeltasLength));
+        mUpsert.executeInsert();
+        mDirty = false;
+    }
+
+    @Override
+    public Cursor query(long afterTimestamp, long to, int limit) {
+        // starts from the run containing afterTimestamp, both bounds are ranges of the primary key
+        try (Cursor runs = mReadDb.rawQuery(String.format(
+                "select %1$s, %2$s, %3$s, %4$s, %5$s from %6$s " +
+                        "where %1$s >= coalesce((select max(%1$s) from %6$s where %1$s <= ?1), ?1) and %1$s < ?2 " +
+                        "order by %1$s",
+                FitnessDbSchema.HeartRateRunTable.Cols.start,
+                FitnessDbSchema.HeartRateRunTable.Cols.end,
+                FitnessDbSchema.HeartRateRunTable.Cols.heartRate,
+                FitnessDbSchema.HeartRateRunTable.Cols.count,
+                FitnessDbSchema.HeartRateRunTable.Cols.deltas,
+                FitnessDbSchema.HeartRateRunTable.NAME),
+                new String[] {Long.toString(afterTimestamp), Long.toString(to)})) {
+            HeartRateRunCursor.Builder builder = new HeartRateRunCursor.Builder();
+            int remaining = limit;
+            while (remaining > 0 && runs.moveToNext()) {
+                remaining -= builder.add(runs.getLong(0), runs.getInt(2), runs.getInt(3), runs.getBlob(4),
+                        afterTimestamp, to, remaining);
+            }
+            return builder.build();
+        }
+    }
+
+    @Override
+    public Cursor queryAll() {
+        return query(Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * The last run is open while a sample may still extend it: until {@link #MAX_GAP} after its end.
+     * Earlier runs only change if the wall clock is set back.
+     */
+    @Override
+    public long getOpenFrom(long now) {
+        try (Cursor cursor = mReadDb.rawQuery(String.format("select %s, %s from %s order by %s desc limit 1",
+                FitnessDbSchema.HeartRateRunTable.Cols.start,
+                FitnessDbSchema.HeartRateRunTable.Cols.end,
+                FitnessDbSchema.HeartRateRunTable.NAME,
+                FitnessDbSchema.HeartRateRunTable.Cols.start), null)) {
+            if (!cursor.moveToFirst() || cursor.getLong(1) + MAX_GAP < now) return Long.MAX_VALUE;
+            return cursor.getLong(0);
+        }
+    }
+
+    @Override
+    public void close() {
+        mUpsert.close();
+        mDelete.close();
+    }
+
+}
@@ -0,0 +1,325 @@
+package in.wangziq.fitnessrecorder.persistance;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Keeps acceleration samples in append-only {@link AccelerationSegment} files, named after the
+ * timestamp of their first record so that listing them by name gives the order of their first
+ * samples, and queries skip later segments without opening them. A sample older than the last one,
+ * e.g. after the wall clock was set back, starts a new segment, which keeps every segment sorted;
+ * if one with the same first timestamp exists, a sequence number follows the timestamp in the name.
+ * Segments may then overlap in time, so queries merge them in (timestamp, id) order.
+ *
+ * Ids keep increasing across segments in the order they're appended to, whatever their names: the
+ * segment appended to last is the one with the highest ids. It is never deleted, and the next id
+ * after deleted segments is kept in a small file next to them too.
+ *
+ * Only one instance per directory may append. Appended samples survive a crash of the app as soon
+ * as they're written to the mapping; {@link #flush()} also protects them from power loss.
+ */
+final class SegmentAccelerationStore implements AccelerationStore {
+
+    private static final String TAG = SegmentAccelerationStore.class.getSimpleName();
+
+    static final String DIR_NAME = "acceleration";
+    private static final String SUFFIX = ".seg";
+    private static final int NAME_TIME_DIGITS = 19;
+    private static final String NEXT_ID_FILE = "next_id";
+    // mappings kept for queries, ~5 MB of address space each
+    private static final int MAX_READABLE = 8;
+
+    private final File mDir;
+    private final long mFirstId;
+    private AccelerationSegment mActive;
+    // read-only mappings by file name, shared by queries, as opening a segment maps all of it; the
+    // least recently used go beyond MAX_READABLE, and are unmapped once no cursor holds them anymore
+    private final Map<String, AccelerationSegment> mReadable =
+            new LinkedHashMap<String, AccelerationSegment>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, AccelerationSegment> eldest) {
+                    return size() > MAX_READABLE;
+                }
+            };
+
+    /**
+     * @param firstId id of the first sample if there's no segment yet
+     */
+    SegmentAccelerationStore(File dir, long firstId) {
+        mDir = dir;
+        mFirstId = firstId;
+        if (!mDir.isDirectory() && !mDir.mkdirs()) Log.e(TAG, "failed to create directory " + mDir);
+    }
+
+    @Override
+    public synchronized void append(long[] timestamps, float[] x, float[] y, float[] z, int offset, int count) {
+        try {
+            for (int i = offset, end = offset + count; i < end; ++i)
+                writableSegment(timestamps[i]).append(timestamps[i], x[i], y[i], z[i]);
+        } catch (IOException e) {
+            Log.e(TAG, "append: failed, samples dropped", e);
+        }
+    }
+
+    private AccelerationSegment writableSegment(long timestamp) throws IOException {
+        if (mActive == null) {
+            final File last = lastAppendedFile();
+            if (last != null) mActive = AccelerationSegment.open(last, true);
+        }
+        if (mActive != null && !mActive.isFull() && (mActive.count() == 0 || timestamp >= mActive.lastTimestamp()))
+            return mActive;
+
+        final long baseId;
+        if (mActive != null) {
+            baseId = mActive.baseId() + mActive.count();
+            mActive.force();
+        } else {
+            baseId = nextId();
+        }
+        File file = new File(mDir, String.format(Locale.US, "%019d%s", timestamp, SUFFIX));
+        for (int sequence = 1; file.exists(); ++sequence)
+            file = new File(mDir, String.format(Locale.US, "%019d_%d%s", timestamp, sequence, SUFFIX));
+        mActive = AccelerationSegment.create(file, baseId);
+        Log.i(TAG, "writableSegment: created " + file.getName());
+        return mActive;
+    }
+
+    @Override
+    public Cursor query(long afterTimestamp, long afterId, long to, int limit) {
+        // the records of each segment after the key and before to, merged below
+        List<AccelerationSegment> segments = new ArrayList<>();
+        List<int[]> ranges = new ArrayList<>();
+        for (File file: listSegmentFiles()) {
+            // this and every later segment start at or after the end of the range
+            if (firstTimestampOf(file) >= to) break;
+            try {
+                AccelerationSegment segment = readable(file);
+                if (segment == null) continue;
+                final int count = segment.count();
+                if (count == 0 || segment.firstTimestamp() >= to || segment.lastTimestamp() < afterTimestamp) continue;
+                final int start = after(segment, segment.lowerBound(afterTimestamp, count), count, afterTimestamp, afterId);
+                final int end = segment.lowerBound(to, count);
+                if (start < end) {
+                    segments.add(segment);
+                    ranges.add(new int[] {start, end});
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "query: failed to open " + file, e);
+            }
+        }
+        return merge(segments, ranges, limit);
+    }
+
+    /**
+     * Takes records from the segment whose next one comes first, up to the next one of any other
+     * segment; segments which don't overlap are taken whole, one after the other.
+     *
+     * @return at most limit records of the ranges, in (timestamp, id) order
+     */
+    private static Cursor merge(List<AccelerationSegment> segments, List<int[]> ranges, int limit) {
+        List<AccelerationSegment> runSegments = new ArrayList<>();
+        List<int[]> runs = new ArrayList<>();
+        int remaining = limit;
+        while (remaining > 0) {
+            int first = -1, second = -1;
+            for (int i = 0; i < segments.size(); ++i) {
+                if (ranges.get(i)[0] == ranges.get(i)[1]) continue;
+                if (first < 0 || isBefore(segments, ranges, i, first)) {
+                    second = first;
+                    first = i;
+                } else if (second < 0 || isBefore(segments, ranges, i, second)) {
+                    second = i;
+                }
+            }
+            if (first < 0) break;
+            final AccelerationSegment segment = segments.get(first);
+            final int[] range = ranges.get(first);
+            int end = range[1];
+            if (second >= 0) {
+                final AccelerationSegment next = segments.get(second);
+                final int at = ranges.get(second)[0];
+                final long time = next.timestamp(at);
+                end = after(segment, Math.max(range[0], segment.lowerBound(time, end)), end, time, next.baseId() + at - 1);
+            }
+            end = Math.min(end, range[0] + remaining);
+            runSegments.add(segment);
+            runs.add(new int[] {range[0], end});
+            remaining -= end - range[0];
+            range[0] = end;
+        }
+        return new SegmentCursor(runSegments, runs);
+    }
+
+    // whether the next record of segment i comes before that of segment j
+    private static boolean isBefore(List<AccelerationSegment> segments, List<int[]> ranges, int i, int j) {
+        final int a = ranges.get(i)[0], b = ranges.get(j)[0];
+        final long timeA = segments.get(i).timestamp(a), timeB = segments.get(j).timestamp(b);
+        if (timeA != timeB) return timeA < timeB;
+        return segments.get(i).baseId() + a < segments.get(j).baseId() + b;
+    }
+
+    /**
+     * @param index of a record with a timestamp not before the given one
+     * @return index of the first record after (timestamp, id), at most end
+     */
+    private static int after(AccelerationSegment segment, int index, int end, long timestamp, long id) {
+        final long baseId = segment.baseId();
+        while (index < end && segment.timestamp(index) == timestamp && baseId + index <= id) ++index;
+        return index;
+    }
+
+    @Override
+    public Cursor queryAll() {
+        return query(Long.MIN_VALUE, Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Deletes the segments whose samples are all older than time, except the one appended to last,
+     * which is appended to next, and the one being appended to.
+     */
+    synchronized void deleteBefore(long time) {
+        final File last;
+        try {
+            last = lastAppendedFile();
+        } catch (IOException e) {
+            Log.e(TAG, "deleteBefore: failed to find the last segment, nothing deleted", e);
+            return;
+        }
+        final List<File> expired = new ArrayList<>();
+        long nextId = Long.MIN_VALUE;
+        for (File file: listSegmentFiles()) {
+            if (file.equals(last) || mActive != null && file.equals(mActive.getFile())) continue;
+            if (firstTimestampOf(file) >= time) break;
+            try {
+                AccelerationSegment segment = readable(file);
+                if (segment == null || segment.count() > 0 && segment.lastTimestamp() >= time) continue;
+                nextId = Math.max(nextId, segment.baseId() + segment.count());
+            } catch (IOException e) {
+                Log.e(TAG, "deleteBefore: failed to open " + file, e);
+                continue;
+            }
+            expired.add(file);
+        }
+        if (expired.isEmpty()) return;
+        try {
+            // before deleting, so that ids are never reused even if this is interrupted
+            if (nextId > readNextId()) writeNextId(nextId);
+        } catch (IOException e) {
+            Log.e(TAG, "deleteBefore: failed to keep the next id, nothing deleted", e);
+            return;
+        }
+
+        int deleted = 0;
+        for (File file: expired) {
+            synchronized (mReadable) {
+                mReadable.remove(file.getName());
+            }
+            // readers which mapped the file keep their mapping after it's unlinked
+            if (file.delete()) ++deleted;
+            else Log.e(TAG, "deleteBefore: failed to delete " + file);
+        }
+        Log.i(TAG, "deleteBefore: " + deleted + " segments deleted");
+    }
+
+    // after every id in the segments left and those deleted before
+    private long nextId() throws IOException {
+        long next = Math.max(mFirstId, readNextId());
+        for (File file: listSegmentFiles()) {
+            AccelerationSegment segment = readable(file);
+            if (segment != null) next = Math.max(next, segment.baseId() + segment.count());
+        }
+        return next;
+    }
+
+    // the one holding the highest ids, or the empty one created after it, e.g. right before a crash
+    private File lastAppendedFile() throws IOException {
+        File last = null;
+        long lastId = Long.MIN_VALUE;
+        for (File file: listSegmentFiles()) {
+            AccelerationSegment segment = readable(file);
+            if (segment == null) continue;
+            final long id = segment.baseId() + segment.count();
+            if (last == null || id > lastId || id == lastId && segment.count() == 0) {
+                last = file;
+                lastId = id;
+            }
+        }
+        return last;
+    }
+
+    private long readNextId() throws IOException {
+        final File file = new File(mDir, NEXT_ID_FILE);
+        if (!file.exists()) return Long.MIN_VALUE;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readLong();
+        }
+    }
+
+    private void writeNextId(long id) throws IOException {
+        final File tmp = new File(mDir, NEXT_ID_FILE + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(file)) {
+            out.writeLong(id);
+            out.flush();
+            file.getFD().sync();
+        }
+        if (!tmp.renameTo(new File(mDir, NEXT_ID_FILE))) throw new IOException("failed to rename " + tmp);
+    }
+
+    @Override
+    public synchronized void flush() {
+        if (mActive != null) mActive.force();
+    }
+
+    @Override
+    public synchronized void close() {
+        flush();
+        mActive = null;
+        synchronized (mReadable) {
+            mReadable.clear();
+        }
+    }
+
+    /**
+     * @return null if the file is not a valid segment yet
+     */
+    private AccelerationSegment readable(File file) throws IOException {
+        synchronized (mReadable) {
+            AccelerationSegment segment = mReadable.get(file.getName());
+            if (segment == null) {
+                segment = AccelerationSegment.open(file, false);
+                if (segment != null) mReadable.put(file.getName(), segment);
+            }
+            return segment;
+        }
+    }
+
+    private static long firstTimestampOf(File file) {
+        try {
+            return Long.parseLong(file.getName().substring(0, NAME_TIME_DIGITS));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return Long.MIN_VALUE; // not named by this store, opened to be sure
+        }
+    }
+
+    File[] listSegmentFiles() {
+        File[] files = mDir.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) return new File[0];
+        Arrays.sort(files);
+        return files;
+    }
+
+}
@@ -0,0 +1,111 @@
+package in.wangziq.fitnessrecorder.persistance;
+
+import android.database.AbstractCursor;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Read-only cursor over ranges of {@link AccelerationSegment}s, with the same columns as
+ * {@link FitnessDbSchema.AccelerationTable}. Records are read from the mappings on demand.
+ */
+final class SegmentCursor extends AbstractCursor {
+
+    private static final String[] COLUMNS = {
+            FitnessDbSchema.AccelerationTable.Cols.id,
+            FitnessDbSchema.AccelerationTable.Cols.timestamp,
+            FitnessDbSchema.AccelerationTable.Cols.x,
+            FitnessDbSchema.AccelerationTable.Cols.y,
+            FitnessDbSchema.AccelerationTable.Cols.z,
+    };
+    private static final int ID = 0, TIMESTAMP = 1, X = 2, Y = 3, Z = 4;
+
+    private final AccelerationSegment[] mSegments;
+    private final int[] mStarts;
+    private final int[] mOffsets; // position of the first row of each segment, plus the total count
+
+    private AccelerationSegment mSegment;
+    private int mRecord;
+
+    SegmentCursor(List<AccelerationSegment> segments, List<int[]> ranges) {
+        final int n = segments.size();
+        mSegments = segments.toArray(new AccelerationSegment[n]);
+        mStarts = new int[n];
+        mOffsets = new int[n + 1];
+        for (int i = 0; i < n; ++i) {
+            int[] range = ranges.get(i);
+            mStarts[i] = range[0];
+            mOffsets[i + 1] = mOffsets[i] + range[1] - range[0];
+        }
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        int i = Arrays.binarySearch(mOffsets, newPosition);
+        if (i < 0) i = -i - 2; // ranges are never empty, so offsets are strictly increasing
+        if (i < 0 || i >= mSegments.length) return false;
+        mSegment = mSegments[i];
+        mRecord = mStarts[i] + newPosition - mOffsets[i];
+        return true;
+    }
+
+    @Override
+    public int getCount() {
+        return mOffsets[mOffsets.length - 1];
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return COLUMNS;
+    }
+
+    @Override
+    public int getType(int column) {
+        return column == ID || column == TIMESTAMP ? FIELD_TYPE_INTEGER : FIELD_TYPE_FLOAT;
+    }
+
+    @Override
+    public String getString(int column) {
+        return column == ID || column == TIMESTAMP ? Long.toString(getLong(column)) : Float.toString(getFloat(column));
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        switch (column) {
+            case ID: return mSegment.baseId() + mRecord;
+            case TIMESTAMP: return mSegment.timestamp(mRecord);
+            default: return (long) getFloat(column);
+        }
+    }
+
+    @Override
+    public float getFloat(int column) {
+        switch (column) {
+            case X: return mSegment.x(mRecord);
+            case Y: return mSegment.y(mRecord);
+            case Z: return mSegment.z(mRecord);
+            default: return getLong(column);
+        }
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return column == ID || column == TIMESTAMP ? getLong(column) : getFloat(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return false;
+    }
+
+}
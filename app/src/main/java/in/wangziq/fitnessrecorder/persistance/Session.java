@@ -0,0 +1,128 @@
+package in.wangziq.fitnessrecorder.persistance;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A measurement of heart rate or acceleration, see {@link FitnessDbSchema.SessionTable}.
+ */
+public final class Session {
+
+    private static final String TAG = Session.class.getSimpleName();
+
+    private final long mId;
+    private final String mType;
+    private final long mStart, mEnd;
+
+    private Session(long id, String type, long start, long end) {
+        mId = id;
+        mType = type;
+        mStart = start;
+        mEnd = end;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    /**
+     * @return {@link FitnessDbSchema.SessionTable#TYPE_HEART_RATE} or TYPE_ACCELERATION
+     */
+    public String getType() {
+        return mType;
+    }
+
+    /**
+     * @return inclusive, epoch milliseconds
+     */
+    public long getStart() {
+        return mStart;
+    }
+
+    /**
+     * @return exclusive, epoch milliseconds, or Long.MAX_VALUE while recording
+     */
+    public long getEnd() {
+        return mEnd;
+    }
+
+    public boolean isRecording() {
+        return mEnd == Long.MAX_VALUE;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Session[id=%d, type=%s, start=%d, end=%d]", mId, mType, mStart, mEnd);
+    }
+
+    static long start(SQLiteDatabase db, String type, long start) {
+        ContentValues values = new ContentValues();
+        values.put(FitnessDbSchema.SessionTable.Cols.type, type);
+        values.put(FitnessDbSchema.SessionTable.Cols.start, start);
+        return db.insert(FitnessDbSchema.SessionTable.NAME, null, values);
+    }
+
+    static void end(SQLiteDatabase db, long id, long end) {
+        ContentValues values = new ContentValues();
+        values.put(FitnessDbSchema.SessionTable.Cols.end, end);
+        db.update(FitnessDbSchema.SessionTable.NAME, values,
+                FitnessDbSchema.SessionTable.Cols.id + " = ?", new String[] {Long.toString(id)});
+    }
+
+    /**
+     * Ends sessions left open by a previous process, after the last minute with samples of their type.
+     */
+    static void endAbandoned(SQLiteDatabase db) {
+        for (Session session: query(db, FitnessDbSchema.SessionTable.Cols.end + " is null", null)) {
+            final String rollup = FitnessDbSchema.SessionTable.TYPE_HEART_RATE.equals(session.mType)
+                    ? FitnessDbSchema.RollupTable.HEART_RATE : FitnessDbSchema.RollupTable.ACCELERATION;
+            final long lastMinute = DatabaseUtils.longForQuery(db, String.format(
+                    "select coalesce(max(%s), -1) from %s where %s = ? and %s >= ?",
+                    FitnessDbSchema.RollupTable.Cols.bucket, rollup,
+                    FitnessDbSchema.RollupTable.Cols.resolution, FitnessDbSchema.RollupTable.Cols.bucket),
+                    new String[] {Long.toString(FitnessDbSchema.RollupTable.MINUTE),
+                            Long.toString(RollupWriter.bucketStart(session.mStart, FitnessDbSchema.RollupTable.MINUTE))});
+            end(db, session.mId, lastMinute < 0 ? session.mStart : lastMinute + FitnessDbSchema.RollupTable.MINUTE);
+            Log.i(TAG, "endAbandoned: " + session.mId);
+        }
+    }
+
+    static Session query(SQLiteDatabase db, long id) {
+        List<Session> sessions = query(db, FitnessDbSchema.SessionTable.Cols.id + " = ?", new String[] {Long.toString(id)});
+        return sessions.isEmpty() ? null : sessions.get(0);
+    }
+
+    /**
+     * @return sessions overlapping [from, to), in the order they started
+     */
+    static List<Session> query(SQLiteDatabase db, long from, long to) {
+        return query(db, String.format("%1$s < ? and (%2$s is null or %2$s > ?)",
+                FitnessDbSchema.SessionTable.Cols.start, FitnessDbSchema.SessionTable.Cols.end),
+                new String[] {Long.toString(to), Long.toString(from)});
+    }
+
+    private static List<Session> query(SQLiteDatabase db, String where, String[] args) {
+        List<Session> sessions = new ArrayList<>();
+        try (Cursor cursor = db.rawQuery(String.format("select %s, %s, %s, %s from %s where %s order by %s",
+                FitnessDbSchema.SessionTable.Cols.id,
+                FitnessDbSchema.SessionTable.Cols.type,
+                FitnessDbSchema.SessionTable.Cols.start,
+                FitnessDbSchema.SessionTable.Cols.end,
+                FitnessDbSchema.SessionTable.NAME,
+                where,
+                FitnessDbSchema.SessionTable.Cols.start), args)) {
+            while (cursor.moveToNext()) {
+                sessions.add(new Session(cursor.getLong(0), cursor.getString(1), cursor.getLong(2),
+                        cursor.isNull(3) ? Long.MAX_VALUE : cursor.getLong(3)));
+            }
+        }
+        return sessions;
+    }
+
+}
@@ -0,0 +1,204 @@
+package in.wangziq.fitnessrecorder.persistance;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes a transactionally consistent copy of the database into a new file, through a connection
+ * of its own: in WAL mode it reads one snapshot of the database while the writer goes on.
+ *
+ * Without a time range, and where SQLite has it (3.28, Android 11), this is a VACUUM INTO.
+ * Otherwise the schema is recreated in the new file and rows are copied table by table, filtered
+ * by time, in a single deferred transaction: it only reads the live database, which the writer
+ * keeps committing to meanwhile. Heart rate runs partly in the range are cut down to their samples
+ * in it. Rollup buckets and sessions overlapping the range are copied whole. Acceleration samples
+ * kept in segment files are added to the acceleration table of the copy, so that it holds every sample.
+ * Both ways, the copy has the schema version of the live database.
+ */
+final class Snapshot {
+
+    private static final String TAG = Snapshot.class.getSimpleName();
+
+    private static final String LIVE = "live";
+    private static final String SAVEPOINT = "snapshot";
+    private static final int VACUUM_INTO_SDK = 30; // Android 11, SQLite 3.28
+    private static final int SEGMENT_PAGE_SIZE = 4096;
+
+    // per table, rows within [?1, ?2); tables not listed are copied whole
+    private static final Map<String, String> TIME_FILTERS = new HashMap<>();
+    static {
+        TIME_FILTERS.put(FitnessDbSchema.HeartRateTable.NAME, String.format("%1$s >= ?1 and %1$s < ?2",
+                FitnessDbSchema.HeartRateTable.Cols.timestamp));
+        // runs within the range, those partly in it are cut by copyRunEdges
+        TIME_FILTERS.put(FitnessDbSchema.HeartRateRunTable.NAME, String.format("%s >= ?1 and %s < ?2",
+                FitnessDbSchema.HeartRateRunTable.Cols.start, FitnessDbSchema.HeartRateRunTable.Cols.end));
+        TIME_FILTERS.put(FitnessDbSchema.RrIntervalTable.NAME, String.format("%1$s >= ?1 and %1$s < ?2",
+                FitnessDbSchema.RrIntervalTable.Cols.timestamp));
+        TIME_FILTERS.put(FitnessDbSchema.AccelerationTable.NAME, String.format("%1$s >= ?1 and %1$s < ?2",
+                FitnessDbSchema.AccelerationTable.Cols.timestamp));
+        final String rollup = String.format("%1$s + %2$s > ?1 and %1$s < ?2",
+                FitnessDbSchema.RollupTable.Cols.bucket, FitnessDbSchema.RollupTable.Cols.resolution);
+        TIME_FILTERS.put(FitnessDbSchema.RollupTable.HEART_RATE, rollup);
+        TIME_FILTERS.put(FitnessDbSchema.RollupTable.ACCELERATION, rollup);
+        TIME_FILTERS.put(FitnessDbSchema.SessionTable.NAME, String.format("(%1$s is null or %1$s > ?1) and %2$s < ?2",
+                FitnessDbSchema.SessionTable.Cols.end, FitnessDbSchema.SessionTable.Cols.start));
+    }
+
+    private Snapshot() {}
+
+    /**
+     * @param source path of the live database
+     * @param segments the segment store, or null if acceleration is kept in the table only
+     * @param destination must not exist yet
+     * @param from inclusive, epoch milliseconds
+     * @param to exclusive, epoch milliseconds
+     */
+    static void write(File source, @Nullable SegmentAccelerationStore segments, File destination,
+                      long from, long to) {
+        final boolean whole = from == Long.MIN_VALUE && to == Long.MAX_VALUE;
+        if (whole && Build.VERSION.SDK_INT >= VACUUM_INTO_SDK) {
+            vacuumInto(source, destination);
+            if (segments != null) {
+                SQLiteDatabase db = SQLiteDatabase.openDatabase(destination.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+                try {
+                    db.beginTransaction();
+                    try {
+                        copySegments(db, segments, from, to);
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                } finally {
+                    db.close();
+                }
+            }
+        } else {
+            copyTables(source, segments, destination, from, to);
+        }
+        Log.i(TAG, "write: " + destination + ", " + destination.length() + " bytes");
+    }
+
+    private static void vacuumInto(File source, File destination) {
+        // an in-memory connection, so that neither the writer nor the read-only pool is held;
+        // VACUUM INTO only takes a read transaction on the database it copies
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            db.execSQL("attach database ? as " + LIVE, new Object[] {source.getPath()});
+            db.execSQL("vacuum " + LIVE + " into ?", new Object[] {destination.getPath()});
+        } finally {
+            db.close();
+        }
+    }
+
+    private static void copyTables(File source, @Nullable SegmentAccelerationStore segments, File destination,
+                                   long from, long to) {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(destination, null);
+        try {
+            db.execSQL("attach database ? as " + LIVE, new Object[] {source.getPath()});
+            final Object[] range = {from, to};
+            // one transaction, so that all tables are read from the same snapshot of the live database.
+            // Not beginTransaction(), which is exclusive: it would take the write lock of the live
+            // database too, and commits of the writer would fail until the copy is done. A savepoint
+            // outside a transaction begins a deferred one, which only locks what it writes, the copy.
+            // If the copy fails, closing the connection rolls it back.
+            db.execSQL("savepoint " + SAVEPOINT);
+            db.execSQL("pragma user_version = " + DatabaseUtils.longForQuery(db, "pragma " + LIVE + ".user_version", null));
+            // tables before their indexes, so that rows are indexed in one go at the end
+            try (Cursor schema = db.rawQuery("select type, name, sql from " + LIVE + ".sqlite_master" +
+                    " where sql is not null and name not like 'sqlite_%' order by type = 'index'", null)) {
+                while (schema.moveToNext()) {
+                    final String name = schema.getString(1);
+                    if (name.equals("android_metadata")) continue; // created with the connection
+                    db.execSQL(schema.getString(2));
+                    if (!schema.getString(0).equals("table")) continue;
+                    final String filter = TIME_FILTERS.get(name);
+                    if (filter == null)
+                        db.execSQL(String.format("insert into main.%1$s select * from %2$s.%1$s", name, LIVE));
+                    else
+                        db.execSQL(String.format("insert into main.%1$s select * from %2$s.%1$s where %3$s",
+                                name, LIVE, filter), range);
+                }
+            }
+            copyRunEdges(db, from, to);
+            if (segments != null) copySegments(db, segments, from, to);
+            db.execSQL("release " + SAVEPOINT);
+            db.execSQL("detach database " + LIVE);
+        } finally {
+            db.close();
+        }
+    }
+
+    // the runs overlapping either end of the range, with their samples in it only
+    private static void copyRunEdges(SQLiteDatabase db, long from, long to) {
+        final String select = String.format("select %1$s, %2$s, %3$s, %4$s, %5$s from %6$s.%7$s " +
+                        "where %2$s >= ?1 and %1$s < ?2 and (%1$s < ?1 or %2$s >= ?2)",
+                FitnessDbSchema.HeartRateRunTable.Cols.start,
+                FitnessDbSchema.HeartRateRunTable.Cols.end,
+                FitnessDbSchema.HeartRateRunTable.Cols.heartRate,
+                FitnessDbSchema.HeartRateRunTable.Cols.count,
+                FitnessDbSchema.HeartRateRunTable.Cols.deltas,
+                LIVE, FitnessDbSchema.HeartRateRunTable.NAME);
+        final String sql = String.format("insert into main.%s (%s, %s, %s, %s, %s) values (?, ?, ?, ?, ?)",
+                FitnessDbSchema.HeartRateRunTable.NAME,
+                FitnessDbSchema.HeartRateRunTable.Cols.start,
+                FitnessDbSchema.HeartRateRunTable.Cols.end,
+                FitnessDbSchema.HeartRateRunTable.Cols.heartRate,
+                FitnessDbSchema.HeartRateRunTable.Cols.count,
+                FitnessDbSchema.HeartRateRunTable.Cols.deltas);
+        try (Cursor runs = db.rawQuery(select, new String[] {Long.toString(from), Long.toString(to)});
+             SQLiteStatement insert = db.compileStatement(sql)) {
+            while (runs.moveToNext()) {
+                final long[] times = HeartRateRunCursor.decodeTimes(runs.getLong(0), runs.getInt(3), runs.getBlob(4));
+                final int first = HeartRateRunCursor.firstSampleAfter(times, from, true);
+                final int last = HeartRateRunCursor.firstSampleAfter(times, to, true);
+                if (first >= last) continue;
+                insert.bindLong(1, times[first]);
+                insert.bindLong(2, times[last - 1]);
+                insert.bindLong(3, runs.getInt(2));
+                insert.bindLong(4, last - first);
+                insert.bindBlob(5, HeartRateRunCursor.encodeGaps(times, first, last));
+                insert.executeInsert();
+            }
+        }
+    }
+
+    private static void copySegments(SQLiteDatabase db, SegmentAccelerationStore segments, long from, long to) {
+        final String sql = String.format("insert into main.%s (%s, %s, %s, %s, %s) values (?, ?, ?, ?, ?)",
+                FitnessDbSchema.AccelerationTable.NAME,
+                FitnessDbSchema.AccelerationTable.Cols.id,
+                FitnessDbSchema.AccelerationTable.Cols.timestamp,
+                FitnessDbSchema.AccelerationTable.Cols.x,
+                FitnessDbSchema.AccelerationTable.Cols.y,
+                FitnessDbSchema.AccelerationTable.Cols.z);
+        long timestamp = from, id = Long.MIN_VALUE, copied = 0;
+        try (SQLiteStatement insert = db.compileStatement(sql)) {
+            for (;;) {
+                try (Cursor cursor = segments.query(timestamp, id, to, SEGMENT_PAGE_SIZE)) {
+                    while (cursor.moveToNext()) {
+                        id = cursor.getLong(0);
+                        timestamp = cursor.getLong(1);
+                        insert.bindLong(1, id);
+                        insert.bindLong(2, timestamp);
+                        insert.bindDouble(3, cursor.getFloat(2));
+                        insert.bindDouble(4, cursor.getFloat(3));
+                        insert.bindDouble(5, cursor.getFloat(4));
+                        insert.executeInsert();
+                    }
+                    copied += cursor.getCount();
+                    if (cursor.getCount() < SEGMENT_PAGE_SIZE) break;
+                }
+            }
+        }
+        Log.i(TAG, "copySegments: " + copied + " samples");
+    }
+
+}
@@ -0,0 +1,72 @@
+package in.wangziq.fitnessrecorder.persistance;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Keeps acceleration samples as rows of {@link FitnessDbSchema.AccelerationTable}.
+ * Appends are expected to run inside the transaction of the writer, queries run on the read-only connections.
+ */
+final class SqliteAccelerationStore implements AccelerationStore {
+
+    private final SQLiteDatabase mReadDb;
+    private final SQLiteStatement mInsert;
+
+    SqliteAccelerationStore(SQLiteDatabase db, SQLiteDatabase readDb) {
+        mReadDb = readDb;
+        mInsert = db.compileStatement(String.format(
+                "insert into %s (%s, %s, %s, %s) values (?, ?, ?, ?)",
+                FitnessDbSchema.AccelerationTable.NAME,
+                FitnessDbSchema.AccelerationTable.Cols.timestamp,
+                FitnessDbSchema.AccelerationTable.Cols.x,
+                FitnessDbSchema.AccelerationTable.Cols.y,
+                FitnessDbSchema.AccelerationTable.Cols.z));
+    }
+
+    @Override
+    public void append(long[] timestamps, float[] x, float[] y, float[] z, int offset, int count) {
+        for (int i = offset, end = offset + count; i < end; ++i) {
+            mInsert.bindLong(1, timestamps[i]);
+            mInsert.bindDouble(2, x[i]);
+            mInsert.bindDouble(3, y[i]);
+            mInsert.bindDouble(4, z[i]);
+            mInsert.executeInsert();
+        }
+    }
+
+    @Override
+    public Cursor query(long afterTimestamp, long afterId, long to, int limit) {
+        // a range on the timestamp index, whose entries are already in (timestamp, id) order
+        return mReadDb.rawQuery(String.format(
+                "select * from %1$s where %2$s >= ?1 and (%2$s > ?1 or %3$s > ?2) and %2$s < ?3 order by %2$s, %3$s limit %4$d",
+                FitnessDbSchema.AccelerationTable.NAME,
+                FitnessDbSchema.AccelerationTable.Cols.timestamp,
+                FitnessDbSchema.AccelerationTable.Cols.id,
+                limit),
+                new String[] {Long.toString(afterTimestamp), Long.toString(afterId), Long.toString(to)});
+    }
+
+    @Override
+    public Cursor queryAll() {
+        return mReadDb.rawQuery("select * from " + FitnessDbSchema.AccelerationTable.NAME, null);
+    }
+
+    long queryMaxId() {
+        try (Cursor cursor = mReadDb.rawQuery(String.format("select max(%s) from %s",
+                FitnessDbSchema.AccelerationTable.Cols.id, FitnessDbSchema.AccelerationTable.NAME), null)) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        }
+    }
+
+    @Override
+    public void flush() {
+        // durable once the writer's transaction commits
+    }
+
+    @Override
+    public void close() {
+        mInsert.close();
+    }
+
+}
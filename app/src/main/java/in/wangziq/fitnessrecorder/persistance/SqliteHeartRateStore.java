@@ -0,0 +1,63 @@
+package in.wangziq.fitnessrecorder.persistance;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Keeps heart rate samples as rows of {@link FitnessDbSchema.HeartRateTable}.
+ * Inserts go through a pre-compiled statement with primitive bindings, so the recording path
+ * doesn't allocate per sample.
+ */
+final class SqliteHeartRateStore implements HeartRateStore {
+
+    private final SQLiteDatabase mReadDb;
+    private final SQLiteStatement mInsert;
+
+    SqliteHeartRateStore(SQLiteDatabase db, SQLiteDatabase readDb) {
+        mReadDb = readDb;
+        mInsert = db.compileStatement(String.format(
+                "insert or ignore into %s (%s, %s) values (?, ?)",
+                FitnessDbSchema.HeartRateTable.NAME,
+                FitnessDbSchema.HeartRateTable.Cols.timestamp,
+                FitnessDbSchema.HeartRateTable.Cols.heartRate));
+    }
+
+    @Override
+    public boolean insert(long timestamp, int heartRate) {
+        mInsert.bindLong(1, timestamp);
+        mInsert.bindLong(2, heartRate);
+        return mInsert.executeInsert() != -1;
+    }
+
+    @Override
+    public void flush() {
+        // every insert is written right away
+    }
+
+    @Override
+    public Cursor query(long afterTimestamp, long to, int limit) {
+        return mReadDb.rawQuery(String.format("select * from %1$s where %2$s > ? and %2$s < ? order by %2$s limit %3$d",
+                FitnessDbSchema.HeartRateTable.NAME,
+                FitnessDbSchema.HeartRateTable.Cols.timestamp,
+                limit),
+                new String[] {Long.toString(afterTimestamp), Long.toString(to)});
+    }
+
+    @Override
+    public Cursor queryAll() {
+        return mReadDb.rawQuery("select * from " + FitnessDbSchema.HeartRateTable.NAME, null);
+    }
+
+    @Override
+    public long getOpenFrom(long now) {
+        // rows are never updated
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public void close() {
+        mInsert.close();
+    }
+
+}
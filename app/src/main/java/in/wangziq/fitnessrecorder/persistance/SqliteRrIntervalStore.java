@@ -0,0 +1,51 @@
+package in.wangziq.fitnessrecorder.persistance;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Keeps RR intervals as rows of {@link FitnessDbSchema.RrIntervalTable}, inserted as heart rates
+ * are by {@link SqliteHeartRateStore}.
+ */
+final class SqliteRrIntervalStore {
+
+    private final SQLiteDatabase mReadDb;
+    private final SQLiteStatement mInsert;
+
+    SqliteRrIntervalStore(SQLiteDatabase db, SQLiteDatabase readDb) {
+        mReadDb = readDb;
+        mInsert = db.compileStatement(String.format(
+                "insert into %s (%s, %s) values (?, ?)",
+                FitnessDbSchema.RrIntervalTable.NAME,
+                FitnessDbSchema.RrIntervalTable.Cols.timestamp,
+                FitnessDbSchema.RrIntervalTable.Cols.interval));
+    }
+
+    /**
+     * Intervals ending at the same time are all kept.
+     */
+    void insert(long timestamp, float interval) {
+        mInsert.bindLong(1, timestamp);
+        mInsert.bindDouble(2, interval);
+        mInsert.executeInsert();
+    }
+
+    /**
+     * Keyset query: rows after (afterTimestamp, afterId) with timestamp < to, in (timestamp, id) order.
+     */
+    Cursor query(long afterTimestamp, long afterId, long to, int limit) {
+        return mReadDb.rawQuery(String.format(
+                "select * from %1$s where %2$s >= ?1 and (%2$s > ?1 or %3$s > ?2) and %2$s < ?3 order by %2$s, %3$s limit %4$d",
+                FitnessDbSchema.RrIntervalTable.NAME,
+                FitnessDbSchema.RrIntervalTable.Cols.timestamp,
+                FitnessDbSchema.RrIntervalTable.Cols.id,
+                limit),
+                new String[] {Long.toString(afterTimestamp), Long.toString(afterId), Long.toString(to)});
+    }
+
+    void close() {
+        mInsert.close();
+    }
+
+}
@@ -22,7 +22,10 @@ import in.wangziq.fitnessrecorder.config.Constants;
 import in.wangziq.fitnessrecorder.hardware.BandState;
 import in.wangziq.fitnessrecorder.hardware.MiBand2;
 import in.wangziq.fitnessrecorder.persistance.DbTool;
+import in.wangziq.fitnessrecorder.persistance.FitnessDbSchema;
+import in.wangziq.fitnessrecorder.persistance.RetentionPolicy;
 import in.wangziq.fitnessrecorder.utils.BytesUtil;
+import in.wangziq.fitnessrecorder.utils.HrvEngine;
 
 public final class CommService extends Service {
 
@@ -30,6 +33,11 @@ public final class CommService extends Service {
 
     private static final int WAKELOCK_TIMEOUT = 36000000; // 10 hours
 
+    // record every acceleration sample instead of one mean per notification
+    private static final boolean FULL_RATE_ACCELERATION = true;
+
+    private static final long HRV_WINDOW = 5 * 60 * 1000; // ms, as short-term HRV
+
     private static final String ONGOING_CHANNEL = "ONGOING";
     private static final int HR_MEASURE_NOTIFY = 1;
 
@@ -37,7 +45,11 @@ public final class CommService extends Service {
     private Thread mHeartRateWorkThread, mAccelerationWorkThread;
     private SharedPreferences mSettings;
     private DbTool mDatabase;
+    // set by the work threads, ended from onDestroy as well
+    private volatile long mHeartRateSession, mAccelerationSession; // 0 if not measuring
     private PowerManager.WakeLock mWakeLock;
+    // only used from the BLE callback thread once the measurement started
+    private final HrvEngine mHrv = new HrvEngine(HRV_WINDOW);
 
     @Override
     public void onCreate() {
@@ -45,7 +57,8 @@ public final class CommService extends Service {
         Log.i(TAG, "onCreate");
         mSettings = getSharedPreferences(Constants.Settings.DEVICE, Context.MODE_PRIVATE);
         mBand = loadBandFromSettings();
-        mDatabase = new DbTool(this);
+        mDatabase = DbTool.getInstance(this);
+        mDatabase.startMaintenance(RetentionPolicy.load(this));
     }
 
     @Override
@@ -53,6 +66,9 @@ public final class CommService extends Service {
         super.onDestroy();
         Log.i(TAG, "onDestroy");
         disconnect();
+        // the database is shared with the rest of the process, so it stays open
+        endHeartRateSession();
+        endAccelerationSession();
         stopForeground(true);
     }
 
@@ -135,7 +151,7 @@ public final class CommService extends Service {
             boolean success = mBand.connect(true);
             Intent response = new Intent(Constants.Action.PAIR);
             if (success) {
-                Log.i(TAG, "pairAndConnect: paired successfully, state=" + mBand.getState());
+                Log.i(TAG, "pairAndConnect: paired successfully in " + mBand.getConnectLatency() + " ms, state=" + mBand.getState());
                 mSettings.edit()
                         .putString(Constants.Settings.DEVICE_MAC, mBand.getMacAddress())
                         .putString(Constants.Settings.DEVICE_KEY, BytesUtil.toHexStr(mBand.getAuthKey()))
@@ -160,7 +176,7 @@ public final class CommService extends Service {
             boolean success = mBand.connect(false);
             Intent response = new Intent(Constants.Action.CONNECT);
             if (success) {
-                Log.i(TAG, "connect: connected successfully, state=" + mBand.getState());
+                Log.i(TAG, "connect: connected successfully in " + mBand.getConnectLatency() + " ms, state=" + mBand.getState());
                 response.putExtra(Constants.Extra.STATUS, Constants.Status.OK);
             } else {
                 Log.i(TAG, "connect: failed to connect, state=" + mBand.getState());
@@ -204,13 +220,26 @@ public final class CommService extends Service {
                 success = true;
                 Log.i(TAG, "startHeartRateMeasure: already measuring");
             } else {
-                success = mBand.startMeasureHeartRate(heartRate -> {
-                    mDatabase.insertHeartRate(heartRate);
+                mHrv.reset();
+                success = mBand.startMeasureHeartRate((timestamp, heartRate) -> {
+                    mDatabase.insertHeartRate(timestamp, heartRate);
 
                     Intent i = new Intent(Constants.Action.BROADCAST_HEART_RATE)
                             .putExtra(Constants.Extra.HEART_RATE, heartRate);
                     LocalBroadcastManager.getInstance(this).sendBroadcast(i);
+                }, (timestamp, interval) -> {
+                    mDatabase.insertRrInterval(timestamp, interval);
+                    if (!mHrv.add(timestamp, interval) || mHrv.getBeatCount() < 2) return;
+
+                    Intent i = new Intent(Constants.Action.BROADCAST_HRV)
+                            .putExtra(Constants.Extra.HRV_RMSSD, mHrv.getRmssd())
+                            .putExtra(Constants.Extra.HRV_SDNN, mHrv.getSdnn());
+                    LocalBroadcastManager.getInstance(this).sendBroadcast(i);
                 });
+                // from the anchor of the clock stamping the samples, so that the first one is within
+                if (success) mHeartRateSession = mDatabase.startSession(FitnessDbSchema.SessionTable.TYPE_HEART_RATE,
+                        mBand.getHeartRateClock().getAnchor());
+                else endHeartRateSession();
             }
             Intent response = new Intent(Constants.Action.START_HEART_RATE)
                     .putExtra(Constants.Extra.STATUS, success ? Constants.Status.OK : Constants.Status.FAILED);
@@ -232,6 +261,7 @@ public final class CommService extends Service {
 
         mHeartRateWorkThread = new Thread(() -> {
             boolean success = mBand.stopMeasureHeartRate();
+            endHeartRateSession();
             Intent response = new Intent(Constants.Action.STOP_HEART_RATE)
                     .putExtra(Constants.Extra.STATUS, success ? Constants.Status.OK : Constants.Status.FAILED);
             LocalBroadcastManager.getInstance(this).sendBroadcast(response);
@@ -256,15 +286,19 @@ public final class CommService extends Service {
                 success = true;
                 Log.i(TAG, "startAccelerationMeasure: already measuring");
             } else {
-                success = mBand.startMeasureAcceleration((x, y, z) -> {
-                    mDatabase.insertAcceleration(x, y, z);
-
-                    Intent i = new Intent(Constants.Action.BROADCAST_ACCELERATION)
-                            .putExtra(Constants.Extra.ACCELERATION_X, x)
-                            .putExtra(Constants.Extra.ACCELERATION_Y, y)
-                            .putExtra(Constants.Extra.ACCELERATION_Z, z);
-                    LocalBroadcastManager.getInstance(this).sendBroadcast(i);
-                });
+                success = FULL_RATE_ACCELERATION
+                        ? mBand.startMeasureRawAcceleration(batch -> {
+                            final int n = batch.size();
+                            mDatabase.insertAccelerationBatch(batch.getTimestamps(), batch.getX(), batch.getY(), batch.getZ(), n);
+                            broadcastAcceleration(batch.getX()[n - 1], batch.getY()[n - 1], batch.getZ()[n - 1]);
+                        })
+                        : mBand.startMeasureAcceleration((timestamp, x, y, z) -> {
+                            mDatabase.insertAcceleration(timestamp, x, y, z);
+                            broadcastAcceleration(x, y, z);
+                        });
+                if (success) mAccelerationSession = mDatabase.startSession(FitnessDbSchema.SessionTable.TYPE_ACCELERATION,
+                        mBand.getAccelerationClock().getAnchor());
+                else endAccelerationSession();
             }
             Intent response = new Intent(Constants.Action.START_ACCELERATION)
                     .putExtra(Constants.Extra.STATUS, success ? Constants.Status.OK : Constants.Status.FAILED);
@@ -274,6 +308,15 @@ public final class CommService extends Service {
         mAccelerationWorkThread.start();
     }
 
+    // once per notification, the UI shows the latest sample
+    private void broadcastAcceleration(float x, float y, float z) {
+        Intent i = new Intent(Constants.Action.BROADCAST_ACCELERATION)
+                .putExtra(Constants.Extra.ACCELERATION_X, x)
+                .putExtra(Constants.Extra.ACCELERATION_Y, y)
+                .putExtra(Constants.Extra.ACCELERATION_Z, z);
+        LocalBroadcastManager.getInstance(this).sendBroadcast(i);
+    }
+
     private void stopAccelerationMeasure() {
         if (mWakeLock != null && mWakeLock.isHeld()) mWakeLock.release();
 
@@ -289,6 +332,7 @@ public final class CommService extends Service {
 
         mAccelerationWorkThread = new Thread(() -> {
             boolean success = mBand.stopMeasureAcceleration();
+            endAccelerationSession();
             Intent response = new Intent(Constants.Action.STOP_ACCELERATION)
                     .putExtra(Constants.Extra.STATUS, success ? Constants.Status.OK : Constants.Status.FAILED);
             LocalBroadcastManager.getInstance(this).sendBroadcast(response);
@@ -297,6 +341,20 @@ public final class CommService extends Service {
         mAccelerationWorkThread.start();
     }
 
+    // also commits the samples of the session
+    private void endHeartRateSession() {
+        // the end is exclusive, right after the last sample stamped so far
+        if (mHeartRateSession != 0) mDatabase.endSession(mHeartRateSession, mBand.getHeartRateClock().now() + 1);
+        else mDatabase.flush();
+        mHeartRateSession = 0;
+    }
+
+    private void endAccelerationSession() {
+        if (mAccelerationSession != 0) mDatabase.endSession(mAccelerationSession, mBand.getAccelerationClock().now() + 1);
+        else mDatabase.flush();
+        mAccelerationSession = 0;
+    }
+
     private MiBand2 loadBandFromSettings() {
         String macAddress = mSettings.getString(Constants.Settings.DEVICE_MAC, null);
         byte[] authKey = BytesUtil.hexStrToBytes(mSettings.getString(Constants.Settings.DEVICE_KEY, null));
@@ -0,0 +1,258 @@
+package in.wangziq.fitnessrecorder.services;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Environment;
+import android.os.IBinder;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.content.LocalBroadcastManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+
+import in.wangziq.fitnessrecorder.R;
+import in.wangziq.fitnessrecorder.activities.ExportDataActivity;
+import in.wangziq.fitnessrecorder.config.Constants;
+import in.wangziq.fitnessrecorder.export.AlignedExporter;
+import in.wangziq.fitnessrecorder.export.ColumnarExporter;
+import in.wangziq.fitnessrecorder.export.ColumnarFormat;
+import in.wangziq.fitnessrecorder.export.CsvExporter;
+import in.wangziq.fitnessrecorder.export.DbFileExporter;
+import in.wangziq.fitnessrecorder.export.ExportBundle;
+import in.wangziq.fitnessrecorder.export.ExportFiles;
+import in.wangziq.fitnessrecorder.export.ExportProgress;
+import in.wangziq.fitnessrecorder.export.ExportWatermarks;
+import in.wangziq.fitnessrecorder.persistance.DbTool;
+import in.wangziq.fitnessrecorder.persistance.Session;
+import in.wangziq.fitnessrecorder.utils.TimerUtil;
+
+/**
+ * Exports data in a background thread, as a foreground service so that it goes on after the
+ * activity is closed. Progress is broadcast with {@link Constants.Action#BROADCAST_EXPORT_PROGRESS},
+ * the result with {@link Constants.Action#EXPORT}. One export runs at a time.
+ */
+public final class ExportService extends Service {
+
+    private static final String TAG = ExportService.class.getSimpleName();
+
+    private static final String EXPORT_CHANNEL = "in.wangziq.fitnessrecorder.services.export";
+    private static final int EXPORT_NOTIFY = 2;
+    private static final int PROGRESS_PERIOD = 500; // 500 ms
+
+    private Thread mWorkThread;
+    private volatile ExportProgress mProgress;
+    private TimerUtil.Handle mProgressTimer;
+
+    public static File getExportDir(Context context) {
+        File downloadDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+        return new File(downloadDir, context.getString(R.string.app_name));
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        // started only, see onStartCommand
+        return null;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        final String action;
+        if (intent == null || (action = intent.getAction()) == null) {
+            stopSelfResult(startId);
+            return START_NOT_STICKY;
+        }
+        Log.i(TAG, "onStartCommand: action=" + action);
+        switch (action) {
+            case Constants.Action.EXPORT:
+                startExport(intent);
+                break;
+            case Constants.Action.CANCEL_EXPORT:
+                ExportProgress progress = mProgress;
+                if (progress != null) progress.cancel();
+                break;
+            default:
+                Log.w(TAG, "onStartCommand: Unknown action");
+        }
+        return START_NOT_STICKY;
+    }
+
+    private void startExport(Intent intent) {
+        if (mWorkThread != null && mWorkThread.isAlive()) {
+            Log.w(TAG, "startExport: the last export is still running, current task canceled");
+            sendResult(Constants.Status.FAILED);
+            return;
+        }
+        final boolean heartRate = intent.getBooleanExtra(Constants.Extra.EXPORT_HEART_RATE, false);
+        final boolean acceleration = intent.getBooleanExtra(Constants.Extra.EXPORT_ACCELERATION, false);
+        final String format = intent.getStringExtra(Constants.Extra.EXPORT_FORMAT);
+        final String compression = intent.getStringExtra(Constants.Extra.EXPORT_COMPRESSION);
+        final long from = intent.getLongExtra(Constants.Extra.EXPORT_FROM, Long.MIN_VALUE);
+        final long to = intent.getLongExtra(Constants.Extra.EXPORT_TO, Long.MAX_VALUE);
+        final long session = intent.getLongExtra(Constants.Extra.EXPORT_SESSION, 0);
+        // rows of an aligned export carry values forward from samples before them, it's always whole
+        final boolean incremental = intent.getBooleanExtra(Constants.Extra.EXPORT_INCREMENTAL, false)
+                && !Constants.ExportFormat.ALIGNED.equals(format);
+        final long interval = intent.getLongExtra(Constants.Extra.EXPORT_INTERVAL, 0);
+
+        final ExportProgress progress = new ExportProgress();
+        mProgress = progress;
+        startForeground(EXPORT_NOTIFY, buildNotification(format, progress));
+        mProgressTimer = TimerUtil.repeatPer(PROGRESS_PERIOD, () -> reportProgress(format, progress));
+
+        mWorkThread = new Thread(() -> {
+            int status = Constants.Status.FAILED;
+            final List<File> outputs = new ArrayList<>();
+            try {
+                export(heartRate, acceleration, format, compression, from, to, session, incremental, interval,
+                        progress, outputs);
+                status = Constants.Status.OK;
+            } catch (CancellationException e) {
+                Log.i(TAG, "export: cancelled");
+                status = Constants.Status.CANCELLED;
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "export: failed", e);
+            } finally {
+                // a partial file would look like a whole export
+                if (status != Constants.Status.OK) deleteOutputs(outputs);
+                // even on an error, so that the notification and the timer don't outlive the export
+                mProgressTimer.cancel();
+                reportProgress(format, progress);
+                sendResult(status);
+                mProgress = null;
+                stopForeground(true);
+                stopSelf();
+            }
+        }, TAG);
+        mWorkThread.start();
+    }
+
+    /**
+     * @param outputs receives every file written to, as soon as it's named
+     */
+    private void export(boolean heartRate, boolean acceleration, String format, String compression,
+                        long from, long to, long session, boolean incremental, long interval,
+                        ExportProgress progress, List<File> outputs) throws IOException {
+        if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState()))
+            throw new IOException("external storage unavailable");
+        final File dir = getExportDir(this);
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("failed to create " + dir);
+
+        // incremental exports write new files each time, holding what was recorded since the last one
+        final String prefix = (incremental ? "delta_" : "exported_")
+                + new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss", Locale.US).format(new Date());
+        final DbTool database = DbTool.getInstance(this);
+        if (session != 0) {
+            final Session bounds = database.querySession(session);
+            if (bounds == null) throw new IOException("no session " + session);
+            from = Math.max(from, bounds.getStart());
+            to = Math.min(to, bounds.getEnd());
+        }
+        final ExportWatermarks watermarks = incremental ? ExportWatermarks.load(this) : null;
+        if (incremental) {
+            // everything received so far, and nothing after, so that the next export starts right here
+            database.flush();
+            to = Math.min(to, System.currentTimeMillis());
+        }
+        if (Constants.ExportFormat.ALIGNED.equals(format)) {
+            // a single file, a zip would only add a manifest around it
+            final String suffix = Constants.ExportCompression.NONE.equals(compression) ? "" : ExportFiles.GZIP_SUFFIX;
+            new AlignedExporter(database, progress, interval, AlignedExporter.DEFAULT_MAX_AGE, from, to)
+                    .export(heartRate, acceleration, output(outputs, dir, prefix + "_aligned.csv" + suffix));
+        } else if (Constants.ExportFormat.COLUMNAR.equals(format)) {
+            // compressed by blocks, so that readers can still skip blocks without decompressing them
+            final boolean deflate = !Constants.ExportCompression.NONE.equals(compression);
+            new ColumnarExporter(database, progress, watermarks, from, to, deflate).export(
+                    heartRate ? output(outputs, dir, prefix + "_heartRate" + ColumnarFormat.FILE_SUFFIX) : null,
+                    acceleration ? output(outputs, dir, prefix + "_acceleration" + ColumnarFormat.FILE_SUFFIX) : null);
+        } else if (Constants.ExportCompression.ZIP.equals(compression)) {
+            ExportBundle bundle = new ExportBundle(database, progress, getCacheDir(), watermarks, from, to);
+            if (Constants.ExportFormat.SQLITE.equals(format))
+                bundle.exportDatabase(output(outputs, dir, prefix + "_all" + ExportFiles.ZIP_SUFFIX), from, to);
+            else
+                bundle.exportCsv(output(outputs, dir, prefix + ExportFiles.ZIP_SUFFIX), heartRate, acceleration);
+        } else {
+            final String suffix = Constants.ExportCompression.GZIP.equals(compression) ? ExportFiles.GZIP_SUFFIX : "";
+            if (Constants.ExportFormat.SQLITE.equals(format)) {
+                new DbFileExporter(database, progress, getCacheDir(), watermarks)
+                        .export(output(outputs, dir, prefix + "_all.db" + suffix), from, to);
+            } else {
+                new CsvExporter(database, progress, watermarks, from, to).export(
+                        heartRate ? output(outputs, dir, prefix + "_heartRate.csv" + suffix) : null,
+                        acceleration ? output(outputs, dir, prefix + "_acceleration.csv" + suffix) : null);
+            }
+        }
+        if (watermarks != null) watermarks.save();
+    }
+
+    private static File output(List<File> outputs, File dir, String name) {
+        final File file = new File(dir, name);
+        outputs.add(file);
+        return file;
+    }
+
+    private static void deleteOutputs(List<File> outputs) {
+        for (File file: outputs) {
+            if (!file.exists()) continue;
+            if (file.delete()) Log.i(TAG, "deleteOutputs: deleted " + file);
+            else Log.w(TAG, "deleteOutputs: failed to delete " + file);
+        }
+    }
+
+    private void reportProgress(String format, ExportProgress progress) {
+        Intent i = new Intent(Constants.Action.BROADCAST_EXPORT_PROGRESS)
+                .putExtra(Constants.Extra.EXPORT_FORMAT, format)
+                .putExtra(Constants.Extra.EXPORT_DONE, progress.getDone())
+                .putExtra(Constants.Extra.EXPORT_RATE, progress.getRate());
+        LocalBroadcastManager.getInstance(this).sendBroadcast(i);
+        NotificationManager notifyMgr = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        if (notifyMgr != null) notifyMgr.notify(EXPORT_NOTIFY, buildNotification(format, progress));
+    }
+
+    private void sendResult(int status) {
+        Intent response = new Intent(Constants.Action.EXPORT).putExtra(Constants.Extra.STATUS, status);
+        LocalBroadcastManager.getInstance(this).sendBroadcast(response);
+    }
+
+    private Notification buildNotification(String format, ExportProgress progress) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(EXPORT_CHANNEL, "Export",
+                    NotificationManager.IMPORTANCE_LOW);
+            NotificationManager notifyMgr = getSystemService(NotificationManager.class);
+            if (notifyMgr != null) notifyMgr.createNotificationChannel(channel);
+        }
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
+                new Intent(this, ExportDataActivity.class), 0);
+        PendingIntent cancelIntent = PendingIntent.getService(this, 0,
+                new Intent(this, ExportService.class).setAction(Constants.Action.CANCEL_EXPORT), 0);
+        return new NotificationCompat.Builder(this, EXPORT_CHANNEL)
+                .setSmallIcon(R.drawable.ic_heart_red_64dp)
+                .setContentTitle(getString(R.string.notify_exporting))
+                .setContentText(formatProgress(this, format, progress.getDone(), progress.getRate()))
+                .setContentIntent(contentIntent)
+                .addAction(0, getString(R.string.btn_cancel_export), cancelIntent)
+                .setProgress(0, 0, true)
+                .setOnlyAlertOnce(true)
+                .setOngoing(true)
+                .build();
+    }
+
+    public static String formatProgress(Context context, String format, long done, double rate) {
+        return Constants.ExportFormat.SQLITE.equals(format)
+                ? context.getString(R.string.export_progress_bytes, done / 1024, rate / 1024)
+                : context.getString(R.string.export_progress_rows, done, rate);
+    }
+
+}
@@ -42,6 +42,24 @@ public final class BytesUtil {
         return bytes;
     }
 
+    // little-endian reads in place, as the band sends them; ByteBuffer.wrap would allocate per notification
+
+    public static int uint8(byte[] data, int offset) {
+        return data[offset] & 0xff;
+    }
+
+    public static short int16(byte[] data, int offset) {
+        return (short) ((data[offset] & 0xff) | (data[offset + 1] << 8));
+    }
+
+    public static int uint16(byte[] data, int offset) {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8;
+    }
+
+    public static long uint32(byte[] data, int offset) {
+        return (uint16(data, offset) | (long) uint16(data, offset + 2) << 16);
+    }
+
     public static byte[] random(int size) {
         if (size < 0)
             throw new IllegalArgumentException("size should be greater than 0!");
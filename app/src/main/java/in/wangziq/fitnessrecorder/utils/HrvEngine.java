@@ -0,0 +1,156 @@
+package in.wangziq.fitnessrecorder.utils;
+
+/**
+ * Heart rate variability over a sliding time window, updated as each RR interval arrives: SDNN,
+ * the standard deviation of the intervals, and RMSSD, the root mean square of the differences
+ * between successive intervals. Running sums make each beat O(1), amortized over evictions.
+ * Not thread-safe.
+ */
+public final class HrvEngine {
+
+    // intervals outside of this are artifacts (missed or extra beats), not heartbeats
+    public static final float MIN_INTERVAL = 300; // ms, 200 bpm
+    public static final float MAX_INTERVAL = 2000; // ms, 30 bpm
+    // successive beats end about one interval apart, a longer gap means beats were lost in between
+    private static final float MAX_GAP_ERROR = 0.25f; // of the interval
+
+    private final long mWindow;
+
+    // ring buffer of beats in the window, oldest at mHead
+    private long[] mTimes = new long[128];
+    private float[] mIntervals = new float[128];
+    // squared difference to the previous beat, or -1 if it doesn't follow that one directly
+    private double[] mDiffSquares = new double[128];
+    private int mHead, mCount;
+
+    // sums are of (interval - mOffset), so they stay small and lose no precision over a long run
+    private float mOffset;
+    private double mSum, mSquareSum;
+    private double mDiffSquareSum;
+    private int mDiffCount;
+    private long mLastTime;
+    private float mLastInterval;
+
+    /**
+     * @param window ms of beats to keep, e.g. 5 minutes for short-term HRV
+     */
+    public HrvEngine(long window) {
+        if (window <= 0) throw new IllegalArgumentException("window must be positive");
+        mWindow = window;
+        reset();
+    }
+
+    /**
+     * Forgets all beats, e.g. when a measurement starts.
+     */
+    public void reset() {
+        mHead = mCount = 0;
+        mSum = mSquareSum = mDiffSquareSum = 0;
+        mDiffCount = 0;
+        mLastTime = Long.MIN_VALUE;
+        mLastInterval = 0;
+    }
+
+    /**
+     * @param timestamp of the beat ending the interval, not before that of the last one added
+     * @param interval ms since the previous beat
+     * @return false if rejected as an artifact or out of order
+     */
+    public boolean add(long timestamp, float interval) {
+        if (!(interval >= MIN_INTERVAL && interval <= MAX_INTERVAL)) return false;
+        if (mLastTime != Long.MIN_VALUE && timestamp <= mLastTime) return false;
+
+        final boolean successive = mLastTime != Long.MIN_VALUE
+                && Math.abs(timestamp - mLastTime - interval) <= interval * MAX_GAP_ERROR;
+        if (mCount == 0) {
+            mOffset = interval;
+            mSum = mSquareSum = 0; // drop rounding residue
+        }
+        if (mCount == mTimes.length) grow();
+        final int tail = (mHead + mCount) % mTimes.length;
+        mTimes[tail] = timestamp;
+        mIntervals[tail] = interval;
+        mDiffSquares[tail] = -1;
+        ++mCount;
+
+        final double shifted = interval - mOffset;
+        mSum += shifted;
+        mSquareSum += shifted * shifted;
+        if (successive) {
+            final double diff = interval - mLastInterval;
+            mDiffSquares[tail] = diff * diff;
+            mDiffSquareSum += diff * diff;
+            ++mDiffCount;
+        }
+        mLastTime = timestamp;
+        mLastInterval = interval;
+
+        evictBefore(timestamp - mWindow);
+        return true;
+    }
+
+    // a difference is kept as long as the later of its two beats
+    private void evictBefore(long cutoff) {
+        while (mCount > 0 && mTimes[mHead] <= cutoff) {
+            final double shifted = mIntervals[mHead] - mOffset;
+            mSum -= shifted;
+            mSquareSum -= shifted * shifted;
+            if (mDiffSquares[mHead] >= 0) {
+                mDiffSquareSum -= mDiffSquares[mHead];
+                --mDiffCount;
+            }
+            mHead = (mHead + 1) % mTimes.length;
+            --mCount;
+        }
+        if (mDiffCount == 0) mDiffSquareSum = 0;
+    }
+
+    private void grow() {
+        final int length = mTimes.length;
+        final long[] times = new long[length * 2];
+        final float[] intervals = new float[length * 2];
+        final double[] diffSquares = new double[length * 2];
+        for (int i = 0; i < mCount; ++i) {
+            final int j = (mHead + i) % length;
+            times[i] = mTimes[j];
+            intervals[i] = mIntervals[j];
+            diffSquares[i] = mDiffSquares[j];
+        }
+        mTimes = times;
+        mIntervals = intervals;
+        mDiffSquares = diffSquares;
+        mHead = 0;
+    }
+
+    /**
+     * @return beats in the window
+     */
+    public int getBeatCount() {
+        return mCount;
+    }
+
+    /**
+     * @return ms, or NaN without beats
+     */
+    public double getMeanInterval() {
+        return mCount == 0 ? Double.NaN : mOffset + mSum / mCount;
+    }
+
+    /**
+     * @return ms, sample standard deviation, or NaN with less than 2 beats
+     */
+    public double getSdnn() {
+        if (mCount < 2) return Double.NaN;
+        final double variance = (mSquareSum - mSum * mSum / mCount) / (mCount - 1);
+        return Math.sqrt(Math.max(variance, 0));
+    }
+
+    /**
+     * @return ms, or NaN without successive beats
+     */
+    public double getRmssd() {
+        if (mDiffCount == 0) return Double.NaN;
+        return Math.sqrt(Math.max(mDiffSquareSum, 0) / mDiffCount);
+    }
+
+}
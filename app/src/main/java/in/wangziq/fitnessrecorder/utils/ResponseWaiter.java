@@ -2,42 +2,55 @@ package in.wangziq.fitnessrecorder.utils;
 
 import android.util.Log;
 
+/**
+ * Blocks a worker thread until a callback reports the outcome with {@link #ok()} or {@link #fail()},
+ * waking it up as soon as it does.
+ */
 public class ResponseWaiter {
     private static final String TAG = ResponseWaiter.class.getSimpleName();
 
-    private long mRecheckGap;
-    private long mTimeout;
+    private final long mTimeout;
     private Boolean success;
 
-    public ResponseWaiter(long recheckGap, long timeout) {
-        mRecheckGap = recheckGap;
+    /**
+     * @param timeout in milliseconds, after which {@link #work()} gives up
+     */
+    public ResponseWaiter(long timeout) {
         mTimeout = timeout;
         success = null;
     }
 
-    public ResponseWaiter(long recheckGap) {
-        this(recheckGap, Long.MAX_VALUE);
-    }
-
     public synchronized void ok() {
         success = true;
+        notifyAll();
     }
 
     public synchronized void fail() {
         success = false;
+        notifyAll();
     }
 
     public synchronized void reset() {
         success = null;
     }
 
-    public boolean work() {
+    /**
+     * @return false if failed, timed out or interrupted
+     */
+    public synchronized boolean work() {
         try {
-            long start = System.currentTimeMillis();
-            while (success == null && System.currentTimeMillis() - start < mTimeout)
-                Thread.sleep(mRecheckGap);
+            final long deadline = System.currentTimeMillis() + mTimeout;
+            while (success == null) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    Log.w(TAG, "work: timed out after " + mTimeout + " ms");
+                    return false;
+                }
+                wait(remaining);
+            }
         } catch (InterruptedException e) {
             Log.e(TAG, "waiting interrupted: " + e.getMessage(), e);
+            Thread.currentThread().interrupt();
             return false;
         }
         return success;
@@ -0,0 +1,64 @@
+package in.wangziq.fitnessrecorder.utils;
+
+import android.os.SystemClock;
+
+/**
+ * Timestamps samples in epoch milliseconds, counted on the monotonic clock from the wall-clock time
+ * of the last {@link #anchor()}. Timestamps of one measurement never go backwards or jump when
+ * the wall clock is adjusted (e.g. by network time), and keep their spacing while the device sleeps.
+ */
+public final class SampleClock {
+
+    /**
+     * Both clocks read by a SampleClock. Off the device, e.g. on the JVM where SystemClock
+     * always returns 0, a simulated band provides its own.
+     */
+    public interface Source {
+        long elapsedRealtimeNanos();
+
+        long currentTimeMillis();
+    }
+
+    public static final Source SYSTEM = new Source() {
+        @Override
+        public long elapsedRealtimeNanos() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private final Source mSource;
+    private long mWallAnchor, mElapsedAnchor;
+
+    public SampleClock(Source source) {
+        mSource = source;
+        anchor();
+    }
+
+    /**
+     * Re-reads the wall clock, e.g. when a measurement starts.
+     */
+    public synchronized void anchor() {
+        mElapsedAnchor = mSource.elapsedRealtimeNanos();
+        mWallAnchor = mSource.currentTimeMillis();
+    }
+
+    /**
+     * @return the time of the last {@link #anchor()} in epoch milliseconds, no later than any timestamp since
+     */
+    public synchronized long getAnchor() {
+        return mWallAnchor;
+    }
+
+    /**
+     * @return the current time in epoch milliseconds
+     */
+    public synchronized long now() {
+        return mWallAnchor + (mSource.elapsedRealtimeNanos() - mElapsedAnchor) / 1000000;
+    }
+
+}
@@ -1,29 +1,115 @@
 package in.wangziq.fitnessrecorder.utils;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import android.util.Log;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs delayed and periodic tasks on a scheduler shared by the whole app, instead of a thread per
+ * task. Tasks on the scheduler must be short, as timeouts wait behind them; a task waiting for
+ * the band is handed to a worker thread with {@link #repeatBlockingPer}.
+ */
 public final class TimerUtil {
 
-    public static Timer doAfter(int delay, Runnable task) {
-        Timer timer = new Timer();
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                task.run();
+    private static final String TAG = TimerUtil.class.getSimpleName();
+
+    // two, so that a slow callback run by a timeout doesn't delay the others
+    private static final int THREADS = 2;
+
+    private static final ScheduledThreadPoolExecutor SCHEDULER;
+    static {
+        final AtomicInteger count = new AtomicInteger();
+        SCHEDULER = new ScheduledThreadPoolExecutor(THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "TimerUtil-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // cancelled tasks leave the queue at once, so that it holds live tasks only
+        SCHEDULER.setRemoveOnCancelPolicy(true);
+    }
+
+    // threads come and go with blocking tasks, there are few of them at a time
+    private static final ExecutorService WORKERS;
+    static {
+        final AtomicInteger count = new AtomicInteger();
+        WORKERS = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "TimerUtil-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Cancels a scheduled task.
+     */
+    public static final class Handle {
+        private final ScheduledFuture<?> mFuture;
+
+        private Handle(ScheduledFuture<?> future) {
+            mFuture = future;
+        }
+
+        /**
+         * Does nothing if the task has run or is cancelled already. Doesn't interrupt a running task.
+         */
+        public void cancel() {
+            mFuture.cancel(false);
+        }
+    }
+
+    private TimerUtil() {}
+
+    public static Handle doAfter(int delay, Runnable task) {
+        return new Handle(SCHEDULER.schedule(guard(task), delay, TimeUnit.MILLISECONDS));
+    }
+
+    public static Handle repeatPer(int period, Runnable task) {
+        return new Handle(SCHEDULER.scheduleAtFixedRate(guard(task), period, period, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Like {@link #repeatPer}, for a task that blocks, e.g. waiting for a response of the band:
+     * each run is handed to a worker thread, and skipped while the last one is still going.
+     */
+    public static Handle repeatBlockingPer(int period, Runnable task) {
+        final Runnable guarded = guard(task);
+        final AtomicBoolean running = new AtomicBoolean();
+        return repeatPer(period, () -> {
+            if (!running.compareAndSet(false, true)) {
+                Log.w(TAG, "repeatBlockingPer: last run still going, skipped");
+                return;
             }
-        }, delay);
-        return timer;
+            WORKERS.execute(() -> {
+                try {
+                    guarded.run();
+                } finally {
+                    running.set(false);
+                }
+            });
+        });
+    }
+
+    /**
+     * @return tasks waiting to run on the scheduler, periodic ones included, and tasks running
+     */
+    public static int getLiveTaskCount() {
+        return SCHEDULER.getQueue().size() + SCHEDULER.getActiveCount();
     }
 
-    public static Timer repeatPer(int period, Runnable task) {
-        Timer timer = new Timer();
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
+    // a periodic task that throws would silently never run again
+    private static Runnable guard(Runnable task) {
+        return () -> {
+            try {
                 task.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "task failed: " + e.getMessage(), e);
             }
-        }, period, period);
-        return timer;
+        };
     }
 }
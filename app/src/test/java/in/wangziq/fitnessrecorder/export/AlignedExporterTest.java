@@ -0,0 +1,113 @@
+package in.wangziq.fitnessrecorder.export;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class AlignedExporterTest {
+
+    private static final class AccelerationPager extends AlignedExporter.Pager {
+        private final long[] mTimes;
+        private final float[] mValues;
+        private int mIndex = -1;
+
+        AccelerationPager(long[] times, float[] values) {
+            mTimes = times;
+            mValues = values;
+        }
+
+        @Override
+        long time() {
+            return mIndex < mTimes.length ? mTimes[mIndex] : Long.MAX_VALUE;
+        }
+
+        @Override
+        void next() {
+            if (mIndex < mTimes.length) ++mIndex;
+        }
+
+        @Override
+        void take(AlignedExporter exporter) {
+            final float value = mValues[mIndex];
+            exporter.keepAcceleration(mTimes[mIndex], value, value, value);
+        }
+    }
+
+    private static final class RatePager extends AlignedExporter.Pager {
+        private final long[] mTimes;
+        private final int[] mRates;
+        private int mIndex = -1;
+
+        RatePager(long[] times, int[] rates) {
+            mTimes = times;
+            mRates = rates;
+        }
+
+        @Override
+        long time() {
+            return mIndex < mTimes.length ? mTimes[mIndex] : Long.MAX_VALUE;
+        }
+
+        @Override
+        void next() {
+            if (mIndex < mTimes.length) ++mIndex;
+        }
+
+        @Override
+        void take(AlignedExporter exporter) {
+            exporter.keepRate(mTimes[mIndex], mRates[mIndex]);
+        }
+    }
+
+    // data rows only, the header goes through opencsv
+    private static List<String> export(long interval, long maxAge, long[] rateTimes, int[] rates,
+                                       long[] accelerationTimes, float[] accelerations) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new AlignedExporter(null, new ExportProgress(), interval, maxAge, Long.MIN_VALUE, Long.MAX_VALUE)
+                .write(out, new RatePager(rateTimes, rates), new AccelerationPager(accelerationTimes, accelerations));
+        List<String> rows = new ArrayList<>();
+        for (String line : out.toString("UTF-8").split("\n")) {
+            if (!line.isEmpty() && !line.startsWith("\"")) rows.add(line);
+        }
+        return rows;
+    }
+
+    @Test
+    public void endsOnTheGridPointAfterAnOffGridLastSample() throws IOException {
+        List<String> rows = export(100, 1000, new long[] {1000, 1050}, new int[] {70, 75}, new long[0], new float[0]);
+        assertEquals(2, rows.size());
+        assertEquals("1000,70,,,", rows.get(0));
+        assertEquals("1100,75,,,", rows.get(1));
+    }
+
+    @Test
+    public void endsOnTheLastSampleOnTheGrid() throws IOException {
+        List<String> rows = export(100, 1000, new long[] {1000, 1100}, new int[] {70, 75},
+                new long[] {1020}, new float[] {1.5f});
+        assertEquals(2, rows.size());
+        assertEquals("1100,75,1.5,1.5,1.5", rows.get(1));
+    }
+
+    @Test
+    public void takesTheLaterTableLastSample() throws IOException {
+        List<String> rows = export(100, 1000, new long[] {1000}, new int[] {70},
+                new long[] {1000, 1210}, new float[] {1, 2});
+        assertEquals(4, rows.size());
+        assertEquals("1300,70,2.0,2.0,2.0", rows.get(3));
+    }
+
+    @Test
+    public void writesEverySampleWithoutGrid() throws IOException {
+        List<String> rows = export(0, 1000, new long[] {1000, 1050}, new int[] {70, 75},
+                new long[] {1050, 1070}, new float[] {1, 2});
+        assertEquals(3, rows.size());
+        assertEquals("1050,75,1.0,1.0,1.0", rows.get(1));
+        assertEquals("1070,75,2.0,2.0,2.0", rows.get(2));
+    }
+
+}
@@ -0,0 +1,173 @@
+package in.wangziq.fitnessrecorder.export;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ColumnarFormatTest {
+
+    private static final String[] NAMES = {"timestamp", "id", "rate", "x"};
+    private static final byte[] TYPES = {
+            ColumnarFormat.INT64, ColumnarFormat.INT64, ColumnarFormat.INT32, ColumnarFormat.FLOAT32
+    };
+
+    private static byte[] write(int rows, boolean deflate) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ColumnarWriter writer = new ColumnarWriter(out, NAMES, TYPES, deflate)) {
+            for (int i = 0; i < rows; ++i) {
+                writer.putLong(0, 1536000000000L + i * 40L);
+                writer.putLong(1, i);
+                writer.putInt(2, 60 + i % 100);
+                writer.putFloat(3, i / 3f);
+                writer.endRow();
+            }
+            writer.finish();
+        }
+        return out.toByteArray();
+    }
+
+    // reads every block back and checks it against what write() put
+    private static void assertRoundTrip(int rows, boolean deflate) throws IOException {
+        try (ColumnarReader reader = new ColumnarReader(new ByteArrayInputStream(write(rows, deflate)))) {
+            assertArrayEquals(NAMES, reader.getColumnNames());
+            assertArrayEquals(TYPES, reader.getColumnTypes());
+            long[] timestamps = null, ids = null;
+            int[] rates = null;
+            float[] xs = null;
+            int row = 0;
+            while (reader.nextBlock()) {
+                final int count = reader.getRowCount();
+                assertTrue(count > 0 && count <= ColumnarFormat.BLOCK_ROWS);
+                assertEquals(1536000000000L + row * 40L, reader.getMinTime());
+                assertEquals(1536000000000L + (row + count - 1) * 40L, reader.getMaxTime());
+                timestamps = reader.getLongs(0, timestamps);
+                ids = reader.getLongs(1, ids);
+                rates = reader.getInts(2, rates);
+                xs = reader.getFloats(3, xs);
+                for (int i = 0; i < count; ++i, ++row) {
+                    assertEquals(1536000000000L + row * 40L, timestamps[i]);
+                    assertEquals(row, ids[i]);
+                    assertEquals(60 + row % 100, rates[i]);
+                    assertEquals(row / 3f, xs[i], 0);
+                }
+            }
+            assertEquals(rows, row);
+        }
+    }
+
+    @Test
+    public void roundTripsEmpty() throws IOException {
+        assertRoundTrip(0, false);
+        assertRoundTrip(0, true);
+    }
+
+    @Test
+    public void roundTripsFullBlock() throws IOException {
+        assertRoundTrip(ColumnarFormat.BLOCK_ROWS, false);
+        assertRoundTrip(ColumnarFormat.BLOCK_ROWS, true);
+    }
+
+    @Test
+    public void roundTripsFullBlockAndOneRow() throws IOException {
+        assertRoundTrip(ColumnarFormat.BLOCK_ROWS + 1, false);
+        assertRoundTrip(ColumnarFormat.BLOCK_ROWS + 1, true);
+        try (ColumnarReader reader = new ColumnarReader(new ByteArrayInputStream(write(ColumnarFormat.BLOCK_ROWS + 1, true)))) {
+            assertTrue(reader.nextBlock());
+            assertEquals(ColumnarFormat.BLOCK_ROWS, reader.getRowCount());
+            // skipped without being read
+            assertTrue(reader.nextBlock());
+            assertEquals(1, reader.getRowCount());
+            assertEquals(ColumnarFormat.BLOCK_ROWS, reader.getLongs(1, null)[0]);
+            assertFalse(reader.nextBlock());
+        }
+    }
+
+    @Test
+    public void rejectsBadMagic() throws IOException {
+        byte[] file = write(10, false);
+        file[0] ^= 1;
+        try {
+            new ColumnarReader(new ByteArrayInputStream(file));
+            fail();
+        } catch (IOException expected) {
+            // not a columnar export
+        }
+    }
+
+    @Test
+    public void rejectsUnknownColumnType() throws IOException {
+        byte[] file = write(10, false);
+        file[12] = 42; // type of column 0
+        try {
+            new ColumnarReader(new ByteArrayInputStream(file));
+            fail();
+        } catch (IOException expected) {
+            // unknown column type
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedFiles() throws IOException {
+        for (boolean deflate : new boolean[] {false, true}) {
+            byte[] file = write(ColumnarFormat.BLOCK_ROWS + 1, deflate);
+            // within the header, a block header, a block, and the end marker
+            for (int length : new int[] {5, 40, 80, 2000, file.length - 100, file.length - 1}) {
+                final byte[] truncated = Arrays.copyOf(file, length);
+                try (ColumnarReader reader = new ColumnarReader(new ByteArrayInputStream(truncated))) {
+                    while (reader.nextBlock()) reader.getLongs(0, null);
+                    fail("read " + length + " of " + file.length + " bytes without an error");
+                } catch (IOException expected) {
+                    // EOF
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rejectsFilesClosedWithoutFinishing() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ColumnarWriter writer = new ColumnarWriter(out, NAMES, TYPES, true)) {
+            for (int i = 0; i < ColumnarFormat.BLOCK_ROWS + 10; ++i) {
+                writer.putLong(0, i);
+                writer.putLong(1, i);
+                writer.putInt(2, 60);
+                writer.putFloat(3, 0);
+                writer.endRow();
+            }
+            // e.g. an export cancelled on the way
+        }
+        try (ColumnarReader reader = new ColumnarReader(new ByteArrayInputStream(out.toByteArray()))) {
+            assertTrue(reader.nextBlock());
+            reader.nextBlock();
+            fail("took a file without its end for a complete one");
+        } catch (EOFException expected) {
+            // the end marker is missing
+        }
+    }
+
+    @Test
+    public void rejectsCorruptedBlocks() throws IOException {
+        byte[] file = write(10, true);
+        // in the deflated values, after the file and block headers
+        final int header = 12 + 4 * 2 + NAMES[0].length() + NAMES[1].length() + NAMES[2].length() + NAMES[3].length();
+        file[header + ColumnarFormat.BLOCK_HEADER_SIZE + 2] ^= 0x55;
+        try (ColumnarReader reader = new ColumnarReader(new ByteArrayInputStream(file))) {
+            assertTrue(reader.nextBlock());
+            reader.getLongs(0, null);
+            fail();
+        } catch (IOException expected) {
+            // corrupted block
+        }
+    }
+
+}
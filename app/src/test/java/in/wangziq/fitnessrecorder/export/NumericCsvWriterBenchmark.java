@@ -0,0 +1,81 @@
+package in.wangziq.fitnessrecorder.export;
+
+import com.opencsv.CSVWriter;
+
+import org.junit.Test;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Compares {@link NumericCsvWriter} with opencsv on acceleration rows, as written by
+ * {@link CsvExporter}.
+ */
+public class NumericCsvWriterBenchmark {
+
+    private static final int ROWS = 2_000_000;
+    private static final int ROUNDS = 5;
+
+    @Test
+    public void compareWithOpenCsv() throws IOException {
+        final float[] values = new float[1024];
+        Random random = new Random(1);
+        for (int i = 0; i < values.length; ++i) values[i] = (random.nextInt(8192) - 4096) / 3f;
+
+        for (int round = 0; round < ROUNDS; ++round) {
+            long start = System.nanoTime();
+            CountingOutputStream out = new CountingOutputStream();
+            try (CSVWriter writer = new CSVWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)))) {
+                for (int i = 0; i < ROWS; ++i) {
+                    writer.writeNext(new String[] {
+                            Long.toString(i),
+                            Long.toString(1536000000000L + i * 40L),
+                            Float.toString(values[i & 1023]),
+                            Float.toString(values[(i + 1) & 1023]),
+                            Float.toString(values[(i + 2) & 1023])
+                    });
+                }
+            }
+            report("opencsv", round, start, out.mCount);
+
+            start = System.nanoTime();
+            out = new CountingOutputStream();
+            try (NumericCsvWriter writer = new NumericCsvWriter(out)) {
+                for (int i = 0; i < ROWS; ++i) {
+                    writer.writeLong(i);
+                    writer.writeLong(1536000000000L + i * 40L);
+                    writer.writeFloat(values[i & 1023]);
+                    writer.writeFloat(values[(i + 1) & 1023]);
+                    writer.writeFloat(values[(i + 2) & 1023]);
+                    writer.endRow();
+                }
+            }
+            report("numeric", round, start, out.mCount);
+        }
+    }
+
+    private static void report(String name, int round, long start, long bytes) {
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%s, round %d: %.0f ms, %.2f M rows/s, %d KiB%n",
+                name, round, seconds * 1000, ROWS / seconds / 1e6, bytes / 1024);
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        long mCount;
+
+        @Override
+        public void write(int b) {
+            ++mCount;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mCount += len;
+        }
+    }
+
+}
@@ -0,0 +1,83 @@
+package in.wangziq.fitnessrecorder.export;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class NumericCsvWriterTest {
+
+    @Test
+    public void writesParsableValues() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (NumericCsvWriter writer = new NumericCsvWriter(out)) {
+            writer.writeText(new String[] {"id", "time", "x"});
+            writer.writeLong(Long.MIN_VALUE);
+            writer.writeLong(0);
+            writer.writeFloat(-0.00004f);
+            writer.endRow();
+            writer.writeLong(42);
+            writer.writeLong(1536000000123L);
+            writer.writeFloat(-1024.3333f);
+            writer.endRow();
+            writer.writeInt(-7);
+            writer.writeDouble(1e20);
+            writer.writeFloat(Float.NaN);
+            writer.endRow();
+            writer.writeFloat(12);
+            writer.writeFloat(1e-12f);
+            writer.writeEmpty();
+            writer.endRow();
+        }
+        assertEquals("\"id\",\"time\",\"x\"\n"
+                + "-9223372036854775808,0,-0.00004\n"
+                + "42,1536000000123,-1024.3333\n"
+                + "-7,1.0E20,NaN\n"
+                + "12.0,1.0E-12,\n", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void keepsFloatsExact() throws IOException {
+        Random random = new Random(1);
+        float[] values = new float[100000];
+        for (int i = 0; i < values.length; ++i) {
+            switch (i % 3) {
+                case 0: // means of raw samples, as averaged accelerations
+                    values[i] = (random.nextInt(8192) - 4096 + random.nextInt(8192) - 4096) / 3f;
+                    break;
+                case 1:
+                    values[i] = (random.nextFloat() - 0.5f) * 2000;
+                    break;
+                default:
+                    do values[i] = Float.intBitsToFloat(random.nextInt()); while (Float.isNaN(values[i]));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (NumericCsvWriter writer = new NumericCsvWriter(out)) {
+            for (float value : values) {
+                writer.writeFloat(value);
+                writer.endRow();
+            }
+        }
+        String[] fields = out.toString("UTF-8").split("\n");
+        assertEquals(values.length, fields.length);
+        for (int i = 0; i < values.length; ++i) assertEquals(fields[i], values[i], Float.parseFloat(fields[i]), 0);
+    }
+
+    @Test
+    public void roundsToFixedDecimals() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (NumericCsvWriter writer = new NumericCsvWriter(out, 2)) {
+            writer.writeFloat(3.14159f);
+            writer.writeFloat(2.5f);
+            writer.writeFloat(-0.001f);
+            writer.writeDouble(-7.996);
+            writer.endRow();
+        }
+        assertEquals("3.14,2.5,0.0,-8.0\n", out.toString("UTF-8"));
+    }
+
+}
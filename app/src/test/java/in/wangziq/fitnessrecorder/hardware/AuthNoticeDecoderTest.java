@@ -0,0 +1,39 @@
+package in.wangziq.fitnessrecorder.hardware;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AuthNoticeDecoderTest {
+
+    @Test
+    public void decodesHeaderAndBody() {
+        AuthNoticeDecoder decoder = new AuthNoticeDecoder();
+        byte[] notice = {0x10, 0x02, 0x01, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, (byte) 0xff};
+        assertTrue(decoder.decode(notice));
+        assertEquals(Protocol.Response.RAND_OK, decoder.getHeader());
+        assertEquals(16, decoder.getBodyLength());
+
+        byte[] rand = new byte[16];
+        assertTrue(decoder.copyBody(notice, rand));
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, (byte) 0xff}, rand);
+        assertFalse(decoder.copyBody(notice, new byte[8]));
+    }
+
+    @Test
+    public void readsHeaderBytesUnsigned() {
+        AuthNoticeDecoder decoder = new AuthNoticeDecoder();
+        assertTrue(decoder.decode(new byte[] {(byte) 0x90, (byte) 0x81, (byte) 0xff}));
+        assertEquals(0x9081ff, decoder.getHeader());
+        assertEquals(0, decoder.getBodyLength());
+    }
+
+    @Test
+    public void rejectsShortNotices() {
+        assertFalse(new AuthNoticeDecoder().decode(new byte[] {0x10, 0x01}));
+    }
+
+}
@@ -0,0 +1,171 @@
+package in.wangziq.fitnessrecorder.hardware;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CommandQueueTest {
+
+    private static final String SERVICE = Protocol.Service.HEART_RATE;
+    private static final String CONTROL = Protocol.Characteristic.HEART_RATE_CONTROL;
+
+    // holds operations until the test completes them
+    private static final class ManualTransport implements BleTransport {
+        final List<byte[]> written = new ArrayList<>();
+        final List<WriteCallback> writes = new ArrayList<>();
+        final List<NotifyCallback> notifies = new ArrayList<>();
+        int stopped;
+        volatile int disconnected;
+
+        @Override public String getMacAddress() { return null; }
+        @Override public void connect(ConnectCallback callback) {}
+        @Override public void disconnect() {
+            ++disconnected;
+        }
+        @Override public void notify(String service, String characteristic, NotifyCallback callback) {
+            notifies.add(callback);
+        }
+        @Override public boolean stopNotify(String service, String characteristic) {
+            ++stopped;
+            return true;
+        }
+        @Override public void write(String service, String characteristic, byte[] data, WriteCallback callback) {
+            written.add(data);
+            writes.add(callback);
+        }
+    }
+
+    private static final class CountingCallback implements BleTransport.WriteCallback {
+        final AtomicInteger successes = new AtomicInteger(), failures = new AtomicInteger();
+
+        @Override public void onWriteSuccess(byte[] justWrite) {
+            successes.incrementAndGet();
+        }
+        @Override public void onWriteFailure(String error) {
+            failures.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void issuesOneAtATimeInOrder() {
+        ManualTransport transport = new ManualTransport();
+        CommandQueue queue = new CommandQueue(transport);
+        CountingCallback callback = new CountingCallback();
+        queue.write(SERVICE, CONTROL, Protocol.Command.HEART_START_CONTINUOUS, callback);
+        queue.write(SERVICE, CONTROL, Protocol.Command.HEART_STOP_CONTINUOUS, callback);
+        assertEquals(1, transport.writes.size());
+        assertEquals(2, queue.getDepth());
+
+        transport.writes.get(0).onWriteSuccess(null);
+        assertEquals(2, transport.writes.size());
+        assertEquals(Protocol.Command.HEART_STOP_CONTINUOUS, transport.written.get(1));
+        transport.writes.get(1).onWriteFailure("busy");
+
+        assertEquals(1, callback.successes.get());
+        assertEquals(1, callback.failures.get());
+        assertEquals(0, queue.getDepth());
+        assertEquals(2, queue.getMaxDepth());
+        assertEquals(1, queue.getCompletedCount());
+        assertEquals(1, queue.getFailedCount());
+    }
+
+    @Test
+    public void coalescesWaitingDuplicates() {
+        ManualTransport transport = new ManualTransport();
+        CommandQueue queue = new CommandQueue(transport).coalesce(Protocol.Command.HEART_KEEP_ALIVE);
+        CountingCallback callback = new CountingCallback();
+        queue.write(SERVICE, CONTROL, Protocol.Command.HEART_START_CONTINUOUS, callback);
+        queue.write(SERVICE, CONTROL, Protocol.Command.HEART_KEEP_ALIVE, callback);
+        queue.write(SERVICE, CONTROL, new byte[] {0x16}, callback);
+        queue.write(SERVICE, CONTROL, Protocol.Command.HEART_START_CONTINUOUS, callback);
+        assertEquals(3, queue.getDepth());
+        assertEquals(1, queue.getCoalescedCount());
+
+        transport.writes.get(0).onWriteSuccess(null);
+        transport.writes.get(1).onWriteSuccess(null);
+        transport.writes.get(2).onWriteSuccess(null);
+        assertEquals(3, transport.writes.size());
+        assertEquals(4, callback.successes.get());
+    }
+
+    @Test
+    public void failsEverythingOnDisconnect() {
+        ManualTransport transport = new ManualTransport();
+        CommandQueue queue = new CommandQueue(transport);
+        CountingCallback callback = new CountingCallback();
+        queue.write(SERVICE, CONTROL, Protocol.Command.HEART_START_CONTINUOUS, callback);
+        queue.write(SERVICE, CONTROL, Protocol.Command.HEART_STOP_CONTINUOUS, callback);
+        queue.disconnect();
+        assertEquals(2, callback.failures.get());
+        assertEquals(0, queue.getDepth());
+
+        // too late, already reported
+        transport.writes.get(0).onWriteSuccess(null);
+        assertEquals(0, callback.successes.get());
+        assertEquals(1, transport.writes.size());
+    }
+
+    @Test
+    public void stopsNotifyInTurn() throws InterruptedException {
+        ManualTransport transport = new ManualTransport();
+        CommandQueue queue = new CommandQueue(transport);
+        AtomicInteger notified = new AtomicInteger();
+        queue.notify(SERVICE, Protocol.Characteristic.HEART_RATE_MEASURE, new BleTransport.NotifyCallback() {
+            @Override public void onNotifySuccess() {}
+            @Override public void onNotifyFailure(String error) {}
+            @Override public void onCharacteristicChanged(byte[] data) {
+                notified.incrementAndGet();
+            }
+        });
+
+        AtomicBoolean stoppedInTurn = new AtomicBoolean();
+        Thread stopper = new Thread(() -> stoppedInTurn.set(queue.stopNotify(SERVICE, Protocol.Characteristic.HEART_RATE_MEASURE)));
+        stopper.start();
+        Thread.sleep(100);
+        assertEquals(0, transport.stopped);
+        transport.notifies.get(0).onNotifySuccess();
+        stopper.join(1000);
+        assertFalse(stopper.isAlive());
+        assertTrue(stoppedInTurn.get());
+        assertEquals(1, transport.stopped);
+
+        transport.notifies.get(0).onCharacteristicChanged(new byte[] {0, 60});
+        assertEquals(1, notified.get());
+        assertTrue(queue.stopNotify(SERVICE, Protocol.Characteristic.HEART_RATE_MEASURE));
+        assertEquals(2, transport.stopped);
+    }
+
+    @Test
+    public void holdsTheQueueForATimedOutOperation() throws InterruptedException {
+        ManualTransport transport = new ManualTransport();
+        CommandQueue queue = new CommandQueue(transport);
+        CountingCallback callback = new CountingCallback();
+        queue.write(SERVICE, CONTROL, Protocol.Command.HEART_START_CONTINUOUS, callback);
+        queue.write(SERVICE, CONTROL, Protocol.Command.HEART_STOP_CONTINUOUS, callback);
+        for (int waited = 0; callback.failures.get() == 0 && waited < 5000; waited += 50) Thread.sleep(50);
+        // only the timed-out write failed, the next one waits for the device
+        assertEquals(1, callback.failures.get());
+        assertEquals(1, queue.getTimedOutCount());
+        assertEquals(2, queue.getDepth());
+        assertEquals(1, transport.writes.size());
+        assertEquals(0, transport.disconnected);
+
+        // too late to be reported, but lets the next one go
+        transport.writes.get(0).onWriteSuccess(null);
+        assertEquals(0, callback.successes.get());
+        assertEquals(2, transport.writes.size());
+        transport.writes.get(1).onWriteSuccess(null);
+        assertEquals(1, callback.successes.get());
+        assertEquals(1, callback.failures.get());
+        assertEquals(0, queue.getDepth());
+        assertEquals(1, queue.getFailedCount());
+    }
+
+}
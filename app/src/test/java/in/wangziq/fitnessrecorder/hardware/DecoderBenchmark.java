@@ -0,0 +1,60 @@
+package in.wangziq.fitnessrecorder.hardware;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Decodes notifications of each characteristic in a loop, and prints the time per notification.
+ */
+public class DecoderBenchmark {
+
+    private static final int NOTIFICATIONS = 5_000_000;
+    private static final int ROUNDS = 3;
+
+    private interface Decode { long run(int i); }
+
+    @Test
+    public void decodeAll() {
+        final Random random = new Random(1);
+        final byte[] auth = new byte[19];
+        random.nextBytes(auth);
+        auth[0] = 0x10;
+        auth[1] = 0x02;
+        auth[2] = 0x01;
+        final byte[][] heartRates = {{0x00, 72}, {0x00, (byte) 150}, {0x01, 0x2c, 0x01}};
+        final byte[] sensor = new byte[SensorDataDecoder.HEADER_LENGTH + 3 * SensorDataDecoder.SAMPLE_LENGTH];
+        random.nextBytes(sensor);
+
+        final AuthNoticeDecoder authDecoder = new AuthNoticeDecoder();
+        final byte[] rand = new byte[16];
+        final HeartRateDecoder heartRateDecoder = new HeartRateDecoder();
+        final SensorDataDecoder sensorDecoder = new SensorDataDecoder();
+        final AccelerationBatch batch = new AccelerationBatch(3);
+
+        for (int round = 0; round < ROUNDS; ++round) {
+            measure("auth", round, i -> {
+                authDecoder.decode(auth);
+                authDecoder.copyBody(auth, rand);
+                return authDecoder.getHeader() + rand[i & 15];
+            });
+            measure("heart rate", round, i -> {
+                heartRateDecoder.decode(heartRates[i % heartRates.length]);
+                return heartRateDecoder.getHeartRate();
+            });
+            measure("sensor", round, i -> {
+                sensorDecoder.decode(i * 120L, sensor, batch);
+                return (long) (batch.getX()[i % 3] + batch.getZ()[2]);
+            });
+        }
+    }
+
+    private static void measure(String name, int round, Decode decode) {
+        long sink = 0;
+        final long start = System.nanoTime();
+        for (int i = 0; i < NOTIFICATIONS; ++i) sink += decode.run(i);
+        final double nanos = (double) (System.nanoTime() - start) / NOTIFICATIONS;
+        System.out.printf("%s, round %d: %.1f ns/notification (%d)%n", name, round, nanos, sink & 1);
+    }
+
+}
@@ -0,0 +1,70 @@
+package in.wangziq.fitnessrecorder.hardware;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HeartRateDecoderTest {
+
+    @Test
+    public void decodesUint8AboveSignedRange() {
+        HeartRateDecoder decoder = new HeartRateDecoder();
+        assertTrue(decoder.decode(new byte[] {0x00, 72}));
+        assertEquals(72, decoder.getHeartRate());
+        assertTrue(decoder.decode(new byte[] {0x00, (byte) 185}));
+        assertEquals(185, decoder.getHeartRate());
+    }
+
+    @Test
+    public void decodesUint16() {
+        HeartRateDecoder decoder = new HeartRateDecoder();
+        assertTrue(decoder.decode(new byte[] {0x01, (byte) 0x2c, 0x01}));
+        assertEquals(300, decoder.getHeartRate());
+    }
+
+    @Test
+    public void decodesEnergyAndRrIntervals() {
+        HeartRateDecoder decoder = new HeartRateDecoder();
+        // uint16 heart rate 70, energy 513 kJ, RR intervals 1024 and 512 (1/1024 s)
+        assertTrue(decoder.decode(new byte[] {0x19, 70, 0, 0x01, 0x02, 0x00, 0x04, 0x00, 0x02}));
+        assertEquals(70, decoder.getHeartRate());
+        assertEquals(513, decoder.getEnergyExpended());
+        assertEquals(2, decoder.getRrCount());
+        assertEquals(1000f, decoder.getRrInterval(0), 1e-3f);
+        assertEquals(500f, decoder.getRrInterval(1), 1e-3f);
+
+        assertTrue(decoder.decode(new byte[] {0x00, 70}));
+        assertEquals(-1, decoder.getEnergyExpended());
+        assertEquals(0, decoder.getRrCount());
+    }
+
+    @Test
+    public void ignoresTrailingOddByte() {
+        HeartRateDecoder decoder = new HeartRateDecoder();
+        assertTrue(decoder.decode(new byte[] {0x10, 60, 0x00, 0x04, 0x01}));
+        assertEquals(1, decoder.getRrCount());
+    }
+
+    @Test
+    public void decodesContact() {
+        HeartRateDecoder decoder = new HeartRateDecoder();
+        assertTrue(decoder.decode(new byte[] {0x04, 60}));
+        assertTrue(decoder.isContactSupported());
+        assertFalse(decoder.isContactDetected());
+        assertTrue(decoder.decode(new byte[] {0x06, 60}));
+        assertTrue(decoder.isContactDetected());
+        assertTrue(decoder.decode(new byte[] {0x00, 60}));
+        assertFalse(decoder.isContactSupported());
+    }
+
+    @Test
+    public void rejectsShortData() {
+        HeartRateDecoder decoder = new HeartRateDecoder();
+        assertFalse(decoder.decode(new byte[] {0x00}));
+        assertFalse(decoder.decode(new byte[] {0x01, 0x2c}));
+        assertFalse(decoder.decode(new byte[] {0x08, 60, 0x01}));
+    }
+
+}
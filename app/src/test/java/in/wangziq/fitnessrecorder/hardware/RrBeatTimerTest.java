@@ -0,0 +1,103 @@
+package in.wangziq.fitnessrecorder.hardware;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import in.wangziq.fitnessrecorder.utils.HrvEngine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RrBeatTimerTest {
+
+    private static final long START = 1536000000000L;
+
+    private final HeartRateDecoder mDecoder = new HeartRateDecoder();
+    private final RrBeatTimer mTimer = new RrBeatTimer();
+    private final long[] mBeats = new long[HeartRateDecoder.MAX_RR_INTERVALS];
+    private final List<Long> mTimes = new ArrayList<>();
+    private final List<Float> mIntervals = new ArrayList<>();
+
+    // a heart rate measurement as the band sends it, intervals in 1/1024 s
+    private static byte[] notification(int heartRate, int... rrs) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x10);
+        out.write(heartRate);
+        for (int rr : rrs) {
+            out.write(rr);
+            out.write(rr >> 8);
+        }
+        return out.toByteArray();
+    }
+
+    // the way MiBand2 handles a notification
+    private void receive(long arrival, byte[] data) {
+        assertTrue(mDecoder.decode(data));
+        mTimer.time(arrival, mDecoder, mBeats);
+        for (int i = 0; i < mDecoder.getRrCount(); ++i) {
+            mTimes.add(mBeats[i]);
+            mIntervals.add(mDecoder.getRrInterval(i));
+        }
+    }
+
+    @Test
+    public void anchorsTheFirstNotificationOnItsArrival() {
+        receive(START, notification(60, 1024, 512));
+        assertEquals(2, mTimes.size());
+        assertEquals(START - 500, (long) mTimes.get(0));
+        assertEquals(START, (long) mTimes.get(1));
+    }
+
+    @Test
+    public void chainsBeatsAcrossNotificationsArrivingLate() {
+        Random random = new Random(1);
+        HrvEngine engine = new HrvEngine(60 * 60 * 1000); // keeps every beat
+        long ticks = 0; // true time of the last beat, in 1/1024 s from START
+        double diffSquares = 0;
+        int diffs = 0;
+        for (int n = 0; n < 600; ++n) {
+            // one to three beats per notification, delivered up to 900 ms after the last one
+            final int[] rrs = new int[1 + random.nextInt(3)];
+            for (int i = 0; i < rrs.length; ++i) {
+                rrs[i] = 700 + random.nextInt(300);
+                ticks += rrs[i];
+            }
+            final long arrival = START + ticks * 1000 / 1024 + 20 + random.nextInt(880);
+            receive(arrival, notification(70, rrs));
+        }
+        for (int i = 0; i < mTimes.size(); ++i) {
+            assertTrue(engine.add(mTimes.get(i), mIntervals.get(i)));
+            if (i == 0) continue;
+            // rounded to the millisecond, not shifted by the delay of each notification
+            assertEquals(mIntervals.get(i), mTimes.get(i) - mTimes.get(i - 1), 1);
+            final double diff = mIntervals.get(i) - mIntervals.get(i - 1);
+            diffSquares += diff * diff;
+            ++diffs;
+        }
+        // every beat follows the previous one
+        assertEquals(Math.sqrt(diffSquares / diffs), engine.getRmssd(), 1e-3);
+    }
+
+    @Test
+    public void reanchorsAfterAGap() {
+        receive(START, notification(60, 1024));
+        receive(START + 1100, notification(60, 1024));
+        assertEquals(START + 1000, (long) mTimes.get(1));
+        // the band lost contact for a while, beats in between were never sent
+        receive(START + 30000, notification(60, 1024));
+        assertEquals(START + 30000, (long) mTimes.get(2));
+    }
+
+    @Test
+    public void reanchorsAfterReset() {
+        receive(START, notification(60, 1024));
+        mTimer.reset();
+        receive(START + 1500, notification(60, 1024));
+        assertEquals(START + 1500, (long) mTimes.get(1));
+    }
+
+}
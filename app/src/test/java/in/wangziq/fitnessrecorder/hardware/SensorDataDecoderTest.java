@@ -0,0 +1,60 @@
+package in.wangziq.fitnessrecorder.hardware;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SensorDataDecoderTest {
+
+    private static final byte[] PACKET = {
+            0x01, 0x07,
+            (byte) 0xff, (byte) 0xff, 0x00, 0x02, (byte) 0x80, 0x00,  // -1, 512, 128
+            0x00, (byte) 0x80, (byte) 0xff, 0x7f, 0x10, (byte) 0xfe,  // -32768, 32767, -496
+            (byte) 0x9c, (byte) 0xff, 0x00, 0x00, 0x01, 0x00,         // -100, 0, 1
+    };
+
+    @Test
+    public void decodesSignedSamples() {
+        SensorDataDecoder decoder = new SensorDataDecoder();
+        AccelerationBatch batch = new AccelerationBatch(1);
+        assertTrue(decoder.decode(1000, PACKET, batch));
+        assertEquals(3, batch.size());
+        assertEquals(-1, batch.getX()[0], 0);
+        assertEquals(512, batch.getY()[0], 0);
+        assertEquals(128, batch.getZ()[0], 0);
+        assertEquals(-32768, batch.getX()[1], 0);
+        assertEquals(32767, batch.getY()[1], 0);
+        assertEquals(-496, batch.getZ()[1], 0);
+        assertEquals(-100, batch.getX()[2], 0);
+        assertEquals(0, batch.getY()[2], 0);
+        assertEquals(1, batch.getZ()[2], 0);
+    }
+
+    @Test
+    public void spreadsSamplesOverTheGap() {
+        SensorDataDecoder decoder = new SensorDataDecoder();
+        AccelerationBatch batch = new AccelerationBatch(3);
+        assertTrue(decoder.decode(1000, PACKET, batch));
+        assertTrue(decoder.decode(1120, PACKET, batch));
+        assertEquals(1040, batch.getTimestamps()[0]);
+        assertEquals(1080, batch.getTimestamps()[1]);
+        assertEquals(1120, batch.getTimestamps()[2]);
+
+        // a pause keeps the last period
+        assertTrue(decoder.decode(5000, PACKET, batch));
+        assertEquals(4920, batch.getTimestamps()[0]);
+        assertEquals(5000, batch.getTimestamps()[2]);
+    }
+
+    @Test
+    public void rejectsPartialSamples() {
+        SensorDataDecoder decoder = new SensorDataDecoder();
+        AccelerationBatch batch = new AccelerationBatch(3);
+        assertFalse(decoder.decode(1000, new byte[] {0x01, 0x00}, batch));
+        assertFalse(decoder.decode(1000, new byte[] {0x01, 0x00, 1, 2, 3, 4, 5}, batch));
+        assertEquals(0, batch.size());
+    }
+
+}
@@ -0,0 +1,134 @@
+package in.wangziq.fitnessrecorder.hardware;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import in.wangziq.fitnessrecorder.utils.BytesUtil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link MiBand2} against a {@link SimulatedBand}, on the JVM.
+ */
+public class SimulatedBandTest {
+
+    private static final String MAC = "00:11:22:33:44:55";
+
+    private SimulatedBand mSimulated;
+
+    @After
+    public void shutdown() {
+        if (mSimulated != null) mSimulated.shutdown();
+    }
+
+    @Test
+    public void pairsThenReconnectsWithTheKey() {
+        mSimulated = new SimulatedBand(MAC, new SimulatedBand.Config());
+        MiBand2 band = new MiBand2(mSimulated, null, mSimulated.getTime());
+        assertTrue(band.connect(true));
+        assertTrue(band.getState().isEncrypted());
+        assertTrue(band.getConnectLatency() >= 0);
+        band.disconnect();
+
+        MiBand2 reconnected = new MiBand2(mSimulated, band.getAuthKey(), mSimulated.getTime());
+        assertTrue(reconnected.connect(false));
+        reconnected.disconnect();
+    }
+
+    @Test
+    public void failsWithAnotherKey() {
+        mSimulated = new SimulatedBand(MAC, new SimulatedBand.Config().setKey(BytesUtil.random(16)));
+        MiBand2 band = new MiBand2(mSimulated, BytesUtil.random(16), mSimulated.getTime());
+        assertFalse(band.connect(false));
+        assertFalse(band.getState().isEncrypted());
+    }
+
+    @Test
+    public void measuresDespiteDrops() throws InterruptedException {
+        mSimulated = new SimulatedBand(MAC, new SimulatedBand.Config()
+                .setHeartRatePeriod(10)
+                .setAccelerationPeriod(5)
+                .setJitter(2)
+                .setDropRatio(0.2)
+                .setSeed(1));
+        MiBand2 band = new MiBand2(mSimulated, null, mSimulated.getTime());
+        assertTrue(band.connect(true));
+
+        AtomicInteger heartRates = new AtomicInteger(), accelerations = new AtomicInteger();
+        assertTrue(band.startMeasureHeartRate((timestamp, heartRate) -> heartRates.incrementAndGet()));
+        assertTrue(band.startMeasureAcceleration((timestamp, x, y, z) -> accelerations.incrementAndGet()));
+        Thread.sleep(1000);
+        assertTrue(band.stopMeasureHeartRate());
+        assertTrue(band.stopMeasureAcceleration());
+        Thread.sleep(100);
+        band.disconnect();
+
+        assertTrue(heartRates.get() > 0);
+        assertTrue(accelerations.get() > 0);
+        assertEquals(mSimulated.getHeartRateSent(), heartRates.get());
+        assertEquals(mSimulated.getSensorSent(), accelerations.get());
+        assertTrue(mSimulated.getSensorDropped() > 0);
+    }
+
+    @Test
+    public void streamsRrIntervals() throws InterruptedException {
+        mSimulated = new SimulatedBand(MAC, new SimulatedBand.Config()
+                .setHeartRatePeriod(10)
+                .setRrIntervals(true)
+                .setSeed(3));
+        MiBand2 band = new MiBand2(mSimulated, null, mSimulated.getTime());
+        assertTrue(band.connect(true));
+
+        AtomicInteger intervals = new AtomicInteger(), outOfRange = new AtomicInteger();
+        assertTrue(band.startMeasureHeartRate((timestamp, heartRate) -> { }, (timestamp, interval) -> {
+            // the simulated heart rate stays in [40, 180] bpm
+            if (interval < 60000f / 180 - 1 || interval > 60000f / 40 + 1) outOfRange.incrementAndGet();
+            intervals.incrementAndGet();
+        }));
+        Thread.sleep(300);
+        assertTrue(band.stopMeasureHeartRate());
+        Thread.sleep(100);
+        band.disconnect();
+
+        assertEquals(mSimulated.getHeartRateSent(), intervals.get());
+        assertEquals(0, outOfRange.get());
+    }
+
+    @Test
+    public void decodesEverySignedSample() throws InterruptedException {
+        mSimulated = new SimulatedBand(MAC, new SimulatedBand.Config().setAccelerationPeriod(5).setSeed(2));
+        MiBand2 band = new MiBand2(mSimulated, null, mSimulated.getTime());
+        assertTrue(band.connect(true));
+
+        AtomicInteger samples = new AtomicInteger(), outOfRange = new AtomicInteger();
+        AtomicLong first = new AtomicLong(Long.MIN_VALUE), last = new AtomicLong(Long.MIN_VALUE);
+        assertTrue(band.startMeasureRawAcceleration(batch -> {
+            for (int i = 0; i < batch.size(); ++i) {
+                // the simulated band sends [-32, 32) on x and y, 512 more on z
+                if (batch.getX()[i] < -32 || batch.getX()[i] >= 32 || batch.getZ()[i] < 480 || batch.getZ()[i] >= 544)
+                    outOfRange.incrementAndGet();
+                // callbacks run on the band's thread, one batch after the other
+                final long timestamp = batch.getTimestamps()[i];
+                if (timestamp < last.get()) outOfRange.incrementAndGet();
+                first.compareAndSet(Long.MIN_VALUE, timestamp);
+                last.set(timestamp);
+            }
+            samples.addAndGet(batch.size());
+        }));
+        Thread.sleep(500);
+        assertTrue(band.stopMeasureAcceleration());
+        Thread.sleep(100);
+        band.disconnect();
+
+        assertEquals(mSimulated.getSensorSent() * 3, samples.get());
+        assertEquals(0, outOfRange.get());
+        // stamped on the band's time, which goes on during the measurement
+        assertTrue(last.get() - first.get() >= 300);
+    }
+
+}
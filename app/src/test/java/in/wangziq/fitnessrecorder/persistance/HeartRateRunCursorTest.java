@@ -0,0 +1,40 @@
+package in.wangziq.fitnessrecorder.persistance;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class HeartRateRunCursorTest {
+
+    @Test
+    public void decodesIrregularGapsExactly() {
+        long[] times = {1500000000000L, 1500000000001L, 1500000000998L, 1500000015000L, 1500000015127L,
+                1500000000000L + (1L << 40)};
+        byte[] deltas = new byte[times.length * HeartRateRunCursor.MAX_GAP_LENGTH];
+        int length = 0;
+        for (int i = 1; i < times.length; ++i) length = HeartRateRunCursor.putGap(deltas, length, times[i] - times[i - 1]);
+        // one byte up to 127 ms, two up to 16 s
+        assertEquals(1 + 2 + 2 + 1 + 6, length);
+
+        assertArrayEquals(times, HeartRateRunCursor.decodeTimes(times[0], times.length,
+                Arrays.copyOf(deltas, length)));
+    }
+
+    @Test
+    public void decodesASingleSample() {
+        assertArrayEquals(new long[] {1000}, HeartRateRunCursor.decodeTimes(1000, 1, new byte[0]));
+    }
+
+    @Test
+    public void findsSamplesAroundTime() {
+        long[] times = {1000, 1990, 3012};
+        assertEquals(1, HeartRateRunCursor.firstSampleAfter(times, 1000, false));
+        assertEquals(0, HeartRateRunCursor.firstSampleAfter(times, 1000, true));
+        assertEquals(2, HeartRateRunCursor.firstSampleAfter(times, 2000, true));
+        assertEquals(3, HeartRateRunCursor.firstSampleAfter(times, 3012, false));
+    }
+
+}
@@ -0,0 +1,91 @@
+package in.wangziq.fitnessrecorder.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HrvEngineTest {
+
+    private static final long WINDOW = 60000;
+
+    @Test
+    public void matchesBruteForceOverSlidingWindow() {
+        HrvEngine engine = new HrvEngine(WINDOW);
+        Random random = new Random(1);
+        List<long[]> times = new ArrayList<>(); // beat time, whether it directly follows the previous one
+        List<Float> intervals = new ArrayList<>();
+        long time = 1500000000000L;
+        for (int beat = 0; beat < 5000; ++beat) {
+            float interval = 600 + random.nextInt(400) + random.nextFloat();
+            boolean lost = random.nextInt(50) == 0;
+            time += Math.round(interval) + (lost ? 900 : 0);
+            assertTrue(engine.add(time, interval));
+            times.add(new long[] {time, beat > 0 && !lost ? 1 : 0});
+            intervals.add(interval);
+
+            if (beat % 97 != 0) continue;
+            double sum = 0, squares = 0;
+            int count = 0, diffs = 0;
+            for (int i = 0; i < times.size(); ++i) {
+                if (times.get(i)[0] <= time - WINDOW) continue;
+                sum += intervals.get(i);
+                ++count;
+                if (times.get(i)[1] == 1) {
+                    double diff = intervals.get(i) - intervals.get(i - 1);
+                    squares += diff * diff;
+                    ++diffs;
+                }
+            }
+            double mean = sum / count, variance = 0;
+            for (int i = 0; i < times.size(); ++i) {
+                if (times.get(i)[0] <= time - WINDOW) continue;
+                variance += (intervals.get(i) - mean) * (intervals.get(i) - mean);
+            }
+            assertEquals(count, engine.getBeatCount());
+            assertEquals(mean, engine.getMeanInterval(), 1e-6);
+            if (count > 1) assertEquals(Math.sqrt(variance / (count - 1)), engine.getSdnn(), 1e-6);
+            if (diffs > 0) assertEquals(Math.sqrt(squares / diffs), engine.getRmssd(), 1e-6);
+        }
+    }
+
+    @Test
+    public void rejectsArtifacts() {
+        HrvEngine engine = new HrvEngine(WINDOW);
+        assertFalse(engine.add(1000, 100));
+        assertFalse(engine.add(1000, 5000));
+        assertTrue(engine.add(1000, 800));
+        assertFalse(engine.add(1000, 800));
+        assertEquals(1, engine.getBeatCount());
+        assertTrue(Double.isNaN(engine.getSdnn()));
+        assertTrue(Double.isNaN(engine.getRmssd()));
+    }
+
+    @Test
+    public void skipsDifferencesAcrossGaps() {
+        HrvEngine engine = new HrvEngine(WINDOW);
+        engine.add(1000, 800);
+        engine.add(1800, 800);
+        engine.add(5000, 900); // beats lost in between
+        assertEquals(0, engine.getRmssd(), 1e-9);
+        engine.add(5700, 700);
+        assertEquals(Math.sqrt(200 * 200 / 2.0), engine.getRmssd(), 1e-6);
+    }
+
+    @Test
+    public void forgetsOnReset() {
+        HrvEngine engine = new HrvEngine(WINDOW);
+        engine.add(1000, 800);
+        engine.add(1800, 800);
+        engine.reset();
+        assertEquals(0, engine.getBeatCount());
+        assertTrue(Double.isNaN(engine.getMeanInterval()));
+        assertTrue(engine.add(500, 800));
+    }
+
+}
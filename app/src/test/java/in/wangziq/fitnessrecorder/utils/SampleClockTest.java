@@ -0,0 +1,60 @@
+package in.wangziq.fitnessrecorder.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SampleClockTest {
+
+    private static final long START = 1536000000000L;
+
+    // advanced by the test only
+    private static final class ManualSource implements SampleClock.Source {
+        long elapsedNanos = 5000000000L, wallMillis = START;
+
+        @Override
+        public long elapsedRealtimeNanos() {
+            return elapsedNanos;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return wallMillis;
+        }
+
+        void advance(long millis) {
+            elapsedNanos += millis * 1000000;
+            wallMillis += millis;
+        }
+    }
+
+    @Test
+    public void countsOnTheMonotonicClockFromTheAnchor() {
+        ManualSource source = new ManualSource();
+        SampleClock clock = new SampleClock(source);
+        assertEquals(START, clock.getAnchor());
+        assertEquals(START, clock.now());
+        source.advance(1500);
+        assertEquals(START + 1500, clock.now());
+        source.elapsedNanos += 999999; // less than a millisecond
+        assertEquals(START + 1500, clock.now());
+    }
+
+    @Test
+    public void ignoresWallClockAdjustmentsUntilReanchored() {
+        ManualSource source = new ManualSource();
+        SampleClock clock = new SampleClock(source);
+        source.advance(1000);
+        // set back by network time
+        source.wallMillis -= 60000;
+        assertEquals(START + 1000, clock.now());
+        source.advance(1000);
+        assertEquals(START + 2000, clock.now());
+
+        clock.anchor();
+        assertEquals(START - 58000, clock.getAnchor());
+        source.advance(500);
+        assertEquals(START - 57500, clock.now());
+    }
+
+}